@@ -0,0 +1,187 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves combine requests without a thread per request, so the number of
+ * requests in flight is not capped by the size of a thread pool.
+ *
+ * lookup() only queues the key and returns a future. A few reader threads
+ * take everything that queued up while their previous call was in flight, up
+ * to maxBatchSize keys, and answer it with one multi-get through
+ * SimplifiedLambda.lookupRows(), so concurrent requests share round trips
+ * and the table sees a handful of calls instead of one per request. Futures
+ * complete on the reader threads: callbacks must not block.
+ */
+public class AsyncCombiner implements Closeable {
+    private static Logger LOG = Logger.getLogger(AsyncCombiner.class.getName());
+
+    private static final class Request {
+        final byte[] rowKey;
+        final CompletableFuture<CombineResult> future = new CompletableFuture<>();
+
+        Request(byte[] rowKey) {
+            this.rowKey = rowKey;
+        }
+    }
+
+    private final SimplifiedLambda simplifiedLambda;
+    private final BlockingQueue<Request> queue;
+    private final int maxBatchSize;
+    private final List<Thread> readers = new ArrayList<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private volatile boolean running = true;
+
+    public AsyncCombiner(SimplifiedLambda simplifiedLambda, int readers, int maxBatchSize) {
+        this(simplifiedLambda, readers, maxBatchSize, 100000);
+    }
+
+    public AsyncCombiner(SimplifiedLambda simplifiedLambda, int readers, int maxBatchSize, int queueCapacity) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.maxBatchSize = maxBatchSize;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < readers; i++) {
+            Thread reader = new Thread(this::read, "async-combiner-" + i);
+            reader.setDaemon(true);
+            reader.start();
+            this.readers.add(reader);
+        }
+    }
+
+    public CompletableFuture<CombineResult> lookup(String key) {
+        return lookupRow(SimplifiedLambda.getEntityKey(key));
+    }
+
+    public CompletableFuture<CombineResult> lookup(long key) {
+        return lookupRow(SimplifiedLambda.getEntityKey(key));
+    }
+
+    /**
+     * Combines many keys; completes once all of them are answered, with the
+     * results in the same order as the keys. The keys share batches with
+     * every other request in the queue.
+     */
+    public CompletableFuture<CombineResult[]> lookup(List<String> keys) {
+        final List<CompletableFuture<CombineResult>> futures = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            futures.add(lookup(key));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(ignored -> {
+            CombineResult[] res = new CombineResult[futures.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = futures.get(i).join();
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Queues a lookup. Fails the future right away if the queue is full or
+     * the combiner was closed, rather than blocking the caller.
+     */
+    private CompletableFuture<CombineResult> lookupRow(byte[] rowKey) {
+        Request request = new Request(rowKey);
+        if (!this.running) {
+            request.future.completeExceptionally(new IOException("AsyncCombiner is closed"));
+        } else if (!this.queue.offer(request)) {
+            request.future.completeExceptionally(new IOException("AsyncCombiner queue is full"));
+        } else {
+            this.requests.incrementAndGet();
+        }
+        return request.future;
+    }
+
+    private void read() {
+        List<Request> batch = new ArrayList<>();
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Request first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                this.queue.drainTo(batch, this.maxBatchSize - 1);
+                answer(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void answer(List<Request> batch) {
+        List<byte[]> rowKeys = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            rowKeys.add(request.rowKey);
+        }
+        CombineResult[] results;
+        try {
+            results = this.simplifiedLambda.lookupRows(rowKeys);
+        } catch (IOException | RuntimeException e) {
+            this.failedBatches.incrementAndGet();
+            LOG.log(Level.WARNING, "Failed to combine batch of " + batch.size() + " keys", e);
+            for (Request request : batch) {
+                request.future.completeExceptionally(e);
+            }
+            return;
+        } finally {
+            this.batches.incrementAndGet();
+        }
+        for (int i = 0; i < results.length; i++) {
+            batch.get(i).future.complete(results[i]);
+        }
+    }
+
+    /**
+     * Answers every queued request, then stops the readers.
+     */
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        try {
+            for (Thread reader : this.readers) {
+                reader.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing AsyncCombiner", e);
+        }
+        // requests that raced with close()
+        Request request;
+        while ((request = this.queue.poll()) != null) {
+            request.future.completeExceptionally(new IOException("AsyncCombiner is closed"));
+        }
+    }
+
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    public long getBatchCount() {
+        return this.batches.get();
+    }
+
+    public long getFailedBatches() {
+        return this.failedBatches.get();
+    }
+}
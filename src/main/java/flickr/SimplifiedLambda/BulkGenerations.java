@@ -0,0 +1,218 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pointer to the active bulk generation, kept in one metadata row.
+ *
+ * Generation 0 is the plain BULK column, every later generation N has its
+ * own BULK_gN column. A bulk load writes a new generation next to the active
+ * one ("staging") and publishes it by flipping the pointer, so readers never
+ * see a mix of two loads. Like TableCleanerCheckpoint, the row must not live
+ * in the lambda table itself.
+ *
+ * All pointer changes are a checkAndPut on the staging column, so two
+ * processes cannot start or publish loads concurrently. Readers cache the
+ * pointer for refreshInterval; a generation is only dropped by the cleaner
+ * once it was retired for twice that long, so every process must use the
+ * same interval.
+ */
+public class BulkGenerations {
+    static final byte[] ACTIVE_COLUMN = Bytes.toBytes("active");
+    static final byte[] STAGING_COLUMN = Bytes.toBytes("staging");
+    static final byte[] LAST_COLUMN = Bytes.toBytes("last");
+    static final byte[] PUBLISHED_COLUMN = Bytes.toBytes("published");
+
+    private static final byte[] GENERATION_PREFIX = Bytes.toBytes("BULK_g");
+
+    private final HTableInterface metaTable;
+    private final byte[] family;
+    private final byte[] pointerRow;
+    private final long refreshNanos;
+    private volatile Pointer pointer;
+
+    /**
+     * Snapshot of the pointer row.
+     */
+    static final class Pointer {
+        final long active;
+        final long staging;
+        // highest generation ever reserved
+        final long last;
+        final long publishedMillis;
+        // raw staging cell, the expected value of the next checkAndPut
+        final byte[] stagingValue;
+        final long loadedNanos;
+
+        Pointer(long active, long staging, long last, long publishedMillis, byte[] stagingValue, long loadedNanos) {
+            this.active = active;
+            this.staging = staging;
+            this.last = last;
+            this.publishedMillis = publishedMillis;
+            this.stagingValue = stagingValue;
+            this.loadedNanos = loadedNanos;
+        }
+
+        boolean isLoading() {
+            return this.staging != this.active;
+        }
+    }
+
+    public BulkGenerations(HTableInterface metaTable, byte[] family, byte[] pointerRow, long refreshInterval, TimeUnit unit) {
+        this.metaTable = metaTable;
+        this.family = family;
+        this.pointerRow = pointerRow;
+        this.refreshNanos = unit.toNanos(refreshInterval);
+    }
+
+    /**
+     * Bulk column of a generation.
+     */
+    public static byte[] bulkColumn(long generation) {
+        if (generation == 0)
+            return SimplifiedLambda.BULK_COLUMN;
+        return Bytes.add(GENERATION_PREFIX, Bytes.toBytes(Long.toString(generation)));
+    }
+
+    /**
+     * Generation of a bulk column, or -1 if qualifier is not one.
+     */
+    static long generationOf(byte[] qualifier) {
+        if (Bytes.equals(qualifier, SimplifiedLambda.BULK_COLUMN))
+            return 0;
+        if (!Bytes.startsWith(qualifier, GENERATION_PREFIX))
+            return -1;
+        try {
+            return Long.parseLong(Bytes.toString(qualifier, GENERATION_PREFIX.length,
+                    qualifier.length - GENERATION_PREFIX.length));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long getActive() throws IOException {
+        return current().active;
+    }
+
+    /**
+     * The generation being loaded, or the active one if there is no load.
+     */
+    public long getStaging() throws IOException {
+        return current().staging;
+    }
+
+    Pointer current() throws IOException {
+        Pointer res = this.pointer;
+        if (res == null || System.nanoTime() - res.loadedNanos > this.refreshNanos) {
+            synchronized (this) {
+                // another thread may have refreshed while we waited
+                res = this.pointer;
+                if (res == null || System.nanoTime() - res.loadedNanos > this.refreshNanos)
+                    res = load();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Re-reads the pointer row, bypassing the cache.
+     */
+    public synchronized void refresh() throws IOException {
+        load();
+    }
+
+    private synchronized Pointer load() throws IOException {
+        Get get = new Get(this.pointerRow);
+        get.addFamily(this.family);
+        Result result = this.metaTable.get(get);
+        byte[] active = result == null ? null : result.getValue(this.family, ACTIVE_COLUMN);
+        byte[] staging = result == null ? null : result.getValue(this.family, STAGING_COLUMN);
+        byte[] last = result == null ? null : result.getValue(this.family, LAST_COLUMN);
+        byte[] published = result == null ? null : result.getValue(this.family, PUBLISHED_COLUMN);
+        long activeGeneration = active == null ? 0 : Bytes.toLong(active);
+        Pointer res = new Pointer(activeGeneration, staging == null ? activeGeneration : Bytes.toLong(staging),
+                last == null ? activeGeneration : Bytes.toLong(last), published == null ? 0 : Bytes.toLong(published),
+                staging, System.nanoTime());
+        this.pointer = res;
+        return res;
+    }
+
+    /**
+     * Reserves the next generation for a bulk load. Fails if another load has
+     * not been published or aborted yet.
+     */
+    synchronized long beginLoad() throws IOException {
+        Pointer current = load();
+        if (current.isLoading())
+            throw new IOException("Bulk generation " + current.staging + " is still being loaded");
+        // never reuse the number of an aborted load, its cells may still be around
+        long generation = current.last + 1;
+        Put insertOp = new Put(this.pointerRow);
+        insertOp.add(this.family, ACTIVE_COLUMN, Bytes.toBytes(current.active));
+        insertOp.add(this.family, STAGING_COLUMN, Bytes.toBytes(generation));
+        insertOp.add(this.family, LAST_COLUMN, Bytes.toBytes(generation));
+        swap(current, insertOp, "begin loading generation " + generation);
+        return generation;
+    }
+
+    /**
+     * Makes generation the active one with a single pointer write.
+     */
+    synchronized void publish(long generation) throws IOException {
+        Pointer current = load();
+        if (current.staging != generation || !current.isLoading())
+            throw new IOException("Bulk generation " + generation + " is not being loaded");
+        Put insertOp = new Put(this.pointerRow);
+        insertOp.add(this.family, ACTIVE_COLUMN, Bytes.toBytes(generation));
+        insertOp.add(this.family, STAGING_COLUMN, Bytes.toBytes(generation));
+        insertOp.add(this.family, PUBLISHED_COLUMN, Bytes.toBytes(System.currentTimeMillis()));
+        swap(current, insertOp, "publish generation " + generation);
+    }
+
+    /**
+     * Gives up on a load; its cells are dropped by the cleaner.
+     */
+    synchronized void abort(long generation) throws IOException {
+        Pointer current = load();
+        if (current.staging != generation || !current.isLoading())
+            return;
+        Put insertOp = new Put(this.pointerRow);
+        insertOp.add(this.family, STAGING_COLUMN, Bytes.toBytes(current.active));
+        swap(current, insertOp, "abort generation " + generation);
+    }
+
+    private void swap(Pointer expected, Put insertOp, String action) throws IOException {
+        boolean swapped = this.metaTable.checkAndPut(this.pointerRow, this.family, STAGING_COLUMN, expected.stagingValue,
+                insertOp);
+        load();
+        if (!swapped)
+            throw new IOException("Bulk generation pointer changed concurrently, cannot " + action);
+    }
+
+    /**
+     * True if nobody reads the cells of generation any more: it is neither
+     * active nor being loaded, and either an aborted load or retired long
+     * enough ago for every reader's cached pointer to have expired.
+     * Generations newer than the last known one may belong to a load this
+     * process has not seen yet and are kept.
+     */
+    boolean isRetired(Pointer current, long generation) {
+        if (generation == current.active || generation == current.staging || generation > current.last)
+            return false;
+        if (generation > current.active)
+            return true;
+        long graceMillis = 2 * TimeUnit.NANOSECONDS.toMillis(this.refreshNanos);
+        return System.currentTimeMillis() - current.publishedMillis > graceMillis;
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bulk load into a new generation, see SimplifiedLambda.beginBulkLoad().
+ * Rows are written in multi-puts of batchSize and stay invisible until
+ * publish() flips the generation pointer. Closing a load that was not
+ * published aborts it; the cleaner drops its cells.
+ */
+public class BulkLoad implements Closeable {
+    private final SimplifiedLambda simplifiedLambda;
+    private final BulkGenerations generations;
+    private final long generation;
+    private final byte[] bulkColumn;
+    private final int batchSize;
+    private final List<byte[]> rowKeys;
+    private final List<String> values;
+    private long rows = 0;
+    private boolean finished = false;
+
+    BulkLoad(SimplifiedLambda simplifiedLambda, BulkGenerations generations, long generation, int batchSize) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.generations = generations;
+        this.generation = generation;
+        this.bulkColumn = BulkGenerations.bulkColumn(generation);
+        this.batchSize = batchSize;
+        this.rowKeys = new ArrayList<>(batchSize);
+        this.values = new ArrayList<>(batchSize);
+    }
+
+    public long getGeneration() {
+        return this.generation;
+    }
+
+    public long getRowCount() {
+        return this.rows;
+    }
+
+    public void push(String key, String value) throws IOException {
+        pushRow(SimplifiedLambda.getEntityKey(key), value);
+    }
+
+    public void push(long key, String value) throws IOException {
+        pushRow(SimplifiedLambda.getEntityKey(key), value);
+    }
+
+    private void pushRow(byte[] rowKey, String value) throws IOException {
+        if (this.finished)
+            throw new IOException("Bulk generation " + this.generation + " is already finished");
+        this.rowKeys.add(rowKey);
+        this.values.add(value);
+        this.rows++;
+        if (this.rowKeys.size() >= this.batchSize)
+            flush();
+    }
+
+    public void flush() throws IOException {
+        if (this.rowKeys.isEmpty())
+            return;
+        this.simplifiedLambda.pushBulkRows(this.bulkColumn, this.rowKeys, this.values);
+        this.rowKeys.clear();
+        this.values.clear();
+    }
+
+    /**
+     * Writes the remaining rows and makes this generation the active one.
+     */
+    public void publish() throws IOException {
+        flush();
+        this.generations.publish(this.generation);
+        this.finished = true;
+        // notice the publish right away rather than after the pointer cache expires
+        this.simplifiedLambda.activeBulkColumn();
+    }
+
+    public void abort() throws IOException {
+        this.finished = true;
+        this.rowKeys.clear();
+        this.values.clear();
+        this.generations.abort(this.generation);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.finished)
+            abort();
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline stage between SimplifiedLambda and the serving cache.
+ *
+ * Drains changed keys from a ChangeFeed, combines them in batches and hands
+ * the results to a CacheSink. Keys that no longer resolve to a value are
+ * invalidated; keys whose bulk value still awaits the cleaner are skipped.
+ * If the feed overflowed, the whole table is swept once instead. Failed
+ * pushes are retried, so the sink may see a key more than once.
+ */
+public class CachePusher implements Runnable {
+    private static Logger LOG = Logger.getLogger(CachePusher.class.getName());
+    private static final long RETRY_MILLIS = 100;
+
+    private final SimplifiedLambda simplifiedLambda;
+    private final ChangeFeed changeFeed;
+    private final CacheSink cacheSink;
+    private final int batchSize;
+    private volatile boolean running = true;
+
+    public CachePusher(SimplifiedLambda simplifiedLambda, ChangeFeed changeFeed, CacheSink cacheSink, int batchSize) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.changeFeed = changeFeed;
+        this.cacheSink = cacheSink;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                pushChanges(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to push changes to cache", e);
+                try {
+                    // the changes are back in the feed, do not spin on them
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        this.running = false;
+    }
+
+    /**
+     * Pushes one batch of changes, waiting up to timeout for it to arrive.
+     * Returns the number of keys pushed or invalidated. If the push fails the
+     * keys go back to the feed, or the feed stays overflowed, for a retry.
+     */
+    public int pushChanges(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        if (this.changeFeed.takeOverflow()) {
+            boolean completed = false;
+            try {
+                int pushed = sweep();
+                completed = true;
+                return pushed;
+            } finally {
+                if (!completed)
+                    this.changeFeed.restoreOverflow();
+            }
+        }
+
+        List<byte[]> rows = this.changeFeed.poll(this.batchSize, timeout, unit);
+        if (rows.isEmpty())
+            return 0;
+        boolean completed = false;
+        try {
+            int pushed = push(rows);
+            completed = true;
+            return pushed;
+        } finally {
+            if (!completed)
+                this.changeFeed.requeue(rows);
+        }
+    }
+
+    /**
+     * Pushes every row in the table; used after the feed dropped changes.
+     */
+    public int sweep() throws IOException {
+        LOG.info("Change feed overflowed, sweeping the whole table");
+        Scan scan = new Scan();
+        scan.addFamily(SimplifiedLambda.FAMILY);
+        scan.setCaching(this.batchSize);
+
+        int pushed = 0;
+        List<byte[]> rows = new ArrayList<>(this.batchSize);
+        ResultScanner resultScanner = this.simplifiedLambda.getBackgroundTable().getScanner(scan);
+        try {
+            for (Result result : resultScanner) {
+                if (result.isEmpty())
+                    continue;
+                rows.add(result.getRow());
+                if (rows.size() == this.batchSize) {
+                    pushed += push(rows);
+                    rows.clear();
+                }
+            }
+        } finally {
+            resultScanner.close();
+        }
+        if (!rows.isEmpty())
+            pushed += push(rows);
+        return pushed;
+    }
+
+    private int push(List<byte[]> rows) throws IOException {
+        CombineResult[] results = this.simplifiedLambda.lookupRows(rows);
+        for (int i = 0; i < results.length; i++) {
+            switch (results[i].getSource()) {
+                case BULK:
+                case REALTIME:
+                    this.cacheSink.put(rows.get(i), results[i].getValue());
+                    break;
+                case NONE:
+                    this.cacheSink.invalidate(rows.get(i));
+                    break;
+                case CONFLICT:
+                    // keep serving the old value, the cleaner will emit the row once it settled
+                    break;
+            }
+        }
+        return rows.size();
+    }
+}
@@ -0,0 +1,17 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.IOException;
+
+/**
+ * Destination for combined values pushed by the CachePusher, typically the
+ * serving cache in front of Magic View.
+ */
+public interface CacheSink {
+    void put(byte[] rowKey, String combinedValue) throws IOException;
+
+    void invalidate(byte[] rowKey) throws IOException;
+}
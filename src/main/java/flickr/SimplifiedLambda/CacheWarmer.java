@@ -0,0 +1,87 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a ServingCache warm across restarts.
+ *
+ * Call load() at startup, before serving, to fill the cache from the last
+ * snapshot; then run the warmer on its own thread. It revalidates the loaded
+ * entries in multi-gets of batchSize keys, then writes a new snapshot every
+ * snapshotInterval, and a last one when stopped.
+ */
+public class CacheWarmer implements Runnable {
+    private static Logger LOG = Logger.getLogger(CacheWarmer.class.getName());
+
+    private final ServingCache cache;
+    private final File snapshotFile;
+    private final long snapshotIntervalMillis;
+    private final int batchSize;
+    private volatile boolean running = true;
+
+    public CacheWarmer(ServingCache cache, File snapshotFile, long snapshotInterval, TimeUnit unit, int batchSize) {
+        this.cache = cache;
+        this.snapshotFile = snapshotFile;
+        this.snapshotIntervalMillis = unit.toMillis(snapshotInterval);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Loads the last snapshot into the cache and returns the number of
+     * entries loaded. An unreadable snapshot is logged and skipped, the cache
+     * then simply starts cold.
+     */
+    public int load() {
+        try {
+            int loaded = this.cache.loadSnapshot(this.snapshotFile);
+            LOG.info("Loaded " + loaded + " cache entries from " + this.snapshotFile);
+            return loaded;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Ignoring cache snapshot " + this.snapshotFile, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextSnapshot = System.currentTimeMillis() + this.snapshotIntervalMillis;
+        try {
+            while (this.running) {
+                int revalidated = 0;
+                try {
+                    revalidated = this.cache.revalidate(this.batchSize);
+                    if (System.currentTimeMillis() >= nextSnapshot) {
+                        this.cache.writeSnapshot(this.snapshotFile);
+                        nextSnapshot = System.currentTimeMillis() + this.snapshotIntervalMillis;
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to revalidate or snapshot the serving cache", e);
+                }
+                if (revalidated == 0)
+                    Thread.sleep(Math.max(1, Math.min(100, nextSnapshot - System.currentTimeMillis())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.cache.writeSnapshot(this.snapshotFile);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write the final cache snapshot", e);
+        }
+    }
+
+    /**
+     * Stops the warmer, which writes a last snapshot on its way out.
+     */
+    public void stop() {
+        this.running = false;
+    }
+}
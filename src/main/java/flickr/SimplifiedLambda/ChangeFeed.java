@@ -0,0 +1,126 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of changed row keys fed by SimplifiedLambda.
+ *
+ * A key that is already pending is not queued twice, so a hot row costs one
+ * slot no matter how often it is written. When the queue is full new changes
+ * are dropped and the feed is marked as overflowed; the consumer must then
+ * fall back to a full sweep (see CachePusher).
+ */
+public class ChangeFeed implements ChangeListener {
+    private final int capacity;
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private final TreeSet<byte[]> pending = new TreeSet<>(Bytes.BYTES_COMPARATOR);
+    private boolean overflowed = false;
+    private long droppedChanges = 0;
+
+    public ChangeFeed(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void onChange(byte[] rowKey, Kind kind) {
+        if (kind == Kind.PUBLISHED) {
+            // every row changed, only a sweep catches up
+            this.overflowed = true;
+            notifyAll();
+            return;
+        }
+        if (this.pending.contains(rowKey))
+            return;
+        if (this.queue.size() >= this.capacity) {
+            this.overflowed = true;
+            this.droppedChanges++;
+            return;
+        }
+        this.pending.add(rowKey);
+        this.queue.add(rowKey);
+        notifyAll();
+    }
+
+    /**
+     * Removes up to maxRows changed keys, waiting up to timeout for the first
+     * one. Returns an empty list if nothing changed in that time.
+     */
+    public synchronized List<byte[]> poll(int maxRows, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (this.queue.isEmpty() && !this.overflowed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                break;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        List<byte[]> rows = new ArrayList<>(Math.min(maxRows, this.queue.size()));
+        while (rows.size() < maxRows && !this.queue.isEmpty()) {
+            byte[] rowKey = this.queue.poll();
+            this.pending.remove(rowKey);
+            rows.add(rowKey);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns true, and resets the flag and the queue, if changes were dropped
+     * since the last call. The caller is then responsible for a full sweep.
+     */
+    public synchronized boolean takeOverflow() {
+        if (!this.overflowed)
+            return false;
+        this.overflowed = false;
+        this.queue.clear();
+        this.pending.clear();
+        return true;
+    }
+
+    /**
+     * Puts keys the consumer failed to push back at the head of the queue.
+     * Keys that no longer fit mark the feed as overflowed.
+     */
+    public synchronized void requeue(List<byte[]> rowKeys) {
+        for (int i = rowKeys.size() - 1; i >= 0; i--) {
+            byte[] rowKey = rowKeys.get(i);
+            if (this.pending.contains(rowKey))
+                continue;
+            if (this.queue.size() >= this.capacity) {
+                this.overflowed = true;
+                this.droppedChanges++;
+                continue;
+            }
+            this.pending.add(rowKey);
+            this.queue.addFirst(rowKey);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Sets the overflow flag again after a sweep failed, so the next call to
+     * takeOverflow() asks for another one.
+     */
+    public synchronized void restoreOverflow() {
+        this.overflowed = true;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return this.queue.size();
+    }
+
+    public synchronized long getDroppedChanges() {
+        return this.droppedChanges;
+    }
+}
@@ -0,0 +1,25 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+/**
+ * Notified by SimplifiedLambda whenever a row may have a new combined value.
+ *
+ * Listeners are called inline on the writing thread, so they must be cheap
+ * and must not block or throw.
+ *
+ * PUBLISHED means a new bulk generation became active and every row may
+ * have changed; its row key is null.
+ */
+public interface ChangeListener {
+    enum Kind {
+        REALTIME,
+        BULK,
+        CLEANED,
+        PUBLISHED
+    }
+
+    void onChange(byte[] rowKey, Kind kind);
+}
@@ -0,0 +1,29 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Durable progress of a ResumableCleaner pass: the last completed row key of
+ * each range, keyed by range id.
+ */
+public interface CleanerCheckpoint {
+    /**
+     * Returns the saved progress, empty if no pass is in flight.
+     */
+    Map<String, byte[]> load() throws IOException;
+
+    /**
+     * Atomically replaces the saved progress.
+     */
+    void save(Map<String, byte[]> lastCompletedRows) throws IOException;
+
+    /**
+     * Forgets the progress once a pass has completed.
+     */
+    void clear() throws IOException;
+}
@@ -0,0 +1,40 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A row whose combined value differs between two points in time, as
+ * returned by SimplifiedLambda.diffAsOf().
+ */
+public final class CombineDiff {
+    private final byte[] rowKey;
+    private final CombineResult before;
+    private final CombineResult after;
+
+    CombineDiff(byte[] rowKey, CombineResult before, CombineResult after) {
+        this.rowKey = rowKey;
+        this.before = before;
+        this.after = after;
+    }
+
+    public byte[] getRowKey() {
+        return this.rowKey;
+    }
+
+    public CombineResult getBefore() {
+        return this.before;
+    }
+
+    public CombineResult getAfter() {
+        return this.after;
+    }
+
+    @Override
+    public String toString() {
+        return Bytes.toStringBinary(this.rowKey) + ": " + this.before + " -> " + this.after;
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.Coprocessor;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.CoprocessorException;
+import org.apache.hadoop.hbase.coprocessor.CoprocessorService;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.protobuf.ResponseConverter;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+
+/**
+ * Region endpoint that combines and cleans rows next to the data, so only
+ * combined values or mutation counts cross the network; see
+ * SimplifiedLambda.combineOnServer() and cleanOnServer().
+ *
+ * Load it on the lambda table, e.g. with
+ * HTableDescriptor.addCoprocessor(CombineEndpoint.class.getName()). The
+ * endpoint reads and writes its region directly, see RegionHTable, and
+ * never leaves the region's key range; clean() settles rows from the region
+ * scanner's results without reading them again. It has no value codec,
+ * clock, overlay or change listeners: values travel encoded and are decoded
+ * by the client, and rows cleaned here notify nobody.
+ */
+public class CombineEndpoint extends CombineProtocol implements Coprocessor, CoprocessorService {
+    private HTableInterface table;
+    private byte[] regionStart;
+    private byte[] regionEnd;
+
+    public CombineEndpoint() {
+    }
+
+    /**
+     * An endpoint for the region [regionStart, regionEnd) of table, for
+     * running outside a region server.
+     */
+    CombineEndpoint(HTableInterface table, byte[] regionStart, byte[] regionEnd) {
+        this.table = table;
+        this.regionStart = regionStart;
+        this.regionEnd = regionEnd;
+    }
+
+    @Override
+    public void start(CoprocessorEnvironment env) throws IOException {
+        if (!(env instanceof RegionCoprocessorEnvironment))
+            throw new CoprocessorException("CombineEndpoint must be loaded on a table region");
+        HRegion region = ((RegionCoprocessorEnvironment) env).getRegion();
+        // straight to the region, not through a client RPC back into this server
+        this.table = new RegionHTable(region, env.getConfiguration());
+        this.regionStart = region.getRegionInfo().getStartKey();
+        this.regionEnd = region.getRegionInfo().getEndKey();
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment env) throws IOException {
+        if (this.table != null)
+            this.table.close();
+    }
+
+    @Override
+    public Service getService() {
+        return this;
+    }
+
+    /**
+     * The part of the requested range inside this region.
+     */
+    private Scan regionScan(Message request) {
+        byte[] startRow = getBytes(request, START_ROW);
+        byte[] stopRow = getBytes(request, STOP_ROW);
+        if (Bytes.compareTo(this.regionStart, startRow) > 0)
+            startRow = this.regionStart;
+        if (stopRow.length == 0 || (this.regionEnd.length > 0 && Bytes.compareTo(this.regionEnd, stopRow) < 0))
+            stopRow = this.regionEnd;
+        return new Scan(startRow, stopRow);
+    }
+
+    @Override
+    public void combine(RpcController controller, Message request, RpcCallback<Message> done) {
+        byte[] bulkColumn = getBytes(request, BULK_COLUMN);
+        Scan scan = regionScan(request);
+        scan.addColumn(SimplifiedLambda.FAMILY, bulkColumn);
+        scan.addColumn(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN);
+        scan.setCaching(1000);
+        // only for resolve(), which needs none of its settings
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(this.table);
+        DynamicMessage.Builder response = DynamicMessage.newBuilder(COMBINE_RESPONSE);
+        long rowsRead = 0;
+        try {
+            ResultScanner resultScanner = this.table.getScanner(scan);
+            try {
+                for (Result result : resultScanner) {
+                    rowsRead++;
+                    Cell bulkCell = result.getColumnLatestCell(SimplifiedLambda.FAMILY, bulkColumn);
+                    Cell realtimeCell = result.getColumnLatestCell(SimplifiedLambda.FAMILY,
+                            SimplifiedLambda.REALTIME_COLUMN);
+                    CombineResult combined = simplifiedLambda.resolve(bulkCell, realtimeCell);
+                    if (combined.getSource() == CombineResult.Source.NONE)
+                        continue;
+                    Cell valueCell = combined.getSource() == CombineResult.Source.REALTIME ? realtimeCell : bulkCell;
+                    response.addRepeatedField(ROWS, DynamicMessage.newBuilder(ROW)
+                            .setField(ROW_KEY, ByteString.copyFrom(result.getRow()))
+                            .setField(SOURCE, combined.getSource().ordinal())
+                            .setField(VALUE, ByteString.copyFrom(valueCell.getValueArray(), valueCell.getValueOffset(),
+                                    valueCell.getValueLength()))
+                            .setField(BULK_TIMESTAMP, combined.getBulkTimestamp())
+                            .setField(REALTIME_TIMESTAMP, combined.getRealtimeTimestamp())
+                            .build());
+                }
+            } finally {
+                resultScanner.close();
+            }
+        } catch (IOException e) {
+            ResponseConverter.setControllerException(controller, e);
+            done.run(null);
+            return;
+        }
+        done.run(response.setField(COMBINE_ROWS_READ, rowsRead).build());
+    }
+
+    @Override
+    public void clean(RpcController controller, Message request, RpcCallback<Message> done) {
+        long rowsRead = 0;
+        long mutations = 0;
+        try {
+            if (!Bytes.equals(getBytes(request, BULK_COLUMN), SimplifiedLambda.BULK_COLUMN))
+                throw new IOException("Bulk generations cannot be cleaned server-side");
+            SimplifiedLambda simplifiedLambda = new SimplifiedLambda(this.table);
+            simplifiedLambda.setCombinedViewEnabled((Boolean) request.getField(COMBINED_VIEW));
+            Scan scan = regionScan(request);
+            scan.addFamily(SimplifiedLambda.FAMILY);
+            scan.setCaching(1000);
+            ResultScanner resultScanner = this.table.getScanner(scan);
+            try {
+                for (Result result : resultScanner) {
+                    if (result.isEmpty())
+                        continue;
+                    rowsRead++;
+                    mutations += simplifiedLambda.cleanRow(result);
+                }
+            } finally {
+                resultScanner.close();
+            }
+        } catch (IOException e) {
+            ResponseConverter.setControllerException(controller, e);
+            done.run(null);
+            return;
+        }
+        done.run(DynamicMessage.newBuilder(CLEAN_RESPONSE)
+                .setField(CLEAN_ROWS_READ, rowsRead)
+                .setField(MUTATIONS, mutations)
+                .build());
+    }
+}
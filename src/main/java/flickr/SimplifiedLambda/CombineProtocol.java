@@ -0,0 +1,230 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.MethodDescriptorProto;
+import com.google.protobuf.DescriptorProtos.ServiceDescriptorProto;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
+
+/**
+ * Protocol of the server-side combine endpoint, see CombineEndpoint.
+ *
+ * This is what protoc would generate for the service below, built from
+ * descriptors at runtime with DynamicMessage so the build needs no protoc
+ * step. newStub() is what HTableInterface.coprocessorService() looks up to
+ * create the client side.
+ *
+ * <pre>
+ * message RangeRequest {
+ *   optional bytes start_row = 1;
+ *   optional bytes stop_row = 2;
+ *   optional bytes bulk_column = 3;
+ *   optional bool combined_view = 4;
+ * }
+ * message Row {
+ *   optional bytes row = 1;
+ *   optional int32 source = 2;
+ *   optional bytes value = 3;
+ *   optional int64 bulk_timestamp = 4;
+ *   optional int64 realtime_timestamp = 5;
+ * }
+ * message CombineResponse {
+ *   repeated Row rows = 1;
+ *   optional int64 rows_read = 2;
+ * }
+ * message CleanResponse {
+ *   optional int64 rows_read = 1;
+ *   optional int64 mutations = 2;
+ * }
+ * service CombineService {
+ *   rpc Combine(RangeRequest) returns (CombineResponse);
+ *   rpc Clean(RangeRequest) returns (CleanResponse);
+ * }
+ * </pre>
+ */
+public abstract class CombineProtocol implements Service {
+    private static final String PACKAGE = "flickr.SimplifiedLambda";
+
+    static final Descriptors.Descriptor RANGE_REQUEST;
+    static final Descriptors.FieldDescriptor START_ROW;
+    static final Descriptors.FieldDescriptor STOP_ROW;
+    static final Descriptors.FieldDescriptor BULK_COLUMN;
+    static final Descriptors.FieldDescriptor COMBINED_VIEW;
+
+    static final Descriptors.Descriptor ROW;
+    static final Descriptors.FieldDescriptor ROW_KEY;
+    static final Descriptors.FieldDescriptor SOURCE;
+    static final Descriptors.FieldDescriptor VALUE;
+    static final Descriptors.FieldDescriptor BULK_TIMESTAMP;
+    static final Descriptors.FieldDescriptor REALTIME_TIMESTAMP;
+
+    static final Descriptors.Descriptor COMBINE_RESPONSE;
+    static final Descriptors.FieldDescriptor ROWS;
+    static final Descriptors.FieldDescriptor COMBINE_ROWS_READ;
+
+    static final Descriptors.Descriptor CLEAN_RESPONSE;
+    static final Descriptors.FieldDescriptor CLEAN_ROWS_READ;
+    static final Descriptors.FieldDescriptor MUTATIONS;
+
+    static final Descriptors.ServiceDescriptor SERVICE;
+    static final Descriptors.MethodDescriptor COMBINE;
+    static final Descriptors.MethodDescriptor CLEAN;
+
+    static {
+        FileDescriptorProto file = FileDescriptorProto.newBuilder()
+                .setName("flickr/SimplifiedLambda/combine.proto")
+                .setPackage(PACKAGE)
+                .addMessageType(DescriptorProto.newBuilder().setName("RangeRequest")
+                        .addField(field("start_row", 1, FieldDescriptorProto.Type.TYPE_BYTES))
+                        .addField(field("stop_row", 2, FieldDescriptorProto.Type.TYPE_BYTES))
+                        .addField(field("bulk_column", 3, FieldDescriptorProto.Type.TYPE_BYTES))
+                        .addField(field("combined_view", 4, FieldDescriptorProto.Type.TYPE_BOOL)))
+                .addMessageType(DescriptorProto.newBuilder().setName("Row")
+                        .addField(field("row", 1, FieldDescriptorProto.Type.TYPE_BYTES))
+                        .addField(field("source", 2, FieldDescriptorProto.Type.TYPE_INT32))
+                        .addField(field("value", 3, FieldDescriptorProto.Type.TYPE_BYTES))
+                        .addField(field("bulk_timestamp", 4, FieldDescriptorProto.Type.TYPE_INT64))
+                        .addField(field("realtime_timestamp", 5, FieldDescriptorProto.Type.TYPE_INT64)))
+                .addMessageType(DescriptorProto.newBuilder().setName("CombineResponse")
+                        .addField(field("rows", 1, FieldDescriptorProto.Type.TYPE_MESSAGE)
+                                .setLabel(FieldDescriptorProto.Label.LABEL_REPEATED)
+                                .setTypeName("." + PACKAGE + ".Row"))
+                        .addField(field("rows_read", 2, FieldDescriptorProto.Type.TYPE_INT64)))
+                .addMessageType(DescriptorProto.newBuilder().setName("CleanResponse")
+                        .addField(field("rows_read", 1, FieldDescriptorProto.Type.TYPE_INT64))
+                        .addField(field("mutations", 2, FieldDescriptorProto.Type.TYPE_INT64)))
+                .addService(ServiceDescriptorProto.newBuilder().setName("CombineService")
+                        .addMethod(MethodDescriptorProto.newBuilder().setName("Combine")
+                                .setInputType("." + PACKAGE + ".RangeRequest")
+                                .setOutputType("." + PACKAGE + ".CombineResponse"))
+                        .addMethod(MethodDescriptorProto.newBuilder().setName("Clean")
+                                .setInputType("." + PACKAGE + ".RangeRequest")
+                                .setOutputType("." + PACKAGE + ".CleanResponse")))
+                .build();
+        Descriptors.FileDescriptor descriptor;
+        try {
+            descriptor = Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[0]);
+        } catch (Descriptors.DescriptorValidationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        RANGE_REQUEST = descriptor.findMessageTypeByName("RangeRequest");
+        START_ROW = RANGE_REQUEST.findFieldByNumber(1);
+        STOP_ROW = RANGE_REQUEST.findFieldByNumber(2);
+        BULK_COLUMN = RANGE_REQUEST.findFieldByNumber(3);
+        COMBINED_VIEW = RANGE_REQUEST.findFieldByNumber(4);
+
+        ROW = descriptor.findMessageTypeByName("Row");
+        ROW_KEY = ROW.findFieldByNumber(1);
+        SOURCE = ROW.findFieldByNumber(2);
+        VALUE = ROW.findFieldByNumber(3);
+        BULK_TIMESTAMP = ROW.findFieldByNumber(4);
+        REALTIME_TIMESTAMP = ROW.findFieldByNumber(5);
+
+        COMBINE_RESPONSE = descriptor.findMessageTypeByName("CombineResponse");
+        ROWS = COMBINE_RESPONSE.findFieldByNumber(1);
+        COMBINE_ROWS_READ = COMBINE_RESPONSE.findFieldByNumber(2);
+
+        CLEAN_RESPONSE = descriptor.findMessageTypeByName("CleanResponse");
+        CLEAN_ROWS_READ = CLEAN_RESPONSE.findFieldByNumber(1);
+        MUTATIONS = CLEAN_RESPONSE.findFieldByNumber(2);
+
+        SERVICE = descriptor.findServiceByName("CombineService");
+        COMBINE = SERVICE.findMethodByName("Combine");
+        CLEAN = SERVICE.findMethodByName("Clean");
+    }
+
+    private static FieldDescriptorProto.Builder field(String name, int number, FieldDescriptorProto.Type type) {
+        return FieldDescriptorProto.newBuilder().setName(name).setNumber(number).setType(type)
+                .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL);
+    }
+
+    /**
+     * Combines every row of the region within the requested range and returns
+     * one Row per row with data.
+     */
+    public abstract void combine(RpcController controller, Message request, RpcCallback<Message> done);
+
+    /**
+     * Settles every row of the region within the requested range and returns
+     * the number of rows read and mutations issued.
+     */
+    public abstract void clean(RpcController controller, Message request, RpcCallback<Message> done);
+
+    /**
+     * Client side, forwarding every call to channel.
+     */
+    public static CombineProtocol newStub(final RpcChannel channel) {
+        return new CombineProtocol() {
+            @Override
+            public void combine(RpcController controller, Message request, RpcCallback<Message> done) {
+                channel.callMethod(COMBINE, controller, request, DynamicMessage.getDefaultInstance(COMBINE_RESPONSE), done);
+            }
+
+            @Override
+            public void clean(RpcController controller, Message request, RpcCallback<Message> done) {
+                channel.callMethod(CLEAN, controller, request, DynamicMessage.getDefaultInstance(CLEAN_RESPONSE), done);
+            }
+        };
+    }
+
+    static Message rangeRequest(byte[] startRow, byte[] stopRow, byte[] bulkColumn, boolean combinedView) {
+        return DynamicMessage.newBuilder(RANGE_REQUEST)
+                .setField(START_ROW, ByteString.copyFrom(startRow))
+                .setField(STOP_ROW, ByteString.copyFrom(stopRow))
+                .setField(BULK_COLUMN, ByteString.copyFrom(bulkColumn))
+                .setField(COMBINED_VIEW, combinedView)
+                .build();
+    }
+
+    static byte[] getBytes(Message message, Descriptors.FieldDescriptor field) {
+        return ((ByteString) message.getField(field)).toByteArray();
+    }
+
+    static long getLong(Message message, Descriptors.FieldDescriptor field) {
+        return (Long) message.getField(field);
+    }
+
+    @Override
+    public Descriptors.ServiceDescriptor getDescriptorForType() {
+        return SERVICE;
+    }
+
+    @Override
+    public void callMethod(Descriptors.MethodDescriptor method, RpcController controller, Message request,
+                           RpcCallback<Message> done) {
+        if (method == COMBINE) {
+            combine(controller, request, done);
+        } else if (method == CLEAN) {
+            clean(controller, request, done);
+        } else {
+            throw new IllegalArgumentException("Unknown method " + method.getFullName());
+        }
+    }
+
+    @Override
+    public Message getRequestPrototype(Descriptors.MethodDescriptor method) {
+        return DynamicMessage.getDefaultInstance(RANGE_REQUEST);
+    }
+
+    @Override
+    public Message getResponsePrototype(Descriptors.MethodDescriptor method) {
+        if (method == COMBINE)
+            return DynamicMessage.getDefaultInstance(COMBINE_RESPONSE);
+        if (method == CLEAN)
+            return DynamicMessage.getDefaultInstance(CLEAN_RESPONSE);
+        throw new IllegalArgumentException("Unknown method " + method.getFullName());
+    }
+}
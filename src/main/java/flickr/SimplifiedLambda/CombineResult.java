@@ -0,0 +1,125 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.Cell;
+
+/**
+ * Immutable outcome of SimplifiedLambda.lookup(): the combined value, which
+ * column it came from and the timestamps of the cells that were compared.
+ *
+ * Misses are reported as the shared ABSENT instance and the "bulk newer than
+ * realtime" state as CONFLICT, so neither costs an exception. The value is
+ * only decoded when getValue() is first called.
+ */
+public final class CombineResult {
+    public enum Source {
+        BULK,
+        REALTIME,
+        // neither column has data
+        NONE,
+        // bulk is newer than realtime and the cleaner has not run yet; the
+        // value is the bulk one, which is what the cleaner will publish
+        CONFLICT
+    }
+
+    public static final long NO_TIMESTAMP = -1L;
+
+    public static final CombineResult ABSENT = new CombineResult(Source.NONE, null, NO_TIMESTAMP, NO_TIMESTAMP);
+
+    private final Source source;
+    private final Cell valueCell;
+    private final ValueCodec valueCodec;
+    private final long bulkTimestamp;
+    private final long realtimeTimestamp;
+    // decoded lazily; racing decodes produce equal strings
+    private String value;
+
+    CombineResult(Source source, String value, long bulkTimestamp, long realtimeTimestamp) {
+        this(source, null, null, bulkTimestamp, realtimeTimestamp);
+        this.value = value;
+    }
+
+    CombineResult(Source source, Cell valueCell, ValueCodec valueCodec, long bulkTimestamp, long realtimeTimestamp) {
+        this.source = source;
+        this.valueCell = valueCell;
+        this.valueCodec = valueCodec;
+        this.bulkTimestamp = bulkTimestamp;
+        this.realtimeTimestamp = realtimeTimestamp;
+    }
+
+    public Source getSource() {
+        return this.source;
+    }
+
+    /**
+     * True if the value is the settled answer for the key, i.e. the source is
+     * BULK or REALTIME.
+     */
+    public boolean isPresent() {
+        return this.source == Source.BULK || this.source == Source.REALTIME;
+    }
+
+    /**
+     * Returns the combined value, or null if the key is absent.
+     */
+    public String getValue() {
+        String res = this.value;
+        if (res == null && this.valueCell != null) {
+            res = this.valueCodec.decode(this.valueCell.getValueArray(), this.valueCell.getValueOffset(),
+                    this.valueCell.getValueLength());
+            this.value = res;
+        }
+        return res;
+    }
+
+    /**
+     * Size of the value as stored, or 0 if the key is absent.
+     */
+    public int getEncodedLength() {
+        if (this.valueCell != null)
+            return this.valueCell.getValueLength();
+        return this.value == null ? 0 : this.value.length();
+    }
+
+    /**
+     * Timestamp of the bulk cell, or NO_TIMESTAMP if it was not read.
+     */
+    public long getBulkTimestamp() {
+        return this.bulkTimestamp;
+    }
+
+    /**
+     * Timestamp of the realtime cell, or NO_TIMESTAMP if there is none.
+     */
+    public long getRealtimeTimestamp() {
+        return this.realtimeTimestamp;
+    }
+
+    /**
+     * Timestamp of the cell the value came from.
+     */
+    public long getTimestamp() {
+        return this.source == Source.REALTIME ? this.realtimeTimestamp : this.bulkTimestamp;
+    }
+
+    /**
+     * How far realtime is ahead of bulk. A negative lead means the realtime
+     * cell is stale and the cleaner will drop it. Returns 0 unless both cells
+     * were read.
+     */
+    public long getRealtimeLead() {
+        if (this.bulkTimestamp == NO_TIMESTAMP || this.realtimeTimestamp == NO_TIMESTAMP)
+            return 0;
+        return this.realtimeTimestamp - this.bulkTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        String value = getValue();
+        return this.source + "(" + (value == null ? "" : value)
+                + ", bulk@" + this.bulkTimestamp + ", realtime@" + this.realtimeTimestamp + ")";
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Streams combined rows out of a single table scan, see
+ * SimplifiedLambda.scanCombined(). Rows without data are skipped; CONFLICT
+ * rows are returned so callers can decide what to serve. Must be closed.
+ */
+public class CombineScanner implements Closeable, Iterable<CombinedRow> {
+    private final SimplifiedLambda simplifiedLambda;
+    private final ResultScanner resultScanner;
+    private final byte[] bulkColumn;
+
+    CombineScanner(SimplifiedLambda simplifiedLambda, ResultScanner resultScanner, byte[] bulkColumn) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.resultScanner = resultScanner;
+        this.bulkColumn = bulkColumn;
+    }
+
+    /**
+     * Returns the next row, or null once the range is exhausted.
+     */
+    public CombinedRow next() throws IOException {
+        Result result;
+        while ((result = this.resultScanner.next()) != null) {
+            if (result.isEmpty())
+                continue;
+            CombineResult combined = this.simplifiedLambda.resolve(
+                    result.getColumnLatestCell(SimplifiedLambda.FAMILY, this.bulkColumn),
+                    result.getColumnLatestCell(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN));
+            if (combined.getSource() != CombineResult.Source.NONE)
+                return new CombinedRow(result.getRow(), combined);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        this.resultScanner.close();
+    }
+
+    @Override
+    public Iterator<CombinedRow> iterator() {
+        return new ScannerIterator<CombinedRow>() {
+            @Override
+            CombinedRow fetch() throws IOException {
+                return CombineScanner.this.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,44 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * One row streamed back by a CombineScanner.
+ */
+public class CombinedRow {
+    private final byte[] rowKey;
+    private final CombineResult result;
+
+    CombinedRow(byte[] rowKey, CombineResult result) {
+        this.rowKey = rowKey;
+        this.result = result;
+    }
+
+    public byte[] getRowKey() {
+        return this.rowKey;
+    }
+
+    public String getKey() {
+        return Bytes.toString(this.rowKey);
+    }
+
+    /**
+     * The key as a numeric id, for rows written with the long-keyed methods.
+     */
+    public long getLongKey() {
+        return Bytes.toLong(this.rowKey);
+    }
+
+    public CombineResult getResult() {
+        return this.result;
+    }
+
+    @Override
+    public String toString() {
+        return Bytes.toStringBinary(this.rowKey) + ": " + this.result;
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * CleanerCheckpoint kept in a local properties file. Saves go to a temporary
+ * file that is synced and renamed over the old one, so a crash leaves either
+ * the previous or the new checkpoint.
+ */
+public class FileCleanerCheckpoint implements CleanerCheckpoint {
+    private final File file;
+
+    public FileCleanerCheckpoint(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public Map<String, byte[]> load() throws IOException {
+        Map<String, byte[]> res = new TreeMap<>();
+        if (!this.file.exists())
+            return res;
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(this.file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        for (String range : properties.stringPropertyNames()) {
+            res.put(range, Bytes.toBytesBinary(properties.getProperty(range)));
+        }
+        return res;
+    }
+
+    @Override
+    public void save(Map<String, byte[]> lastCompletedRows) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, byte[]> entry : lastCompletedRows.entrySet()) {
+            properties.setProperty(entry.getKey(), Bytes.toStringBinary(entry.getValue()));
+        }
+        File tmp = new File(this.file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, "SimplifiedLambda cleaner checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void clear() throws IOException {
+        Files.deleteIfExists(this.file.toPath());
+    }
+}
@@ -0,0 +1,493 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects the keys that take a large share of combine and realtime push
+ * traffic, and gives them dedicated handling; see
+ * SimplifiedLambda.setHotKeys() and ServingCache.
+ *
+ * Reads and writes are counted in Space-Saving sketches per time window,
+ * striped by key, and only a sample of a hot key's occurrences is counted;
+ * see setHotSampling(). A key is hot once its guaranteed count (the
+ * sketch's estimate minus its error) in the current or the last completed
+ * window reaches minRate per second, and stays hot for the window after the
+ * one in which it cooled down. At most capacity keys are hot at a time. For
+ * hot keys:
+ *
+ * <ul>
+ *     <li>concurrent lookups share one table read, issued after all of
+ *     them arrived,</li>
+ *     <li>a ServingCache never evicts them,</li>
+ *     <li>realtime writes arriving while a write of the same key is in
+ *     flight collapse into one Put of the latest value, which every one of
+ *     them waits for.</li>
+ * </ul>
+ */
+public class HotKeys {
+    /**
+     * A heavy hitter of the last completed window.
+     */
+    public static final class HotKey {
+        private final byte[] rowKey;
+        private final long count;
+        private final long error;
+        private final double ratePerSecond;
+
+        HotKey(byte[] rowKey, long count, long error, double ratePerSecond) {
+            this.rowKey = rowKey;
+            this.count = count;
+            this.error = error;
+            this.ratePerSecond = ratePerSecond;
+        }
+
+        public byte[] getRowKey() {
+            return this.rowKey;
+        }
+
+        /**
+         * Estimated occurrences in the window, at most getError() too high.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getError() {
+            return this.error;
+        }
+
+        public double getRatePerSecond() {
+            return this.ratePerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.1f/s (+-%d)", Bytes.toStringBinary(this.rowKey), this.ratePerSecond, this.error);
+        }
+    }
+
+    interface RowReader {
+        CombineResult read(byte[] rowKey) throws IOException;
+    }
+
+    interface RowWriter {
+        void write(byte[] rowKey, String value) throws IOException;
+    }
+
+    /**
+     * Reads of one hot key; guarded by itself.
+     */
+    private static final class ReadSlot {
+        long issued = 0;
+        // callers up to this ticket are answered by lastResult
+        long completed = 0;
+        CombineResult lastResult;
+        boolean inFlight = false;
+        // calls between taking a ticket and returning
+        int callers = 0;
+        // no longer in readSlots, readers must get a new one
+        boolean retired = false;
+    }
+
+    /**
+     * Realtime writes of one hot key; guarded by itself.
+     */
+    private static final class WriteSlot {
+        long issued = 0;
+        long written = 0;
+        String pending;
+        boolean inFlight = false;
+        // no longer in writeSlots, writers must get a new one
+        boolean retired = false;
+    }
+
+    /**
+     * Sketches of the keys hashing to one stripe; guarded by itself.
+     */
+    private final class Stripe {
+        SpaceSavingSketch current = new SpaceSavingSketch(HotKeys.this.capacity);
+        SpaceSavingSketch previous = new SpaceSavingSketch(HotKeys.this.capacity);
+    }
+
+    /**
+     * Sketches of one traffic type, striped by key so that concurrent
+     * callers rarely share a lock.
+     */
+    private final class Traffic {
+        final Stripe[] stripes = new Stripe[STRIPES];
+        // keys hot in the previous window plus those that crossed the threshold since,
+        // at most capacity; replaced on rotation, read without a lock
+        volatile Set<ByteBuffer> hot = newHotSet();
+
+        Traffic() {
+            for (int i = 0; i < STRIPES; i++) {
+                this.stripes[i] = new Stripe();
+            }
+        }
+
+        boolean record(byte[] rowKey) {
+            ByteBuffer key = ByteBuffer.wrap(rowKey);
+            long weight = 1;
+            int sampling = HotKeys.this.hotSampling;
+            if (this.hot.contains(key)) {
+                // already hot, count a sample only
+                if (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0)
+                    return true;
+                weight = sampling;
+            }
+            Stripe stripe = this.stripes[(Bytes.hashCode(rowKey) & Integer.MAX_VALUE) % STRIPES];
+            long count;
+            synchronized (stripe) {
+                // the guaranteed count, an evicted key's error must not make a new key hot
+                count = stripe.current.offer(rowKey, weight);
+            }
+            if (count < HotKeys.this.minCount)
+                return this.hot.contains(key);
+            synchronized (this) {
+                Set<ByteBuffer> hot = this.hot;
+                if (hot.size() < HotKeys.this.capacity)
+                    hot.add(key);
+                return hot.contains(key);
+            }
+        }
+
+        // call with the rotation lock held
+        void rotate(boolean skippedWindow) {
+            List<SpaceSavingSketch.Counter> counters = new ArrayList<>();
+            for (Stripe stripe : this.stripes) {
+                synchronized (stripe) {
+                    stripe.previous = skippedWindow ? new SpaceSavingSketch(HotKeys.this.capacity) : stripe.current;
+                    stripe.current = new SpaceSavingSketch(HotKeys.this.capacity);
+                    // no longer updated once it is the previous sketch
+                    counters.addAll(stripe.previous.top(HotKeys.this.capacity));
+                }
+            }
+            Collections.sort(counters, BY_GUARANTEED_COUNT);
+            Set<ByteBuffer> hot = newHotSet();
+            for (SpaceSavingSketch.Counter counter : counters) {
+                if (hot.size() == HotKeys.this.capacity || counter.count - counter.error < HotKeys.this.minCount)
+                    break;
+                hot.add(counter.key);
+            }
+            synchronized (this) {
+                this.hot = hot;
+            }
+        }
+
+        List<HotKey> top(int k) {
+            List<SpaceSavingSketch.Counter> counters = new ArrayList<>();
+            for (Stripe stripe : this.stripes) {
+                synchronized (stripe) {
+                    counters.addAll(stripe.previous.top(k));
+                }
+            }
+            Collections.sort(counters, Collections.reverseOrder());
+            List<HotKey> res = new ArrayList<>();
+            double seconds = HotKeys.this.windowMillis / 1000.0;
+            for (SpaceSavingSketch.Counter counter : counters.subList(0, Math.min(k, counters.size()))) {
+                res.add(new HotKey(Bytes.getBytes(counter.key), counter.count, counter.error, counter.count / seconds));
+            }
+            return res;
+        }
+    }
+
+    private static final int STRIPES = 16;
+
+    private static final Comparator<SpaceSavingSketch.Counter> BY_GUARANTEED_COUNT
+            = new Comparator<SpaceSavingSketch.Counter>() {
+        @Override
+        public int compare(SpaceSavingSketch.Counter a, SpaceSavingSketch.Counter b) {
+            return Long.compare(b.count - b.error, a.count - a.error);
+        }
+    };
+
+    private static Set<ByteBuffer> newHotSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+    }
+
+    private final int capacity;
+    private final long windowMillis;
+    private final long minCount;
+    private final Traffic reads;
+    private final Traffic writes;
+    private volatile int hotSampling = 8;
+    private final Object rotationLock = new Object();
+    private volatile long windowEnd;
+
+    private final ConcurrentHashMap<ByteBuffer, ReadSlot> readSlots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteBuffer, WriteSlot> writeSlots = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedReads = new AtomicLong();
+    private final AtomicLong collapsedWrites = new AtomicLong();
+
+    /**
+     * capacity is the number of keys tracked per stripe; keys above
+     * 1/capacity of their stripe's traffic in a window are always caught.
+     */
+    public HotKeys(int capacity, long window, TimeUnit unit, double minRatePerSecond) {
+        this.capacity = capacity;
+        this.windowMillis = Math.max(1, unit.toMillis(window));
+        this.minCount = Math.max(1, (long) Math.ceil(minRatePerSecond * this.windowMillis / 1000.0));
+        this.reads = new Traffic();
+        this.writes = new Traffic();
+        this.windowEnd = System.currentTimeMillis() + this.windowMillis;
+    }
+
+    /**
+     * Counts only one in hotSampling reads or writes of a key that is
+     * already hot, with a weight of hotSampling, as hot keys are the ones
+     * whose counting contends most. 1 counts every occurrence exactly.
+     */
+    public void setHotSampling(int hotSampling) {
+        this.hotSampling = Math.max(1, hotSampling);
+    }
+
+    private void maybeRotate() {
+        long now = System.currentTimeMillis();
+        if (now < this.windowEnd)
+            return;
+        synchronized (this.rotationLock) {
+            long windowEnd = this.windowEnd;
+            if (now < windowEnd)
+                return;
+            // an idle stretch of more than a window leaves nothing hot
+            boolean skippedWindow = now >= windowEnd + this.windowMillis;
+            this.reads.rotate(skippedWindow);
+            this.writes.rotate(skippedWindow);
+            this.windowEnd = now - (now - windowEnd) % this.windowMillis + this.windowMillis;
+        }
+    }
+
+    /**
+     * Counts a read of rowKey and returns whether the key is hot.
+     */
+    public boolean recordRead(byte[] rowKey) {
+        maybeRotate();
+        return this.reads.record(rowKey);
+    }
+
+    /**
+     * Counts a realtime write of rowKey and returns whether the key is hot.
+     */
+    public boolean recordWrite(byte[] rowKey) {
+        maybeRotate();
+        return this.writes.record(rowKey);
+    }
+
+    /**
+     * Whether rowKey is currently hot for reads, without counting it.
+     */
+    public boolean isHotRead(byte[] rowKey) {
+        return this.reads.hot.contains(ByteBuffer.wrap(rowKey));
+    }
+
+    public boolean isHotWrite(byte[] rowKey) {
+        return this.writes.hot.contains(ByteBuffer.wrap(rowKey));
+    }
+
+    /**
+     * Reads rowKey, sharing the result with concurrent calls for the same
+     * key instead of issuing another read. Only a read issued after a call
+     * arrived is shared with it, so a lookup never returns a value older
+     * than a write acknowledged before it started.
+     */
+    CombineResult coalesceRead(byte[] rowKey, RowReader reader) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        ReadSlot slot;
+        long ticket;
+        while (true) {
+            slot = this.readSlots.get(key);
+            if (slot == null) {
+                ReadSlot created = new ReadSlot();
+                slot = this.readSlots.putIfAbsent(key, created);
+                if (slot == null)
+                    slot = created;
+            }
+            synchronized (slot) {
+                if (slot.retired)
+                    continue;
+                ticket = ++slot.issued;
+                slot.callers++;
+                break;
+            }
+        }
+
+        try {
+            return readShared(rowKey, slot, ticket, reader);
+        } finally {
+            synchronized (slot) {
+                if (--slot.callers == 0) {
+                    slot.retired = true;
+                    this.readSlots.remove(key, slot);
+                }
+            }
+        }
+    }
+
+    private CombineResult readShared(byte[] rowKey, ReadSlot slot, long ticket, RowReader reader)
+            throws IOException {
+        while (true) {
+            long covering;
+            synchronized (slot) {
+                // a read in flight may have been issued before this call arrived,
+                // wait for it and for the one after
+                while (slot.inFlight && slot.completed < ticket) {
+                    try {
+                        slot.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a coalesced read");
+                    }
+                }
+                if (slot.completed >= ticket) {
+                    this.coalescedReads.incrementAndGet();
+                    return slot.lastResult;
+                }
+                // lead the next read for everyone who has arrived so far; after
+                // a failed read a waiting follower takes over
+                covering = slot.issued;
+                slot.inFlight = true;
+            }
+            CombineResult res = null;
+            boolean read = false;
+            try {
+                res = reader.read(rowKey);
+                read = true;
+            } finally {
+                synchronized (slot) {
+                    slot.inFlight = false;
+                    if (read) {
+                        slot.completed = covering;
+                        slot.lastResult = res;
+                    }
+                    slot.notifyAll();
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Writes value unless a newer write of the same key supersedes it while
+     * an earlier one is in flight. Returns once a write at least as new as
+     * this one has succeeded.
+     */
+    void collapseWrite(byte[] rowKey, String value, RowWriter writer) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        WriteSlot slot;
+        long ticket;
+        while (true) {
+            slot = this.writeSlots.get(key);
+            if (slot == null) {
+                WriteSlot created = new WriteSlot();
+                slot = this.writeSlots.putIfAbsent(key, created);
+                if (slot == null)
+                    slot = created;
+            }
+            synchronized (slot) {
+                if (slot.retired)
+                    continue;
+                ticket = ++slot.issued;
+                slot.pending = value;
+                if (slot.inFlight)
+                    this.collapsedWrites.incrementAndGet();
+                break;
+            }
+        }
+
+        while (true) {
+            long writing;
+            String latest;
+            synchronized (slot) {
+                while (slot.inFlight && slot.written < ticket) {
+                    try {
+                        slot.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a collapsed write");
+                    }
+                }
+                if (slot.written >= ticket) {
+                    if (!slot.inFlight && slot.written == slot.issued) {
+                        slot.retired = true;
+                        slot.pending = null;
+                        this.writeSlots.remove(key, slot);
+                    }
+                    return;
+                }
+                // lead the next write, with the newest value; after a failed
+                // write a waiting follower takes over
+                writing = slot.issued;
+                latest = slot.pending;
+                slot.inFlight = true;
+            }
+            boolean written = false;
+            try {
+                writer.write(rowKey, latest);
+                written = true;
+            } finally {
+                synchronized (slot) {
+                    slot.inFlight = false;
+                    if (written)
+                        slot.written = writing;
+                    slot.notifyAll();
+                }
+            }
+        }
+    }
+
+    public long getCoalescedReads() {
+        return this.coalescedReads.get();
+    }
+
+    public long getCollapsedWrites() {
+        return this.collapsedWrites.get();
+    }
+
+    /**
+     * The k most read keys of the last completed window.
+     */
+    public List<HotKey> getTopReads(int k) {
+        maybeRotate();
+        return this.reads.top(k);
+    }
+
+    /**
+     * The k most written keys of the last completed window.
+     */
+    public List<HotKey> getTopWrites(int k) {
+        maybeRotate();
+        return this.writes.top(k);
+    }
+
+    public String dumpTopKeys(int k) {
+        StringBuilder res = new StringBuilder();
+        res.append("reads:\n");
+        for (HotKey hotKey : getTopReads(k)) {
+            res.append("    ").append(hotKey).append('\n');
+        }
+        res.append("realtime writes:\n");
+        for (HotKey hotKey : getTopWrites(k)) {
+            res.append("    ").append(hotKey).append('\n');
+        }
+        res.append("coalesced reads: ").append(getCoalescedReads())
+                .append(", collapsed writes: ").append(getCollapsedWrites()).append('\n');
+        return res.toString();
+    }
+}
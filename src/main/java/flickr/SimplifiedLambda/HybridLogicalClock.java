@@ -0,0 +1,114 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Hybrid logical clock for cell timestamps, see SimplifiedLambda.setClock().
+ *
+ * A timestamp packs the wall clock in milliseconds (upper 43 bits), a
+ * logical counter (12 bits) and the writer's node id (8 bits). Every
+ * timestamp a clock returns is larger than all the ones it returned or
+ * observed before, even within one millisecond or when the wall clock steps
+ * back, and writers with distinct node ids never collide. Above 4096 writes
+ * per millisecond the counter carries into the millisecond field, so the
+ * clock runs slightly ahead until the load drops.
+ *
+ * Observing the timestamps of cells that were read orders a write after
+ * everything its writer has seen, regardless of clock skew between
+ * processes. Observed timestamps further ahead of the local wall clock than
+ * maxOffset are ignored, so one broken clock cannot drag all others along.
+ *
+ * Timestamps are not milliseconds: use fromMillis() and toMillis() to
+ * convert, e.g. for lookupAsOf(). Family TTLs do not work on such cells.
+ */
+public class HybridLogicalClock {
+    private static Logger LOG = Logger.getLogger(HybridLogicalClock.class.getName());
+
+    static final int NODE_BITS = 8;
+    static final int LOGICAL_BITS = 12;
+    static final int MILLIS_SHIFT = NODE_BITS + LOGICAL_BITS;
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    private final int nodeId;
+    private final long maxOffsetMillis;
+    // millis and logical counter of the last timestamp, without the node id
+    private final AtomicLong last = new AtomicLong();
+    private final AtomicLong rejectedObservations = new AtomicLong();
+
+    public HybridLogicalClock(int nodeId) {
+        this(nodeId, 500, TimeUnit.MILLISECONDS);
+    }
+
+    public HybridLogicalClock(int nodeId, long maxOffset, TimeUnit unit) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID)
+            throw new IllegalArgumentException("Node id must be within 0 - " + MAX_NODE_ID + ": " + nodeId);
+        this.nodeId = nodeId;
+        this.maxOffsetMillis = unit.toMillis(maxOffset);
+    }
+
+    public static long fromMillis(long millis) {
+        return millis << MILLIS_SHIFT;
+    }
+
+    public static long toMillis(long timestamp) {
+        return timestamp >>> MILLIS_SHIFT;
+    }
+
+    public int getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * Wall clock in milliseconds; overridden by tests to simulate skew.
+     */
+    protected long physicalMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns a timestamp larger than every timestamp returned or observed
+     * so far.
+     */
+    public long next() {
+        long physical = physicalMillis() << LOGICAL_BITS;
+        while (true) {
+            long previous = this.last.get();
+            long next = physical > previous ? physical : previous + 1;
+            if (this.last.compareAndSet(previous, next))
+                return (next << NODE_BITS) | this.nodeId;
+        }
+    }
+
+    /**
+     * Moves the clock past a timestamp read from the table or received from
+     * another writer.
+     */
+    public void observe(long timestamp) {
+        long observed = timestamp >>> NODE_BITS;
+        long previous = this.last.get();
+        if (observed <= previous)
+            return;
+        if (toMillis(timestamp) - physicalMillis() > this.maxOffsetMillis) {
+            if (this.rejectedObservations.getAndIncrement() == 0)
+                LOG.warning("Ignoring timestamp " + toMillis(timestamp) + "ms, more than " + this.maxOffsetMillis
+                        + "ms ahead of the local clock");
+            return;
+        }
+        while (observed > previous && !this.last.compareAndSet(previous, observed)) {
+            previous = this.last.get();
+        }
+    }
+
+    /**
+     * Number of observed timestamps ignored for being too far ahead.
+     */
+    public long getRejectedObservations() {
+        return this.rejectedObservations.get();
+    }
+}
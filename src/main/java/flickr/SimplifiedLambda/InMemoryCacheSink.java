@@ -0,0 +1,47 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * CacheSink that keeps everything on the heap; used by tests and the demo.
+ */
+public class InMemoryCacheSink implements CacheSink {
+    private final NavigableMap<byte[], String> values = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    private long puts = 0;
+    private long invalidations = 0;
+
+    @Override
+    public synchronized void put(byte[] rowKey, String combinedValue) {
+        this.values.put(rowKey, combinedValue);
+        this.puts++;
+    }
+
+    @Override
+    public synchronized void invalidate(byte[] rowKey) {
+        this.values.remove(rowKey);
+        this.invalidations++;
+    }
+
+    public synchronized String get(String key) {
+        return this.values.get(Bytes.toBytes(key));
+    }
+
+    public synchronized int size() {
+        return this.values.size();
+    }
+
+    public synchronized long getPutCount() {
+        return this.puts;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return this.invalidations;
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one table between serving reads and background traffic (cleaner,
+ * exports). Serving calls are never delayed, only timed. Background calls
+ * draw from a token bucket whose rate adapts to the serving latency:
+ * every interval the rate is halved if the mean serving latency was above
+ * the target, and raised by a fixed step otherwise (AIMD).
+ *
+ * Tables are attached through ScheduledHTable.
+ */
+public class IoScheduler {
+    public enum Priority {
+        SERVING,
+        BACKGROUND
+    }
+
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final long targetServingLatencyMicros;
+    private final double minBackgroundRate;
+    private final double maxBackgroundRate;
+    private final TokenBucket backgroundLimiter;
+
+    // guarded by this
+    private long servingNanos = 0;
+    private long servingCalls = 0;
+    private long lastAdjustNanos = System.nanoTime();
+    private long lastServingLatencyMicros = 0;
+
+    /**
+     * The background rate, in calls per second, stays within
+     * [minBackgroundRate, maxBackgroundRate]. It starts at the minimum so a
+     * cleaner starting under load does not cause a latency spike.
+     */
+    public IoScheduler(long targetServingLatencyMicros, double minBackgroundRate, double maxBackgroundRate) {
+        if (minBackgroundRate <= 0 || maxBackgroundRate < minBackgroundRate)
+            throw new IllegalArgumentException("Invalid background rate range: " + minBackgroundRate + " - " + maxBackgroundRate);
+        this.targetServingLatencyMicros = targetServingLatencyMicros;
+        this.minBackgroundRate = minBackgroundRate;
+        this.maxBackgroundRate = maxBackgroundRate;
+        this.backgroundLimiter = new TokenBucket(minBackgroundRate);
+    }
+
+    /**
+     * Marks the start of a serving call; pass the result to endServing().
+     */
+    public long beginServing() {
+        return System.nanoTime();
+    }
+
+    public void endServing(long startNanos) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            this.servingNanos += now - startNanos;
+            this.servingCalls++;
+            maybeAdjust(now);
+        }
+    }
+
+    /**
+     * Blocks until the background class may issue that many more calls.
+     */
+    public void acquireBackground(int calls) throws InterruptedIOException {
+        synchronized (this) {
+            maybeAdjust(System.nanoTime());
+        }
+        try {
+            this.backgroundLimiter.acquire(calls);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background I/O budget");
+        }
+    }
+
+    public double getBackgroundRate() {
+        return this.backgroundLimiter.getRate();
+    }
+
+    /**
+     * Mean serving latency over the last completed interval.
+     */
+    public synchronized long getServingLatencyMicros() {
+        return this.lastServingLatencyMicros;
+    }
+
+    private void maybeAdjust(long now) {
+        if (now - this.lastAdjustNanos < ADJUST_INTERVAL_NANOS)
+            return;
+        double rate = this.backgroundLimiter.getRate();
+        // an interval without serving calls counts as healthy
+        long meanMicros = this.servingCalls == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.servingNanos / this.servingCalls);
+        if (meanMicros > this.targetServingLatencyMicros) {
+            rate = Math.max(this.minBackgroundRate, rate / 2);
+        } else {
+            rate = Math.min(this.maxBackgroundRate, rate + this.maxBackgroundRate / 50);
+        }
+        this.backgroundLimiter.setRate(rate);
+        this.lastServingLatencyMicros = meanMicros;
+        this.servingNanos = 0;
+        this.servingCalls = 0;
+        this.lastAdjustNanos = now;
+    }
+}
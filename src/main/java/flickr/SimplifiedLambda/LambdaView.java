@@ -0,0 +1,86 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * One independent pair of bulk and realtime streams stored in the lambda
+ * table, e.g. the output of one classifier. A view is either a column family
+ * of its own or a pair of qualifiers in a shared family; see
+ * SimplifiedLambda.addView().
+ */
+public final class LambdaView {
+    /**
+     * The view every SimplifiedLambda has, in FAMILY with the BULK and
+     * REALTIME qualifiers.
+     */
+    public static final LambdaView DEFAULT = new LambdaView("default", SimplifiedLambda.FAMILY,
+            SimplifiedLambda.BULK_COLUMN, SimplifiedLambda.REALTIME_COLUMN);
+
+    private final String name;
+    private final byte[] family;
+    private final byte[] bulkColumn;
+    private final byte[] realtimeColumn;
+
+    public LambdaView(String name, byte[] family, byte[] bulkColumn, byte[] realtimeColumn) {
+        if (Bytes.equals(bulkColumn, realtimeColumn))
+            throw new IllegalArgumentException("View " + name + " needs distinct bulk and realtime columns");
+        this.name = name;
+        this.family = family;
+        this.bulkColumn = bulkColumn;
+        this.realtimeColumn = realtimeColumn;
+    }
+
+    /**
+     * A view with a family of its own, using the BULK and REALTIME qualifiers.
+     */
+    public static LambdaView ofFamily(String name, String family) {
+        return new LambdaView(name, Bytes.toBytes(family), SimplifiedLambda.BULK_COLUMN,
+                SimplifiedLambda.REALTIME_COLUMN);
+    }
+
+    /**
+     * A view in a shared family, as the qualifiers name + "_BULK" and
+     * name + "_REALTIME".
+     */
+    public static LambdaView ofQualifiers(String name, String family) {
+        return new LambdaView(name, Bytes.toBytes(family), Bytes.toBytes(name + "_BULK"),
+                Bytes.toBytes(name + "_REALTIME"));
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public byte[] getFamily() {
+        return this.family;
+    }
+
+    public byte[] getBulkColumn() {
+        return this.bulkColumn;
+    }
+
+    public byte[] getRealtimeColumn() {
+        return this.realtimeColumn;
+    }
+
+    /**
+     * Whether the two views share a column.
+     */
+    boolean overlaps(LambdaView other) {
+        if (!Bytes.equals(this.family, other.family))
+            return false;
+        return Bytes.equals(this.bulkColumn, other.bulkColumn) || Bytes.equals(this.bulkColumn, other.realtimeColumn)
+                || Bytes.equals(this.realtimeColumn, other.bulkColumn)
+                || Bytes.equals(this.realtimeColumn, other.realtimeColumn);
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (" + Bytes.toString(this.family) + ":" + Bytes.toString(this.bulkColumn) + ", "
+                + Bytes.toString(this.family) + ":" + Bytes.toString(this.realtimeColumn) + ")";
+    }
+}
@@ -0,0 +1,106 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds with log-linear buckets:
+ * exact below 32us, then 16 buckets per power of two, i.e. percentiles are
+ * accurate to about 6%.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int MAX_SHIFT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+        this.counts.incrementAndGet(bucketOf(micros));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(micros);
+        long previous;
+        while ((previous = this.max.get()) < micros && !this.max.compareAndSet(previous, micros)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getMaxMicros() {
+        return this.max.get();
+    }
+
+    public double getMeanMicros() {
+        long n = this.count.get();
+        return n == 0 ? 0 : (double) this.sum.get() / n;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile
+     * (0 - 100), or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long n = this.count.get();
+        if (n == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+            if (seen >= target)
+                return Math.min(lowerBound(i + 1) - 1, getMaxMicros());
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Adds every sample of other to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < this.counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c > 0)
+                this.counts.addAndGet(i, c);
+        }
+        this.count.addAndGet(other.count.get());
+        this.sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long previous;
+        while ((previous = this.max.get()) < otherMax && !this.max.compareAndSet(previous, otherMax)) {
+            // retry
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.0fus p50=%dus p95=%dus p99=%dus p99.9=%dus max=%dus", getCount(),
+                getMeanMicros(), getPercentile(50), getPercentile(95), getPercentile(99), getPercentile(99.9),
+                getMaxMicros());
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < 2 * SUB_BUCKETS)
+            return (int) micros;
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(micros) - 4, MAX_SHIFT);
+        int sub = (int) Math.min(micros >>> shift, 2 * SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+}
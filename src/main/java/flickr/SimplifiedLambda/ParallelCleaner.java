@@ -0,0 +1,205 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs SimplifiedLambda's cleaner over a key range on a ForkJoinPool,
+ * splitting where the rows actually are instead of into fixed ranges.
+ *
+ * A task scans its range and cleans up to maxRowsPerTask rows. If rows are
+ * left, the rest of the range is split into two tasks, which idle workers
+ * steal. The split point is the midpoint of the rest, halved with one-row
+ * probe scans while the upper half is empty. Sparse ranges are thus cleaned
+ * by a single scan, while dense ones keep being split until every worker
+ * has a share. Like ResumableCleaner, a pass does not rebuild the presence
+ * filter.
+ */
+public class ParallelCleaner implements AutoCloseable {
+    private final SimplifiedLambda simplifiedLambda;
+    private final ForkJoinPool pool;
+    private int maxRowsPerTask = 1000;
+    private int scannerCaching = 100;
+    private final AtomicLong tasks = new AtomicLong();
+
+    public ParallelCleaner(SimplifiedLambda simplifiedLambda, int parallelism) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public void setMaxRowsPerTask(int maxRowsPerTask) {
+        this.maxRowsPerTask = maxRowsPerTask;
+    }
+
+    public void setScannerCaching(int scannerCaching) {
+        this.scannerCaching = scannerCaching;
+    }
+
+    /**
+     * Cleans every row and returns the number of rows cleaned.
+     */
+    public long run() throws IOException {
+        return run(HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+    }
+
+    /**
+     * Cleans the rows in [startRow, stopRow) and returns their number. Empty
+     * start or stop rows leave that end open.
+     */
+    public long run(byte[] startRow, byte[] stopRow) throws IOException {
+        try {
+            return this.pool.invoke(new CleanRange(startRow, stopRow));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Number of range tasks run so far, a measure of how far the key space
+     * had to be split.
+     */
+    public long getTaskCount() {
+        return this.tasks.get();
+    }
+
+    @Override
+    public void close() {
+        this.pool.shutdown();
+    }
+
+    /**
+     * Midpoint of (afterRow, stopRow), or null if there is no row strictly
+     * in between. An open stopRow is taken as the largest key as long as
+     * afterRow.
+     */
+    static byte[] midpoint(byte[] afterRow, byte[] stopRow) {
+        byte[] upper = stopRow;
+        if (upper.length == 0) {
+            upper = new byte[Math.max(1, afterRow.length)];
+            Arrays.fill(upper, (byte) 0xff);
+        }
+        if (Bytes.compareTo(afterRow, upper) >= 0)
+            return null;
+        byte[][] split = Bytes.split(afterRow, upper, 1);
+        if (split == null)
+            return null;
+        byte[] mid = split[1];
+        if (Bytes.compareTo(mid, afterRow) <= 0 || (stopRow.length > 0 && Bytes.compareTo(mid, stopRow) >= 0))
+            return null;
+        return mid;
+    }
+
+    private final class CleanRange extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] startRow;
+        private final byte[] stopRow;
+
+        CleanRange(byte[] startRow, byte[] stopRow) {
+            this.startRow = startRow;
+            this.stopRow = stopRow;
+        }
+
+        @Override
+        protected Long compute() {
+            ParallelCleaner.this.tasks.incrementAndGet();
+            try {
+                return cleanRange();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private long cleanRange() throws IOException {
+            int maxRows = ParallelCleaner.this.maxRowsPerTask;
+            byte[] startRow = this.startRow;
+            long rows = 0;
+            while (true) {
+                Scan scan = new Scan(startRow, this.stopRow);
+                ParallelCleaner.this.simplifiedLambda.addViewFamilies(scan);
+                scan.setCaching(Math.min(maxRows, ParallelCleaner.this.scannerCaching));
+                byte[] lastRow = null;
+                boolean more = false;
+                int scanned = 0;
+                ResultScanner resultScanner = ParallelCleaner.this.simplifiedLambda.getBackgroundTable().getScanner(scan);
+                try {
+                    Result result;
+                    while ((result = resultScanner.next()) != null) {
+                        if (scanned == maxRows) {
+                            more = true;
+                            break;
+                        }
+                        scanned++;
+                        lastRow = result.getRow();
+                        if (result.isEmpty())
+                            continue;
+                        ParallelCleaner.this.simplifiedLambda.cleanRow(result);
+                        rows++;
+                    }
+                } finally {
+                    resultScanner.close();
+                }
+                if (!more)
+                    return rows;
+
+                // keys are rarely spread over the whole key space, narrow the
+                // split point down until there are rows on both sides
+                byte[] upper = this.stopRow;
+                byte[] mid = midpoint(lastRow, upper);
+                while (mid != null && !hasRows(mid, upper)) {
+                    upper = mid;
+                    mid = midpoint(lastRow, upper);
+                }
+                // the row right after lastRow, where the rest of the range starts
+                startRow = Bytes.add(lastRow, new byte[1]);
+                if (mid == null || Bytes.compareTo(mid, startRow) <= 0)
+                    continue; // too narrow to split, keep scanning here
+                CleanRange right = new CleanRange(mid, this.stopRow);
+                right.fork();
+                CleanRange left = new CleanRange(startRow, mid);
+                long leftRows;
+                boolean completed = false;
+                try {
+                    leftRows = left.compute();
+                    completed = true;
+                } finally {
+                    // no half may keep cleaning after run() has failed
+                    if (!completed && !right.tryUnfork())
+                        right.quietlyJoin();
+                }
+                return rows + leftRows + right.join();
+            }
+        }
+
+        /**
+         * Whether [startRow, stopRow) holds a row, with a one-row scan.
+         */
+        private boolean hasRows(byte[] startRow, byte[] stopRow) throws IOException {
+            Scan scan = new Scan(startRow, stopRow);
+            ParallelCleaner.this.simplifiedLambda.addViewFamilies(scan);
+            scan.setCaching(1);
+            scan.setFilter(new FirstKeyOnlyFilter());
+            ResultScanner resultScanner = ParallelCleaner.this.simplifiedLambda.getBackgroundTable().getScanner(scan);
+            try {
+                return resultScanner.next() != null;
+            } finally {
+                resultScanner.close();
+            }
+        }
+    }
+}
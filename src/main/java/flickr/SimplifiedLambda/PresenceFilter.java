@@ -0,0 +1,76 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hadoop.hbase.util.MurmurHash3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over row keys. mightContain() never returns false for a key
+ * that was added, so a false answer is a definite miss that needs no table
+ * round trip. Adds and lookups are thread-safe and lock-free.
+ */
+public class PresenceFilter {
+    private static final Hash HASH = MurmurHash3.getInstance();
+
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int numHashes;
+
+    public PresenceFilter(long expectedKeys, double falsePositiveRate) {
+        if (expectedKeys <= 0)
+            throw new IllegalArgumentException("expectedKeys must be positive");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1)");
+
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int numWords = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bits + 63) / 64));
+        this.words = new AtomicLongArray(numWords);
+        this.numBits = (long) numWords * 64;
+        this.numHashes = Math.max(1, (int) Math.round((double) this.numBits / expectedKeys * ln2));
+    }
+
+    public void add(byte[] rowKey) {
+        int h1 = HASH.hash(rowKey, 0, rowKey.length, 0);
+        int h2 = HASH.hash(rowKey, 0, rowKey.length, h1);
+        for (int i = 0; i < this.numHashes; i++) {
+            long bit = bitIndex(h1, h2, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = this.words.get(word);
+            while ((current & mask) == 0 && !this.words.compareAndSet(word, current, current | mask)) {
+                current = this.words.get(word);
+            }
+        }
+    }
+
+    public boolean mightContain(byte[] rowKey) {
+        int h1 = HASH.hash(rowKey, 0, rowKey.length, 0);
+        int h2 = HASH.hash(rowKey, 0, rowKey.length, h1);
+        for (int i = 0; i < this.numHashes; i++) {
+            long bit = bitIndex(h1, h2, i);
+            if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private long bitIndex(int h1, int h2, int i) {
+        // Kirsch-Mitzenmacher: derive every probe from two hashes
+        long combined = (h1 & 0xffffffffL) + i * (h2 & 0xffffffffL);
+        return combined % this.numBits;
+    }
+
+    public long getNumBits() {
+        return this.numBits;
+    }
+
+    public int getNumHashes() {
+        return this.numHashes;
+    }
+}
@@ -0,0 +1,319 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Batches realtime writes into multi-puts sized from the observed table
+ * latency, instead of one Put per pushRealtimeEntry() call.
+ *
+ * Producers submit() into a bounded queue and a single writer thread takes
+ * whatever has queued up while the previous batch was in flight, up to the
+ * batch limit. Nothing is held back to fill a batch, so a lightly loaded
+ * ingestor writes single rows immediately and batches grow only with load.
+ * The limit adapts AIMD-style after every batch: halved if the round trip
+ * took more than half of the freshness SLO, raised by a fixed step if the
+ * limit left entries behind in the queue.
+ *
+ * Writes of the same key within one batch are coalesced, the last one wins.
+ * A batch that fails is retried with capped backoff until stop(); flush()
+ * reports writes that were dropped nonetheless.
+ */
+public class RealtimeIngestor implements Runnable {
+    private static Logger LOG = Logger.getLogger(RealtimeIngestor.class.getName());
+
+    /**
+     * Receives the metrics of every batch, on the writer thread.
+     */
+    public interface BatchListener {
+        void onBatch(int entries, int rows, long roundTripMicros, long oldestWaitMicros, int queueDepth, int batchLimit);
+    }
+
+    // failed attempts after which a batch is dropped, once stopped
+    private static final int MAX_RETRIES = 5;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    private static final class Pending {
+        final byte[] rowKey;
+        final String value;
+        final long enqueuedNanos;
+        final long sequence;
+
+        Pending(byte[] rowKey, String value, long enqueuedNanos, long sequence) {
+            this.rowKey = rowKey;
+            this.value = value;
+            this.enqueuedNanos = enqueuedNanos;
+            this.sequence = sequence;
+        }
+    }
+
+    private final SimplifiedLambda simplifiedLambda;
+    private final BlockingQueue<Pending> queue;
+    private final long freshnessSloMicros;
+    private final int maxBatchSize;
+    private final int additiveStep;
+    private final List<BatchListener> listeners = new CopyOnWriteArrayList<>();
+    private final LatencyHistogram visibleLatency = new LatencyHistogram();
+    private final LatencyHistogram roundTripLatency = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong sloViolations = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong droppedEntries = new AtomicLong();
+    private volatile int batchLimit = 1;
+    private volatile boolean running = true;
+
+    // guarded by submitLock, so sequence order is queue order
+    private final Object submitLock = new Object();
+    private long submittedSequence = 0;
+
+    // guarded by completedLock
+    private final Object completedLock = new Object();
+    private long completedSequence = 0;
+    // first to last sequence of the dropped batches not yet reported by flush()
+    private final NavigableMap<Long, Long> droppedSequences = new TreeMap<>();
+    // writes up to this were covered by a completed flush()
+    private long flushedSequence = 0;
+
+    public RealtimeIngestor(SimplifiedLambda simplifiedLambda, long freshnessSlo, TimeUnit unit) {
+        this(simplifiedLambda, freshnessSlo, unit, 10000, 1000);
+    }
+
+    public RealtimeIngestor(SimplifiedLambda simplifiedLambda, long freshnessSlo, TimeUnit unit, int queueCapacity,
+                            int maxBatchSize) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.freshnessSloMicros = unit.toMicros(freshnessSlo);
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.additiveStep = Math.max(1, maxBatchSize / 64);
+    }
+
+    public void addBatchListener(BatchListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeBatchListener(BatchListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    public void submit(String key, String value) throws InterruptedIOException {
+        submitRow(SimplifiedLambda.getEntityKey(key), value);
+    }
+
+    public void submit(long key, String value) throws InterruptedIOException {
+        submitRow(SimplifiedLambda.getEntityKey(key), value);
+    }
+
+    /**
+     * Queues a write, blocking while the queue is full.
+     */
+    private void submitRow(byte[] rowKey, String value) throws InterruptedIOException {
+        try {
+            synchronized (this.submitLock) {
+                this.queue.put(new Pending(rowKey, value, System.nanoTime(), this.submittedSequence + 1));
+                this.submittedSequence++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing realtime write");
+        }
+    }
+
+    /**
+     * Waits until every write submitted before this call is visible. Returns
+     * false on timeout, or if one of the writes submitted since the previous
+     * flush was dropped.
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedIOException {
+        long target;
+        synchronized (this.submitLock) {
+            target = this.submittedSequence;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this.completedLock) {
+            try {
+                while (this.completedSequence < target) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(this.completedLock, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing realtime writes");
+            }
+            // the batches are disjoint, the last one starting up to target ends last
+            Map.Entry<Long, Long> dropped = this.droppedSequences.floorEntry(target);
+            boolean lost = dropped != null && dropped.getValue() > this.flushedSequence;
+            this.flushedSequence = Math.max(this.flushedSequence, target);
+            while (!this.droppedSequences.isEmpty()
+                    && this.droppedSequences.firstEntry().getValue() <= this.flushedSequence) {
+                this.droppedSequences.pollFirstEntry();
+            }
+            return !lost;
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Pending first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                this.queue.drainTo(batch, this.batchLimit - 1);
+                writeBatch(batch, this.queue.size());
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the writer once the queue has been drained. A batch that keeps
+     * failing is then dropped.
+     */
+    public void stop() {
+        this.running = false;
+    }
+
+    private void writeBatch(List<Pending> batch, int queueDepth) {
+        Map<ByteBuffer, Pending> latest = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            latest.put(ByteBuffer.wrap(pending.rowKey), pending);
+        }
+        List<byte[]> rowKeys = new ArrayList<>(latest.size());
+        List<String> values = new ArrayList<>(latest.size());
+        for (Pending pending : latest.values()) {
+            rowKeys.add(pending.rowKey);
+            values.add(pending.value);
+        }
+
+        long roundTripMicros = 0;
+        boolean written = false;
+        for (int attempt = 0; !written; attempt++) {
+            long start = System.nanoTime();
+            try {
+                this.simplifiedLambda.pushRealtimeRows(rowKeys, values);
+                written = true;
+            } catch (IOException e) {
+                this.failedBatches.incrementAndGet();
+                LOG.log(Level.WARNING, "Failed to write batch of " + rowKeys.size() + " realtime rows", e);
+                this.batchLimit = Math.max(1, this.batchLimit / 2);
+                if (!this.running && attempt >= MAX_RETRIES)
+                    break;
+                try {
+                    Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, 10L << Math.min(attempt, 7)));
+                } catch (InterruptedException ie) {
+                    // the writer exits at the next poll, account for this batch first
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } catch (RuntimeException e) {
+                // not a transient failure, e.g. a change listener; whether the
+                // rows were written is unknown, so they count as dropped
+                this.failedBatches.incrementAndGet();
+                LOG.log(Level.SEVERE, "Failed to write batch of " + rowKeys.size() + " realtime rows", e);
+                break;
+            }
+            roundTripMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        }
+
+        long now = System.nanoTime();
+        long oldestWaitMicros = TimeUnit.NANOSECONDS.toMicros(now - batch.get(0).enqueuedNanos);
+        if (written) {
+            this.roundTripLatency.record(roundTripMicros);
+            for (Pending pending : batch) {
+                long micros = TimeUnit.NANOSECONDS.toMicros(now - pending.enqueuedNanos);
+                this.visibleLatency.record(micros);
+                if (micros > this.freshnessSloMicros)
+                    this.sloViolations.incrementAndGet();
+            }
+            adapt(roundTripMicros, queueDepth);
+        } else {
+            LOG.severe("Dropping " + batch.size() + " realtime writes");
+            this.droppedEntries.addAndGet(batch.size());
+        }
+        this.batches.incrementAndGet();
+
+        synchronized (this.completedLock) {
+            if (!written)
+                this.droppedSequences.put(batch.get(0).sequence, batch.get(batch.size() - 1).sequence);
+            this.completedSequence = batch.get(batch.size() - 1).sequence;
+            this.completedLock.notifyAll();
+        }
+        for (BatchListener listener : this.listeners) {
+            try {
+                listener.onBatch(batch.size(), rowKeys.size(), roundTripMicros, oldestWaitMicros, queueDepth,
+                        this.batchLimit);
+            } catch (RuntimeException e) {
+                // must not stop the writer thread
+                LOG.log(Level.WARNING, "Batch listener failed", e);
+            }
+        }
+    }
+
+    private void adapt(long roundTripMicros, int queueDepth) {
+        if (roundTripMicros > this.freshnessSloMicros / 2) {
+            this.batchLimit = Math.max(1, this.batchLimit / 2);
+        } else if (queueDepth > 0) {
+            this.batchLimit = Math.min(this.maxBatchSize, this.batchLimit + this.additiveStep);
+        }
+    }
+
+    public int getBatchLimit() {
+        return this.batchLimit;
+    }
+
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Time from submit() until the write was acknowledged by the table.
+     */
+    public LatencyHistogram getVisibleLatency() {
+        return this.visibleLatency;
+    }
+
+    public LatencyHistogram getRoundTripLatency() {
+        return this.roundTripLatency;
+    }
+
+    public long getBatchCount() {
+        return this.batches.get();
+    }
+
+    public long getSloViolations() {
+        return this.sloViolations.get();
+    }
+
+    public long getFailedBatches() {
+        return this.failedBatches.get();
+    }
+
+    public long getDroppedEntries() {
+        return this.droppedEntries.get();
+    }
+}
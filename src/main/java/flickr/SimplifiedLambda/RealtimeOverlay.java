@@ -0,0 +1,143 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process overlay of recent realtime writes, so reads of freshly written
+ * keys do not need the table. Lock-free: a ConcurrentHashMap holds the
+ * newest value per key and a FIFO queue drives oldest-first eviction once
+ * maxEntries is exceeded. Entries older than the TTL are ignored and dropped
+ * on read.
+ *
+ * SimplifiedLambda invalidates a key whenever it writes bulk data for it or
+ * the cleaner touches it. Invalidation leaves a timestamped tombstone, so a
+ * realtime write that raced with it and is older cannot resurrect the key.
+ * Publishing a bulk generation invalidates every entry at once. Bulk data
+ * written by other processes is only noticed once the entry expires, so the
+ * TTL bounds how long a stale realtime value can be served.
+ */
+public class RealtimeOverlay {
+    static final class Entry {
+        // null for a tombstone
+        final byte[] value;
+        final long timestamp;
+        final long insertedNanos;
+
+        Entry(byte[] value, long timestamp, long insertedNanos) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.insertedNanos = insertedNanos;
+        }
+    }
+
+    private final ConcurrentHashMap<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Object[]> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final long ttlNanos;
+    private final int maxEntries;
+    // entries written up to this time are ignored, see invalidateAll()
+    private volatile long floorTimestamp = Long.MIN_VALUE;
+
+    public RealtimeOverlay(long ttl, TimeUnit unit, int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Records a realtime write. An older write for the same key never
+     * replaces a newer one.
+     */
+    public void put(byte[] rowKey, byte[] value, long timestamp) {
+        if (timestamp <= this.floorTimestamp)
+            return;
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        Entry entry = new Entry(value, timestamp, System.nanoTime());
+        while (true) {
+            Entry existing = this.entries.putIfAbsent(key, entry);
+            if (existing == null)
+                break;
+            if (existing.timestamp > timestamp || (existing.value == null && existing.timestamp >= timestamp))
+                return;
+            if (this.entries.replace(key, existing, entry))
+                break;
+        }
+        enqueue(key, entry);
+    }
+
+    private void enqueue(ByteBuffer key, Entry entry) {
+        this.insertionOrder.add(new Object[]{key, entry});
+        if (this.queued.incrementAndGet() > this.maxEntries)
+            evict();
+    }
+
+    /**
+     * Returns the live entry for rowKey, or null.
+     */
+    Entry get(byte[] rowKey) {
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        Entry entry = this.entries.get(key);
+        if (entry == null || entry.value == null || entry.timestamp <= this.floorTimestamp)
+            return null;
+        if (System.nanoTime() - entry.insertedNanos > this.ttlNanos) {
+            this.entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    public void invalidate(byte[] rowKey) {
+        invalidate(rowKey, System.currentTimeMillis());
+    }
+
+    /**
+     * Invalidates rowKey as of timestamp, for writers whose cell timestamps
+     * are not wall clock milliseconds.
+     */
+    public void invalidate(byte[] rowKey, long timestamp) {
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        Entry tombstone = new Entry(null, timestamp, System.nanoTime());
+        this.entries.put(key, tombstone);
+        enqueue(key, tombstone);
+    }
+
+    /**
+     * Ignores every entry written so far, and realtime writes that are older.
+     * Entries are dropped lazily by eviction.
+     */
+    public void invalidateAll() {
+        invalidateAll(System.currentTimeMillis());
+    }
+
+    public void invalidateAll(long timestamp) {
+        this.floorTimestamp = timestamp;
+    }
+
+    /**
+     * Number of entries, including tombstones.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    private void evict() {
+        while (this.queued.get() > this.maxEntries) {
+            Object[] oldest = this.insertionOrder.poll();
+            if (oldest == null)
+                return;
+            this.queued.decrementAndGet();
+            // a no-op if the key was rewritten since
+            this.entries.remove(oldest[0], oldest[1]);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the rows that received realtime writes, so the cleaner only has to
+ * visit those instead of scanning the whole table; see
+ * SimplifiedLambda.cleanTouched().
+ *
+ * Index rows are the start of a time bucket (8 bytes, big-endian) followed
+ * by the row key, so a row written many times within one bucket costs a
+ * single index row, and the index scans in write order. Writers only ever
+ * touch the current bucket; the cleaner only reads buckets that closed at
+ * least one bucket width ago, which leaves room for clock skew between
+ * writers, and deletes their rows once cleaned.
+ *
+ * Like TableCleanerCheckpoint, the index must not live in the lambda table
+ * itself.
+ */
+public class RealtimeTouchIndex {
+    static final byte[] TOUCHED_COLUMN = Bytes.toBytes("t");
+
+    private final HTableInterface indexTable;
+    private final byte[] family;
+    private final long bucketMillis;
+
+    public RealtimeTouchIndex(HTableInterface indexTable, byte[] family, long bucketWidth, TimeUnit unit) {
+        this.indexTable = indexTable;
+        this.family = family;
+        this.bucketMillis = Math.max(1, unit.toMillis(bucketWidth));
+    }
+
+    private byte[] indexRow(long nowMillis, byte[] rowKey) {
+        return Bytes.add(Bytes.toBytes(nowMillis - nowMillis % this.bucketMillis), rowKey);
+    }
+
+    /**
+     * Records that rowKey is about to receive a realtime write.
+     */
+    public void touch(byte[] rowKey) throws IOException {
+        Put insertOp = new Put(indexRow(System.currentTimeMillis(), rowKey));
+        insertOp.add(this.family, TOUCHED_COLUMN, HConstants.EMPTY_BYTE_ARRAY);
+        this.indexTable.put(insertOp);
+    }
+
+    public void touch(List<byte[]> rowKeys) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Put> insertOps = new ArrayList<>(rowKeys.size());
+        for (byte[] rowKey : rowKeys) {
+            Put insertOp = new Put(indexRow(now, rowKey));
+            insertOp.add(this.family, TOUCHED_COLUMN, HConstants.EMPTY_BYTE_ARRAY);
+            insertOps.add(insertOp);
+        }
+        this.indexTable.put(insertOps);
+    }
+
+    /**
+     * Scans the index rows of every bucket that is safe to clean.
+     */
+    ResultScanner scanClosed(int scannerCaching) throws IOException {
+        long now = System.currentTimeMillis();
+        long currentBucket = now - now % this.bucketMillis;
+        Scan scan = new Scan(HConstants.EMPTY_START_ROW, Bytes.toBytes(currentBucket - this.bucketMillis));
+        scan.addColumn(this.family, TOUCHED_COLUMN);
+        scan.setCaching(scannerCaching);
+        return this.indexTable.getScanner(scan);
+    }
+
+    /**
+     * The lambda table row an index row points to.
+     */
+    static byte[] rowKeyOf(Result indexResult) {
+        byte[] indexRow = indexResult.getRow();
+        return Arrays.copyOfRange(indexRow, Bytes.SIZEOF_LONG, indexRow.length);
+    }
+
+    /**
+     * Removes index rows once their lambda table rows were cleaned, but only
+     * the versions that were read, should a late writer have touched the row
+     * again in the meantime.
+     */
+    void remove(List<Result> indexResults) throws IOException {
+        List<Delete> deleteOps = new ArrayList<>(indexResults.size());
+        for (Result indexResult : indexResults) {
+            Cell cell = indexResult.getColumnLatestCell(this.family, TOUCHED_COLUMN);
+            Delete deleteOp = new Delete(indexResult.getRow());
+            deleteOp.deleteColumns(this.family, TOUCHED_COLUMN, cell.getTimestamp());
+            deleteOps.add(deleteOp);
+        }
+        this.indexTable.delete(deleteOps);
+    }
+}
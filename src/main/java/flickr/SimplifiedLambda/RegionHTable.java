@@ -0,0 +1,331 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.Service;
+import com.google.protobuf.ServiceException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.ipc.CoprocessorRpcChannel;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rows of one region seen as a table, for CombineEndpoint. Reads and
+ * writes go straight to the HRegion hosting the endpoint instead of through
+ * a client connection back into the same region server. Only single-row
+ * calls and scans are supported, and only for keys inside the region.
+ */
+class RegionHTable implements HTableInterface {
+    private final HRegion region;
+    private final Configuration conf;
+
+    RegionHTable(HRegion region, Configuration conf) {
+        this.region = region;
+        this.conf = conf;
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException(RegionHTable.class.getSimpleName() + " does not implement this method");
+    }
+
+    @Override
+    public byte[] getTableName() {
+        return getName().getName();
+    }
+
+    @Override
+    public TableName getName() {
+        return this.region.getRegionInfo().getTable();
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return this.conf;
+    }
+
+    @Override
+    public HTableDescriptor getTableDescriptor() throws IOException {
+        return this.region.getTableDesc();
+    }
+
+    @Override
+    public boolean exists(Get get) throws IOException {
+        return !get(get).isEmpty();
+    }
+
+    @Override
+    public Boolean[] exists(List<Get> gets) throws IOException {
+        Boolean[] res = new Boolean[gets.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = exists(gets.get(i));
+        }
+        return res;
+    }
+
+    @Override
+    public void batch(List<? extends Row> actions, Object[] results) throws IOException, InterruptedException {
+        throw unsupported();
+    }
+
+    @Override
+    public Object[] batch(List<? extends Row> actions) throws IOException, InterruptedException {
+        throw unsupported();
+    }
+
+    @Override
+    public <R> void batchCallback(List<? extends Row> actions, Object[] results, Batch.Callback<R> callback)
+            throws IOException, InterruptedException {
+        throw unsupported();
+    }
+
+    @Override
+    public <R> Object[] batchCallback(List<? extends Row> actions, Batch.Callback<R> callback)
+            throws IOException, InterruptedException {
+        throw unsupported();
+    }
+
+    @Override
+    public Result get(Get get) throws IOException {
+        return this.region.get(get);
+    }
+
+    @Override
+    public Result[] get(List<Get> gets) throws IOException {
+        Result[] res = new Result[gets.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = get(gets.get(i));
+        }
+        return res;
+    }
+
+    @Override
+    public Result getRowOrBefore(byte[] row, byte[] family) throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    public ResultScanner getScanner(Scan scan) throws IOException {
+        return new RegionResultScanner(this.region.getScanner(scan));
+    }
+
+    @Override
+    public ResultScanner getScanner(byte[] family) throws IOException {
+        Scan scan = new Scan();
+        scan.addFamily(family);
+        return getScanner(scan);
+    }
+
+    @Override
+    public ResultScanner getScanner(byte[] family, byte[] qualifier) throws IOException {
+        Scan scan = new Scan();
+        scan.addColumn(family, qualifier);
+        return getScanner(scan);
+    }
+
+    @Override
+    public void put(Put put) throws IOException {
+        this.region.put(put);
+    }
+
+    @Override
+    public void put(List<Put> puts) throws IOException {
+        for (Put put : puts) {
+            put(put);
+        }
+    }
+
+    @Override
+    public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    public void delete(Delete delete) throws IOException {
+        this.region.delete(delete);
+    }
+
+    @Override
+    public void delete(List<Delete> deletes) throws IOException {
+        for (Delete delete : deletes) {
+            delete(delete);
+        }
+    }
+
+    @Override
+    public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value, Delete delete)
+            throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    public void mutateRow(RowMutations rm) throws IOException {
+        this.region.mutateRow(rm);
+    }
+
+    @Override
+    public Result append(Append append) throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    public Result increment(Increment increment) throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount) throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, Durability durability)
+            throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    @Deprecated
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, boolean writeToWAL)
+            throws IOException {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean isAutoFlush() {
+        return true;
+    }
+
+    @Override
+    public void flushCommits() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the region belongs to the region server
+    }
+
+    @Override
+    public CoprocessorRpcChannel coprocessorService(byte[] row) {
+        throw unsupported();
+    }
+
+    @Override
+    public <T extends Service, R> Map<byte[], R> coprocessorService(Class<T> service, byte[] startKey, byte[] endKey,
+            Batch.Call<T, R> callable) throws ServiceException, Throwable {
+        throw unsupported();
+    }
+
+    @Override
+    public <T extends Service, R> void coprocessorService(Class<T> service, byte[] startKey, byte[] endKey,
+            Batch.Call<T, R> callable, Batch.Callback<R> callback) throws ServiceException, Throwable {
+        throw unsupported();
+    }
+
+    @Override
+    @Deprecated
+    public void setAutoFlush(boolean autoFlush) {
+    }
+
+    @Override
+    public void setAutoFlush(boolean autoFlush, boolean clearBufferOnFail) {
+    }
+
+    @Override
+    public void setAutoFlushTo(boolean autoFlush) {
+    }
+
+    @Override
+    public long getWriteBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public void setWriteBufferSize(long writeBufferSize) throws IOException {
+    }
+
+    @Override
+    public <R extends Message> Map<byte[], R> batchCoprocessorService(Descriptors.MethodDescriptor methodDescriptor,
+            Message request, byte[] startKey, byte[] endKey, R responsePrototype) throws ServiceException, Throwable {
+        throw unsupported();
+    }
+
+    @Override
+    public <R extends Message> void batchCoprocessorService(Descriptors.MethodDescriptor methodDescriptor,
+            Message request, byte[] startKey, byte[] endKey, R responsePrototype, Batch.Callback<R> callback)
+            throws ServiceException, Throwable {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean checkAndMutate(byte[] row, byte[] family, byte[] qualifier, CompareOp compareOp, byte[] value,
+            RowMutations mutation) throws IOException {
+        throw unsupported();
+    }
+
+    /**
+     * A RegionScanner as a ResultScanner, one Result per row.
+     */
+    private static class RegionResultScanner implements ResultScanner {
+        private final RegionScanner regionScanner;
+        private boolean more = true;
+
+        RegionResultScanner(RegionScanner regionScanner) {
+            this.regionScanner = regionScanner;
+        }
+
+        @Override
+        public Result next() throws IOException {
+            List<Cell> cells = new ArrayList<>();
+            // rows the scan's filters drop come back empty
+            while (this.more && cells.isEmpty()) {
+                this.more = this.regionScanner.next(cells);
+            }
+            return cells.isEmpty() ? null : Result.create(cells);
+        }
+
+        @Override
+        public Result[] next(int nbRows) throws IOException {
+            List<Result> res = new ArrayList<>(nbRows);
+            Result result;
+            while (res.size() < nbRows && (result = next()) != null) {
+                res.add(result);
+            }
+            return res.toArray(new Result[res.size()]);
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.regionScanner.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return new ScannerIterator<Result>() {
+                @Override
+                Result fetch() throws IOException {
+                    return RegionResultScanner.this.next();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs SimplifiedLambda's cleaner over a list of key ranges, saving the last
+ * completed row of each range to a CleanerCheckpoint as it goes. A run that
+ * finds a checkpoint resumes after it; a failed scan, e.g. an expired scanner
+ * lease, is reopened after the last completed row up to maxRetries times in a
+ * row. Rows and mutations can be rate-limited so the pass does not starve
+ * serving reads.
+ *
+ * Rows between the last checkpoint and a failure are cleaned twice, which is
+ * harmless since cleanRow() is idempotent. Unlike cleaner(), a resumed pass
+ * does not see every row and so does not rebuild the presence filter.
+ */
+public class ResumableCleaner {
+    private static Logger LOG = Logger.getLogger(ResumableCleaner.class.getName());
+
+    private final SimplifiedLambda simplifiedLambda;
+    private final CleanerCheckpoint checkpoint;
+    private final byte[][] splitKeys;
+    private final TokenBucket rowLimiter = new TokenBucket(0);
+    private final TokenBucket mutationLimiter = new TokenBucket(0);
+    private int checkpointInterval = 1000;
+    private int scannerCaching = 100;
+    private int maxRetries = 3;
+
+    public ResumableCleaner(SimplifiedLambda simplifiedLambda, CleanerCheckpoint checkpoint) {
+        this(simplifiedLambda, checkpoint, new byte[0][]);
+    }
+
+    /**
+     * splitKeys are the sorted boundaries between ranges, e.g. the region
+     * start keys; n keys give n + 1 ranges.
+     */
+    public ResumableCleaner(SimplifiedLambda simplifiedLambda, CleanerCheckpoint checkpoint, byte[][] splitKeys) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.checkpoint = checkpoint;
+        this.splitKeys = splitKeys;
+    }
+
+    public void setRowsPerSecond(double rowsPerSecond) {
+        this.rowLimiter.setRate(rowsPerSecond);
+    }
+
+    public void setMutationsPerSecond(double mutationsPerSecond) {
+        this.mutationLimiter.setRate(mutationsPerSecond);
+    }
+
+    public void setCheckpointInterval(int rows) {
+        this.checkpointInterval = rows;
+    }
+
+    public void setScannerCaching(int scannerCaching) {
+        this.scannerCaching = scannerCaching;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Runs a pass, or finishes the one recorded in the checkpoint, and clears
+     * the checkpoint once every range is done. Returns the number of rows
+     * cleaned by this run.
+     */
+    public long run() throws IOException {
+        Map<String, byte[]> progress = new TreeMap<>(this.checkpoint.load());
+        if (!progress.isEmpty())
+            LOG.info("Resuming cleaner pass from checkpoint of " + progress.size() + " ranges");
+
+        long rows = 0;
+        for (int i = 0; i <= this.splitKeys.length; i++) {
+            byte[] startRow = i == 0 ? HConstants.EMPTY_START_ROW : this.splitKeys[i - 1];
+            byte[] stopRow = i == this.splitKeys.length ? HConstants.EMPTY_END_ROW : this.splitKeys[i];
+            rows += cleanRange(Bytes.toStringBinary(startRow), startRow, stopRow, progress);
+        }
+        this.checkpoint.clear();
+        return rows;
+    }
+
+    private long cleanRange(String rangeId, byte[] startRow, byte[] stopRow, Map<String, byte[]> progress) throws IOException {
+        long rows = 0;
+        int failures = 0;
+        while (true) {
+            byte[] lastCompletedRow = progress.get(rangeId);
+            Scan scan = new Scan(lastCompletedRow == null ? startRow : Bytes.add(lastCompletedRow, new byte[1]), stopRow);
+            this.simplifiedLambda.addViewFamilies(scan);
+            scan.setCaching(this.scannerCaching);
+
+            int sinceCheckpoint = 0;
+            ResultScanner resultScanner = null;
+            try {
+                resultScanner = this.simplifiedLambda.getBackgroundTable().getScanner(scan);
+                Result result;
+                while ((result = resultScanner.next()) != null) {
+                    if (result.isEmpty())
+                        continue;
+                    acquire(this.rowLimiter, 1);
+                    int mutations = this.simplifiedLambda.cleanRow(result);
+                    if (mutations > 0)
+                        acquire(this.mutationLimiter, mutations);
+
+                    progress.put(rangeId, result.getRow());
+                    rows++;
+                    failures = 0;
+                    if (++sinceCheckpoint >= this.checkpointInterval) {
+                        this.checkpoint.save(progress);
+                        sinceCheckpoint = 0;
+                    }
+                }
+                if (sinceCheckpoint > 0)
+                    this.checkpoint.save(progress);
+                return rows;
+            } catch (InterruptedIOException e) {
+                saveQuietly(progress);
+                throw e;
+            } catch (IOException e) {
+                saveQuietly(progress);
+                if (++failures > this.maxRetries)
+                    throw e;
+                LOG.log(Level.WARNING, "Cleaner failed in range " + rangeId + ", resuming after the last completed row", e);
+            } finally {
+                if (resultScanner != null)
+                    resultScanner.close();
+            }
+        }
+    }
+
+    private void saveQuietly(Map<String, byte[]> progress) {
+        try {
+            this.checkpoint.save(progress);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to save cleaner checkpoint", e);
+        }
+    }
+
+    private static void acquire(TokenBucket limiter, int permits) throws InterruptedIOException {
+        try {
+            limiter.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling the cleaner");
+        }
+    }
+}
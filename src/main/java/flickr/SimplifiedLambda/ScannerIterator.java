@@ -0,0 +1,48 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over a scanner-like source whose next() returns null once it is
+ * exhausted. IOExceptions are rethrown wrapped in RuntimeExceptions.
+ */
+abstract class ScannerIterator<T> implements Iterator<T> {
+    private T next = null;
+
+    /**
+     * The next element, or null if there are no more.
+     */
+    abstract T fetch() throws IOException;
+
+    @Override
+    public boolean hasNext() {
+        if (this.next == null) {
+            try {
+                this.next = fetch();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return this.next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        T res = this.next;
+        this.next = null;
+        return res;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
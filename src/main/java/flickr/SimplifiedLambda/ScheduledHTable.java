@@ -0,0 +1,261 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.ForwardingHTable;
+
+import org.apache.hadoop.hbase.client.*;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Routes the calls on a table through an IoScheduler in one priority class.
+ * Serving tables report their latency; background tables wait for budget
+ * before every call, and before every row a scanner returns.
+ */
+public class ScheduledHTable extends ForwardingHTable {
+    private final IoScheduler scheduler;
+    private final IoScheduler.Priority priority;
+
+    public ScheduledHTable(HTableInterface delegate, IoScheduler scheduler, IoScheduler.Priority priority) {
+        super(delegate);
+        this.scheduler = scheduler;
+        this.priority = priority;
+    }
+
+    private long admit(int calls) throws IOException {
+        if (this.priority == IoScheduler.Priority.SERVING)
+            return this.scheduler.beginServing();
+        this.scheduler.acquireBackground(calls);
+        return 0;
+    }
+
+    private void complete(long startNanos) {
+        if (this.priority == IoScheduler.Priority.SERVING)
+            this.scheduler.endServing(startNanos);
+    }
+
+    @Override
+    public Result get(Get get) throws IOException {
+        long start = admit(1);
+        try {
+            return super.get(get);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public Result[] get(List<Get> gets) throws IOException {
+        long start = admit(gets.size());
+        try {
+            return super.get(gets);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public boolean exists(Get get) throws IOException {
+        long start = admit(1);
+        try {
+            return super.exists(get);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public Boolean[] exists(List<Get> gets) throws IOException {
+        long start = admit(gets.size());
+        try {
+            return super.exists(gets);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public void batch(List<? extends Row> actions, Object[] results) throws IOException, InterruptedException {
+        long start = admit(actions.size());
+        try {
+            super.batch(actions, results);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public Object[] batch(List<? extends Row> actions) throws IOException, InterruptedException {
+        long start = admit(actions.size());
+        try {
+            return super.batch(actions);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public ResultScanner getScanner(Scan scan) throws IOException {
+        long start = admit(1);
+        ResultScanner resultScanner;
+        try {
+            resultScanner = super.getScanner(scan);
+        } finally {
+            complete(start);
+        }
+        if (this.priority == IoScheduler.Priority.SERVING)
+            return resultScanner;
+        return new ThrottledScanner(resultScanner);
+    }
+
+    @Override
+    public void put(Put put) throws IOException {
+        long start = admit(1);
+        try {
+            super.put(put);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public void put(List<Put> puts) throws IOException {
+        long start = admit(puts.size());
+        try {
+            super.put(puts);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) throws IOException {
+        long start = admit(1);
+        try {
+            return super.checkAndPut(row, family, qualifier, value, put);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public void delete(Delete delete) throws IOException {
+        long start = admit(1);
+        try {
+            super.delete(delete);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public void delete(List<Delete> deletes) throws IOException {
+        long start = admit(deletes.size());
+        try {
+            super.delete(deletes);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value, Delete delete) throws IOException {
+        long start = admit(1);
+        try {
+            return super.checkAndDelete(row, family, qualifier, value, delete);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public void mutateRow(RowMutations rm) throws IOException {
+        long start = admit(1);
+        try {
+            super.mutateRow(rm);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public Result append(Append append) throws IOException {
+        long start = admit(1);
+        try {
+            return super.append(append);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public Result increment(Increment increment) throws IOException {
+        long start = admit(1);
+        try {
+            return super.increment(increment);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, Durability durability) throws IOException {
+        long start = admit(1);
+        try {
+            return super.incrementColumnValue(row, family, qualifier, amount, durability);
+        } finally {
+            complete(start);
+        }
+    }
+
+    @Override
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount) throws IOException {
+        return incrementColumnValue(row, family, qualifier, amount, Durability.USE_DEFAULT);
+    }
+
+    @Override
+    @Deprecated
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, boolean writeToWAL) throws IOException {
+        return incrementColumnValue(row, family, qualifier, amount, writeToWAL ? Durability.USE_DEFAULT : Durability.SKIP_WAL);
+    }
+
+    private class ThrottledScanner implements ResultScanner {
+        private final ResultScanner resultScanner;
+
+        ThrottledScanner(ResultScanner resultScanner) {
+            this.resultScanner = resultScanner;
+        }
+
+        @Override
+        public Result next() throws IOException {
+            scheduler.acquireBackground(1);
+            return this.resultScanner.next();
+        }
+
+        @Override
+        public Result[] next(int nbRows) throws IOException {
+            scheduler.acquireBackground(nbRows);
+            return this.resultScanner.next(nbRows);
+        }
+
+        @Override
+        public void close() {
+            this.resultScanner.close();
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return new ScannerIterator<Result>() {
+                @Override
+                Result fetch() throws IOException {
+                    return ThrottledScanner.this.next();
+                }
+            };
+        }
+    }
+}
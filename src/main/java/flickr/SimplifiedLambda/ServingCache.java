@@ -0,0 +1,398 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU read-through cache of combined values in the combiner process.
+ * Misses go to SimplifiedLambda.lookup(); only settled values (BULK or
+ * REALTIME) are kept. As a CacheSink it can be fed by a CachePusher, which
+ * keeps cached values fresh.
+ *
+ * To avoid starting cold after a restart, writeSnapshot() saves the cached
+ * keys and values to a memory-mapped file and loadSnapshot() reads them back.
+ * Loaded entries are served right away but marked unvalidated until
+ * revalidate() has re-read them from the table; see CacheWarmer.
+ *
+ * If the SimplifiedLambda has HotKeys, cache hits are counted as reads too,
+ * and keys that are hot for reads are never evicted while a cold entry is
+ * left.
+ *
+ * Without a CachePusher nothing tells the cache that a value changed; set an
+ * entry TTL with setEntryTtl() to bound how long a value is served.
+ */
+public class ServingCache implements CacheSink {
+    private static final int SNAPSHOT_MAGIC = 0x534c4331; // "SLC1"
+
+    // mutable, guarded by the entries lock
+    private static final class Entry {
+        String value;
+        // false for entries loaded from a snapshot and not re-read since
+        boolean validated;
+        // when value was read or pushed
+        long loadedNanos;
+
+        Entry(String value, boolean validated) {
+            this.value = value;
+            this.validated = validated;
+            this.loadedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Table reads of one key in progress; guarded by the entries lock.
+     */
+    private static final class Loading {
+        int loaders = 0;
+        // bumped by every put() or invalidate() of the key meanwhile
+        long changes = 0;
+    }
+
+    /**
+     * Access-ordered map that evicts the least recently used cold entry
+     * beyond capacity; the eldest entry is the least recently used.
+     */
+    private static final class LruEntries extends LinkedHashMap<Key, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient SimplifiedLambda simplifiedLambda;
+        private final int capacity;
+
+        LruEntries(SimplifiedLambda simplifiedLambda, int capacity) {
+            super(16, 0.75f, true);
+            this.simplifiedLambda = simplifiedLambda;
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            if (size() <= this.capacity)
+                return false;
+            HotKeys hotKeys = this.simplifiedLambda.getHotKeys();
+            if (hotKeys == null || !hotKeys.isHotRead(eldest.getKey().rowKey))
+                return true;
+            // hot keys are pinned, evict the least recently used cold one
+            Iterator<Key> it = keySet().iterator();
+            while (it.hasNext()) {
+                if (!hotKeys.isHotRead(it.next().rowKey)) {
+                    it.remove();
+                    return false;
+                }
+            }
+            // everything is hot
+            return true;
+        }
+    }
+
+    private final SimplifiedLambda simplifiedLambda;
+    private final int capacity;
+    // guarded by itself
+    private final LruEntries entries;
+    // guarded by the entries lock
+    private final Map<Key, Loading> loading = new HashMap<>();
+    private volatile long entryTtlNanos = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Row key usable as a map key.
+     */
+    private static final class Key {
+        final byte[] rowKey;
+        private final int hash;
+
+        Key(byte[] rowKey) {
+            this.rowKey = rowKey;
+            this.hash = Bytes.hashCode(rowKey);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Bytes.equals(this.rowKey, ((Key) other).rowKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    public ServingCache(SimplifiedLambda simplifiedLambda, int capacity) {
+        this.simplifiedLambda = simplifiedLambda;
+        this.capacity = capacity;
+        this.entries = new LruEntries(simplifiedLambda, capacity);
+    }
+
+    /**
+     * Serves an entry for at most ttl after it was read or pushed, then reads
+     * the key again. 0, the default, keeps entries until they are evicted,
+     * invalidated or replaced.
+     */
+    public void setEntryTtl(long ttl, TimeUnit unit) {
+        this.entryTtlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Returns the combined value of key, or null if it has no settled value.
+     */
+    public String get(String key) throws IOException {
+        return getRow(SimplifiedLambda.getEntityKey(key));
+    }
+
+    public String get(long key) throws IOException {
+        return getRow(SimplifiedLambda.getEntityKey(key));
+    }
+
+    private String getRow(byte[] rowKey) throws IOException {
+        Key key = new Key(rowKey);
+        String value = null;
+        Loading load;
+        long changes;
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(key);
+            if (entry != null) {
+                long ttl = this.entryTtlNanos;
+                if (ttl > 0 && System.nanoTime() - entry.loadedNanos > ttl) {
+                    this.entries.remove(key);
+                } else {
+                    this.hits.incrementAndGet();
+                    value = entry.value;
+                }
+            }
+            if (value == null) {
+                load = this.loading.get(key);
+                if (load == null) {
+                    load = new Loading();
+                    this.loading.put(key, load);
+                }
+                load.loaders++;
+                changes = load.changes;
+            } else {
+                load = null;
+                changes = 0;
+            }
+        }
+        if (value != null) {
+            // misses are counted by lookupRow()
+            HotKeys hotKeys = this.simplifiedLambda.getHotKeys();
+            if (hotKeys != null)
+                hotKeys.recordRead(rowKey);
+            return value;
+        }
+        this.misses.incrementAndGet();
+        CombineResult result = null;
+        try {
+            result = this.simplifiedLambda.lookupRow(rowKey);
+        } finally {
+            synchronized (this.entries) {
+                // a value pushed or invalidated while we were reading is newer
+                if (result != null && result.isPresent() && load.changes == changes
+                        && !this.entries.containsKey(key))
+                    this.entries.put(key, new Entry(result.getValue(), true));
+                if (--load.loaders == 0)
+                    this.loading.remove(key);
+            }
+        }
+        return result.isPresent() ? result.getValue() : null;
+    }
+
+    // call with the entries lock held
+    private void changed(Key key) {
+        Loading load = this.loading.get(key);
+        if (load != null)
+            load.changes++;
+    }
+
+    @Override
+    public void put(byte[] rowKey, String combinedValue) {
+        Key key = new Key(rowKey);
+        synchronized (this.entries) {
+            this.entries.put(key, new Entry(combinedValue, true));
+            changed(key);
+        }
+    }
+
+    @Override
+    public void invalidate(byte[] rowKey) {
+        Key key = new Key(rowKey);
+        synchronized (this.entries) {
+            this.entries.remove(key);
+            changed(key);
+        }
+    }
+
+    /**
+     * Saves every cached key and value, least recently used first, to file.
+     * The snapshot is written to a temporary file through a memory mapping,
+     * forced to disk and renamed over the old one. Returns the number of
+     * entries written.
+     */
+    public int writeSnapshot(File file) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        synchronized (this.entries) {
+            for (Map.Entry<Key, Entry> entry : this.entries.entrySet()) {
+                keys.add(entry.getKey().rowKey);
+                values.add(Bytes.toBytes(entry.getValue().value));
+            }
+        }
+        long size = 2 * Bytes.SIZEOF_INT;
+        for (int i = 0; i < keys.size(); i++) {
+            size += 2 * Bytes.SIZEOF_INT + keys.get(i).length + values.get(i).length;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(size);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(SNAPSHOT_MAGIC);
+            buffer.putInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                buffer.putInt(keys.get(i).length);
+                buffer.put(keys.get(i));
+                buffer.putInt(values.get(i).length);
+                buffer.put(values.get(i));
+            }
+            buffer.force();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return keys.size();
+    }
+
+    /**
+     * Adds the entries of a snapshot as unvalidated, without overwriting
+     * anything cached already. A missing file is not an error. Returns the
+     * number of entries loaded.
+     */
+    public int loadSnapshot(File file) throws IOException {
+        if (!file.exists())
+            return 0;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.remaining() < 2 * Bytes.SIZEOF_INT || buffer.getInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Not a serving cache snapshot: " + file);
+            int count = buffer.getInt();
+            int loaded = 0;
+            synchronized (this.entries) {
+                for (int i = 0; i < count; i++) {
+                    byte[] rowKey = new byte[buffer.getInt()];
+                    buffer.get(rowKey);
+                    byte[] value = new byte[buffer.getInt()];
+                    buffer.get(value);
+                    Key key = new Key(rowKey);
+                    if (!this.entries.containsKey(key)) {
+                        this.entries.put(key, new Entry(Bytes.toString(value), false));
+                        loaded++;
+                    }
+                }
+            }
+            return loaded;
+        } catch (RuntimeException e) {
+            // truncated or corrupt file
+            throw new IOException("Cannot read serving cache snapshot " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Re-reads up to batchSize unvalidated entries with one multi-get,
+     * replacing or dropping them unless they changed in the meantime.
+     * Returns the number of entries re-read, 0 once all are validated.
+     */
+    public int revalidate(int batchSize) throws IOException {
+        List<Key> keys = new ArrayList<>(batchSize);
+        List<Entry> stale = new ArrayList<>(batchSize);
+        synchronized (this.entries) {
+            // iterating does not count as an access
+            Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+            while (it.hasNext() && keys.size() < batchSize) {
+                Map.Entry<Key, Entry> entry = it.next();
+                if (!entry.getValue().validated) {
+                    keys.add(entry.getKey());
+                    stale.add(entry.getValue());
+                }
+            }
+        }
+        if (keys.isEmpty())
+            return 0;
+
+        List<byte[]> rowKeys = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            rowKeys.add(key.rowKey);
+        }
+        CombineResult[] results = this.simplifiedLambda.lookupRows(rowKeys);
+        synchronized (this.entries) {
+            for (int i = 0; i < results.length; i++) {
+                // updated in place to keep its recency; an entry that was
+                // replaced in the meantime is no longer in the map
+                Entry entry = stale.get(i);
+                if (entry.validated)
+                    continue;
+                if (results[i].isPresent()) {
+                    entry.value = results[i].getValue();
+                    entry.validated = true;
+                    entry.loadedNanos = System.nanoTime();
+                } else {
+                    this.entries.remove(keys.get(i), entry);
+                }
+            }
+        }
+        return keys.size();
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Number of entries loaded from a snapshot and not revalidated yet.
+     */
+    public int getUnvalidatedCount() {
+        int res = 0;
+        synchronized (this.entries) {
+            for (Entry entry : this.entries.values()) {
+                if (!entry.validated)
+                    res++;
+            }
+        }
+        return res;
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+}
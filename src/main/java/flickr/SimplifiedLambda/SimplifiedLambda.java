@@ -4,12 +4,28 @@
 
 package flickr.SimplifiedLambda;
 
+import com.google.protobuf.Message;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.ipc.BlockingRpcCallback;
+import org.apache.hadoop.hbase.ipc.ServerRpcController;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by bjoshi on 8/17/15.
@@ -18,35 +34,536 @@ public class SimplifiedLambda {
     public final static byte[] FAMILY = Bytes.toBytes("f");
     public final static byte[] REALTIME_COLUMN = Bytes.toBytes("REALTIME");
     public final static byte[] BULK_COLUMN = Bytes.toBytes("BULK");
+    public final static byte[] COMBINED_COLUMN = Bytes.toBytes("COMBINED");
 
     HTableInterface lambdaTable;
+    private volatile HTableInterface backgroundTable;
+    private volatile ValueCodec valueCodec = ValueCodec.PLAIN;
+    private volatile RealtimeOverlay realtimeOverlay;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean combinedView = false;
+    private long presenceFilterKeys;
+    private double presenceFilterFalsePositiveRate;
+    private volatile PresenceRebuild presenceFilter;
+    // every rebuild fills its own filter, writers add to all of them
+    private final List<PresenceRebuild> rebuildingPresenceFilters = new CopyOnWriteArrayList<>();
+    private long presenceFilterMaxAgeNanos;
+    private volatile BulkGenerations bulkGenerations;
+    private final AtomicLong seenGeneration = new AtomicLong();
+    private volatile HybridLogicalClock clock;
+    private volatile RealtimeTouchIndex touchIndex;
+    private volatile HotKeys hotKeys;
+    private final List<LambdaView> views = new CopyOnWriteArrayList<>();
+
     public SimplifiedLambda(HTableInterface _lambdaTable)
     {
         this.lambdaTable = _lambdaTable;
     }
 
+    /**
+     * Sets the table the cleaner, presence filter rebuilds and cache sweeps use
+     * instead of the serving table, typically a BACKGROUND ScheduledHTable over
+     * the same HBase table.
+     */
+    public void setBackgroundTable(HTableInterface backgroundTable) {
+        this.backgroundTable = backgroundTable;
+    }
+
+    HTableInterface getBackgroundTable() {
+        HTableInterface table = this.backgroundTable;
+        return table == null ? this.lambdaTable : table;
+    }
+
+    /**
+     * Encodes bulk values with the given codec from now on. Values are
+     * decoded according to their encoding byte, so rows written before keep
+     * working, but every reader needs a codec with the same tag dictionary.
+     */
+    public void setValueCodec(ValueCodec valueCodec) {
+        this.valueCodec = valueCodec;
+    }
+
+    public ValueCodec getValueCodec() {
+        return this.valueCodec;
+    }
+
+    /**
+     * Writes realtime values through an in-process overlay that the combiner
+     * answers from before going to the table. Realtime cells then carry the
+     * client's timestamp, so the overlay and the table agree on it.
+     */
+    public void setRealtimeOverlay(RealtimeOverlay realtimeOverlay) {
+        this.realtimeOverlay = realtimeOverlay;
+    }
+
+    /**
+     * Stamps every cell this instance writes with a timestamp from clock
+     * instead of leaving it to the region server, and advances the clock past
+     * every cell it reads. Every writer of the table must use a clock with a
+     * distinct node id, and timestamps passed to lookupAsOf() and diffAsOf()
+     * must come from HybridLogicalClock.fromMillis().
+     */
+    public void setClock(HybridLogicalClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Records every row that receives a realtime write in index, so
+     * cleanTouched() can settle just those rows. Every writer of the table
+     * must use the same index.
+     */
+    public void setTouchIndex(RealtimeTouchIndex touchIndex) {
+        this.touchIndex = touchIndex;
+    }
+
+    /**
+     * Counts single-key lookups and realtime pushes in hotKeys. Concurrent
+     * lookups of a hot key then share one read, and realtime pushes of a hot
+     * key that arrive while one is being written are collapsed into a single
+     * Put of the latest value; change listeners only see that Put.
+     */
+    public void setHotKeys(HotKeys hotKeys) {
+        this.hotKeys = hotKeys;
+    }
+
+    HotKeys getHotKeys() {
+        return this.hotKeys;
+    }
+
+    /**
+     * Timestamp for a new cell, LATEST_TIMESTAMP to let the server pick one.
+     */
+    private long cellTimestamp() {
+        HybridLogicalClock clock = this.clock;
+        return clock == null ? HConstants.LATEST_TIMESTAMP : clock.next();
+    }
+
+    /**
+     * The current time in the unit of cell timestamps.
+     */
+    private long now() {
+        HybridLogicalClock clock = this.clock;
+        return clock == null ? System.currentTimeMillis() : clock.next();
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        this.changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        this.changeListeners.remove(listener);
+    }
+
+    /**
+     * Adds a view next to the default one, e.g. for another classifier, so
+     * one table, one Get per key and one cleaner pass serve all of them; see
+     * lookupViews(). Every view settles on its own cell timestamps, so a bulk
+     * load of one view leaves the others alone.
+     *
+     * Views other than LambdaView.DEFAULT are plain bulk and realtime column
+     * pairs: the realtime overlay, COMBINED column, bulk generations, hot keys,
+     * change listeners and CombineEndpoint only apply to the default view.
+     * Every process using the table must add the same views.
+     */
+    public void addView(LambdaView view) {
+        synchronized (this.views) {
+            for (LambdaView existing : getViews()) {
+                if (existing.getName().equals(view.getName()) || existing.overlaps(view))
+                    throw new IllegalArgumentException("View " + view + " clashes with " + existing);
+            }
+            if (Bytes.equals(view.getFamily(), FAMILY)
+                    && (Bytes.equals(view.getBulkColumn(), COMBINED_COLUMN) || Bytes.equals(view.getRealtimeColumn(), COMBINED_COLUMN)
+                    || BulkGenerations.generationOf(view.getBulkColumn()) >= 0
+                    || BulkGenerations.generationOf(view.getRealtimeColumn()) >= 0))
+                throw new IllegalArgumentException("View " + view + " clashes with the default view's columns");
+            this.views.add(view);
+        }
+    }
+
+    /**
+     * The default view followed by the added ones.
+     */
+    public List<LambdaView> getViews() {
+        List<LambdaView> res = new ArrayList<>(this.views.size() + 1);
+        res.add(LambdaView.DEFAULT);
+        res.addAll(this.views);
+        return res;
+    }
+
+    public LambdaView getView(String name) {
+        for (LambdaView view : getViews()) {
+            if (view.getName().equals(name))
+                return view;
+        }
+        throw new IllegalArgumentException("No view " + name);
+    }
+
+    /**
+     * Adds the family of every view to a scan, so it returns each row that
+     * has data in any view.
+     */
+    void addViewFamilies(Scan scan) {
+        scan.addFamily(FAMILY);
+        for (LambdaView view : this.views) {
+            scan.addFamily(view.getFamily());
+        }
+    }
+
+    /**
+     * Enables the materialized COMBINED column. The bulk loader and the cleaner
+     * keep it equal to the settled value of the row, and a pending realtime
+     * cell marks the row dirty, so the combiner can answer clean rows from one
+     * cell without looking at BULK at all.
+     *
+     * Every writer must have the view enabled. If it was switched off while
+     * bulk data was loaded, run cleaner() before switching it back on.
+     */
+    public void setCombinedViewEnabled(boolean enabled) {
+        if (enabled && this.bulkGenerations != null)
+            throw new IllegalStateException("The COMBINED view cannot be used with bulk generations");
+        this.combinedView = enabled;
+    }
+
+    public boolean isCombinedViewEnabled() {
+        return this.combinedView;
+    }
+
+    /**
+     * Reads bulk data from the generation the pointer marks active, and lets
+     * beginBulkLoad() write new generations that are published atomically.
+     * The plain BULK column is generation 0, so existing tables keep working.
+     *
+     * A publish changes every row at once, which the COMBINED view cannot
+     * follow, so the two cannot be combined.
+     */
+    public void setBulkGenerations(BulkGenerations bulkGenerations) {
+        if (bulkGenerations != null && this.combinedView)
+            throw new IllegalStateException("Bulk generations cannot be used with the COMBINED view");
+        this.bulkGenerations = bulkGenerations;
+    }
+
+    /**
+     * Starts a bulk load into a new generation; see BulkLoad.
+     */
+    public BulkLoad beginBulkLoad(int batchSize) throws IOException {
+        BulkGenerations generations = this.bulkGenerations;
+        if (generations == null)
+            throw new IllegalStateException("Bulk generations are not enabled");
+        return new BulkLoad(this, generations, generations.beginLoad(), batchSize);
+    }
+
+    /**
+     * Bulk column of the active generation, BULK without generations.
+     */
+    byte[] activeBulkColumn() throws IOException {
+        BulkGenerations generations = this.bulkGenerations;
+        if (generations == null)
+            return BULK_COLUMN;
+        long active = generations.getActive();
+        long seen = this.seenGeneration.get();
+        // generations only grow, and only the thread that advances past a
+        // publish reports it; one holding an older pointer reports nothing
+        while (active > seen) {
+            if (this.seenGeneration.compareAndSet(seen, active)) {
+                RealtimeOverlay overlay = this.realtimeOverlay;
+                if (overlay != null)
+                    overlay.invalidateAll(now());
+                notifyChange(null, ChangeListener.Kind.PUBLISHED);
+                break;
+            }
+            seen = this.seenGeneration.get();
+        }
+        return BulkGenerations.bulkColumn(active);
+    }
+
+    /**
+     * Keeps an in-memory bloom filter of present row keys in front of the
+     * combiner, so lookups of keys without any data are answered without a
+     * table round trip. The filter only starts answering after it has been
+     * built by cleaner() or rebuildPresenceFilter(); pushes through this
+     * instance keep it up to date in between. Rows created by other writers
+     * are only added by the next rebuild, so the filter stops answering once
+     * the scan that built it began more than 5 minutes ago.
+     */
+    public void enablePresenceFilter(long expectedKeys, double falsePositiveRate) {
+        enablePresenceFilter(expectedKeys, falsePositiveRate, 5, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Like enablePresenceFilter(expectedKeys, falsePositiveRate), but misses
+     * go to the table once the filter is older than maxAge. Rebuild it more
+     * often than that to keep it answering.
+     */
+    public void enablePresenceFilter(long expectedKeys, double falsePositiveRate, long maxAge, TimeUnit unit) {
+        // validate the parameters now rather than at the first rebuild
+        new PresenceFilter(expectedKeys, falsePositiveRate);
+        this.presenceFilterKeys = expectedKeys;
+        this.presenceFilterFalsePositiveRate = falsePositiveRate;
+        this.presenceFilterMaxAgeNanos = unit.toNanos(maxAge);
+    }
+
+    public void rebuildPresenceFilter() throws IOException {
+        PresenceRebuild rebuild = beginPresenceRebuild();
+        boolean completed = false;
+        try {
+            Scan scan = new Scan();
+            addViewFamilies(scan);
+            ResultScanner resultScanner = getBackgroundTable().getScanner(scan);
+            try {
+                for (Result result : resultScanner) {
+                    if (!result.isEmpty())
+                        addPresence(result.getRow());
+                }
+            } finally {
+                resultScanner.close();
+            }
+            completed = true;
+        } finally {
+            finishPresenceRebuild(rebuild, completed);
+        }
+    }
+
+    /**
+     * A presence filter and when the scan filling it began; rows created by
+     * other writers after that are not guaranteed to be in it.
+     */
+    private static class PresenceRebuild {
+        private final PresenceFilter filter;
+        private final long startedNanos = System.nanoTime();
+
+        PresenceRebuild(long expectedKeys, double falsePositiveRate) {
+            this.filter = new PresenceFilter(expectedKeys, falsePositiveRate);
+        }
+    }
+
+    private PresenceRebuild beginPresenceRebuild() {
+        if (this.presenceFilterKeys <= 0)
+            return null;
+        PresenceRebuild rebuild = new PresenceRebuild(this.presenceFilterKeys, this.presenceFilterFalsePositiveRate);
+        this.rebuildingPresenceFilters.add(rebuild);
+        return rebuild;
+    }
+
+    private void finishPresenceRebuild(PresenceRebuild rebuild, boolean completed) {
+        if (rebuild == null)
+            return;
+        if (completed) {
+            synchronized (this.rebuildingPresenceFilters) {
+                // overlapping rebuilds may finish out of order, keep the one that started last
+                PresenceRebuild current = this.presenceFilter;
+                if (current == null || current.startedNanos - rebuild.startedNanos < 0)
+                    this.presenceFilter = rebuild;
+            }
+        }
+        // only after publishing, so writers in between reach one of the two
+        this.rebuildingPresenceFilters.remove(rebuild);
+    }
+
+    private void addPresence(byte[] rowKey) {
+        PresenceRebuild current = this.presenceFilter;
+        if (current != null)
+            current.filter.add(rowKey);
+        for (PresenceRebuild rebuild : this.rebuildingPresenceFilters) {
+            rebuild.filter.add(rowKey);
+        }
+    }
+
+    private boolean isDefinitelyAbsent(byte[] rowKey) {
+        PresenceRebuild current = this.presenceFilter;
+        if (current == null || current.filter.mightContain(rowKey))
+            return false;
+        // too old to vouch for rows other writers may have created since
+        return System.nanoTime() - current.startedNanos <= this.presenceFilterMaxAgeNanos;
+    }
+
+    private void notifyChange(byte[] rowKey, ChangeListener.Kind kind) {
+        RealtimeOverlay overlay = this.realtimeOverlay;
+        // bulk data may now win over the overlay, and the cleaner may have deleted its cell
+        if (overlay != null && rowKey != null && kind != ChangeListener.Kind.REALTIME)
+            overlay.invalidate(rowKey, now());
+        for (ChangeListener listener : this.changeListeners) {
+            listener.onChange(rowKey, kind);
+        }
+    }
+
     static private byte[] stringToBytes(String input) { return Bytes.toBytes(input); }
-    static private byte[] getEntityKey(String entity) { return stringToBytes(entity); }
+    static byte[] getEntityKey(String entity) { return stringToBytes(entity); }
+
+    /**
+     * Row key of a numeric entity id: 8 bytes, big-endian, so non-negative ids
+     * sort numerically.
+     */
+    static public byte[] getEntityKey(long entity) { return Bytes.toBytes(entity); }
 
     public void pushBulkEntry(String key, String value) throws IOException {
-        byte[] entityKey = this.getEntityKey(key);
+        pushBulkRow(getEntityKey(key), value);
+    }
+
+    public void pushBulkEntry(long key, String value) throws IOException {
+        pushBulkRow(getEntityKey(key), value);
+    }
 
+    private void pushBulkRow(byte[] entityKey, String value) throws IOException {
+        byte[] bulkValue = this.valueCodec.encode(value);
+        long timestamp = cellTimestamp();
         Put insertOp = new Put(entityKey);
-        insertOp.add(FAMILY, BULK_COLUMN, stringToBytes(value));
-        this.lambdaTable.put(insertOp);
+        insertOp.add(FAMILY, activeBulkColumn(), timestamp, bulkValue);
+        if (this.combinedView)
+            insertOp.add(FAMILY, COMBINED_COLUMN, timestamp, bulkValue);
+        putPresent(entityKey, insertOp);
+        notifyChange(entityKey, ChangeListener.Kind.BULK);
     }
 
     public void pushRealtimeEntry(String key, String value) throws IOException {
-        byte[] entityKey = this.getEntityKey(key);
+        pushRealtimeRow(getEntityKey(key), value);
+    }
+
+    public void pushRealtimeEntry(long key, String value) throws IOException {
+        pushRealtimeRow(getEntityKey(key), value);
+    }
+
+    /**
+     * Pushes a bulk value into view; for the default view this is the same
+     * as pushBulkEntry().
+     */
+    public void pushBulkEntry(LambdaView view, String key, String value) throws IOException {
+        pushViewRow(view, true, getEntityKey(key), value);
+    }
+
+    public void pushBulkEntry(LambdaView view, long key, String value) throws IOException {
+        pushViewRow(view, true, getEntityKey(key), value);
+    }
+
+    public void pushRealtimeEntry(LambdaView view, String key, String value) throws IOException {
+        pushViewRow(view, false, getEntityKey(key), value);
+    }
+
+    public void pushRealtimeEntry(LambdaView view, long key, String value) throws IOException {
+        pushViewRow(view, false, getEntityKey(key), value);
+    }
 
+    private void pushViewRow(LambdaView view, boolean bulk, byte[] entityKey, String value) throws IOException {
+        if (view == LambdaView.DEFAULT) {
+            if (bulk) {
+                pushBulkRow(entityKey, value);
+            } else {
+                pushRealtimeRow(entityKey, value);
+            }
+            return;
+        }
+        if (!this.views.contains(view))
+            throw new IllegalArgumentException("View " + view.getName() + " was not added");
+        if (!bulk) {
+            RealtimeTouchIndex index = this.touchIndex;
+            if (index != null)
+                index.touch(entityKey);
+        }
         Put insertOp = new Put(entityKey);
-        insertOp.add(FAMILY, REALTIME_COLUMN, stringToBytes(value));
+        insertOp.add(view.getFamily(), bulk ? view.getBulkColumn() : view.getRealtimeColumn(), cellTimestamp(),
+                bulk ? this.valueCodec.encode(value) : stringToBytes(value));
+        putPresent(entityKey, insertOp);
+    }
+
+    private void pushRealtimeRow(byte[] entityKey, String value) throws IOException {
+        HotKeys hot = this.hotKeys;
+        if (hot != null && hot.recordWrite(entityKey)) {
+            hot.collapseWrite(entityKey, value, new HotKeys.RowWriter() {
+                @Override
+                public void write(byte[] rowKey, String latest) throws IOException {
+                    writeRealtimeRow(rowKey, latest);
+                }
+            });
+            return;
+        }
+        writeRealtimeRow(entityKey, value);
+    }
+
+    private void writeRealtimeRow(byte[] entityKey, String value) throws IOException {
+        byte[] realtimeValue = stringToBytes(value);
+        RealtimeOverlay overlay = this.realtimeOverlay;
+        // the overlay needs to know the timestamp the cell gets
+        long timestamp = overlay != null ? now() : cellTimestamp();
+        // index first, a write that fails afterwards only costs the cleaner a read
+        RealtimeTouchIndex index = this.touchIndex;
+        if (index != null)
+            index.touch(entityKey);
+        Put insertOp = new Put(entityKey);
+        insertOp.add(FAMILY, REALTIME_COLUMN, timestamp, realtimeValue);
+        putPresent(entityKey, insertOp);
+        if (overlay != null)
+            overlay.put(entityKey, realtimeValue, timestamp);
+        notifyChange(entityKey, ChangeListener.Kind.REALTIME);
+    }
+
+    /**
+     * Writes many bulk values into one column with a single multi-put; see
+     * BulkLoad.
+     */
+    void pushBulkRows(byte[] bulkColumn, List<byte[]> rowKeys, List<String> values) throws IOException {
+        long timestamp = cellTimestamp();
+        List<Put> insertOps = new ArrayList<>(rowKeys.size());
+        for (int i = 0; i < rowKeys.size(); i++) {
+            Put insertOp = new Put(rowKeys.get(i));
+            insertOp.add(FAMILY, bulkColumn, timestamp, this.valueCodec.encode(values.get(i)));
+            insertOps.add(insertOp);
+            addPresence(rowKeys.get(i));
+        }
+        this.lambdaTable.put(insertOps);
+        // again in case a filter rebuild started before the rows were written
+        for (byte[] rowKey : rowKeys) {
+            addPresence(rowKey);
+        }
+    }
+
+    /**
+     * Writes many realtime values with a single multi-put; see
+     * RealtimeIngestor. The row keys must be distinct.
+     */
+    void pushRealtimeRows(List<byte[]> rowKeys, List<String> values) throws IOException {
+        RealtimeOverlay overlay = this.realtimeOverlay;
+        long timestamp = overlay != null ? now() : cellTimestamp();
+        List<Put> insertOps = new ArrayList<>(rowKeys.size());
+        List<byte[]> realtimeValues = new ArrayList<>(rowKeys.size());
+        for (int i = 0; i < rowKeys.size(); i++) {
+            byte[] realtimeValue = stringToBytes(values.get(i));
+            Put insertOp = new Put(rowKeys.get(i));
+            insertOp.add(FAMILY, REALTIME_COLUMN, timestamp, realtimeValue);
+            insertOps.add(insertOp);
+            realtimeValues.add(realtimeValue);
+            addPresence(rowKeys.get(i));
+        }
+        RealtimeTouchIndex index = this.touchIndex;
+        if (index != null)
+            index.touch(rowKeys);
+        HotKeys hot = this.hotKeys;
+        if (hot != null) {
+            // already batched, only counted
+            for (byte[] rowKey : rowKeys) {
+                hot.recordWrite(rowKey);
+            }
+        }
+        this.lambdaTable.put(insertOps);
+        for (int i = 0; i < rowKeys.size(); i++) {
+            addPresence(rowKeys.get(i));
+            if (overlay != null)
+                overlay.put(rowKeys.get(i), realtimeValues.get(i), timestamp);
+            notifyChange(rowKeys.get(i), ChangeListener.Kind.REALTIME);
+        }
+    }
+
+    private void putPresent(byte[] rowKey, Put insertOp) throws IOException {
+        // mark the key before the write so readers never see the row but miss the bit,
+        // and again after it in case a filter rebuild started in between
+        addPresence(rowKey);
         this.lambdaTable.put(insertOp);
+        addPresence(rowKey);
     }
 
     private Cell getCell(String key, byte[] column) throws IOException {
-        byte[] rowKey = this.getEntityKey(key);
+        return getCell(this.getEntityKey(key), column);
+    }
 
+    private Cell getCell(byte[] rowKey, byte[] column) throws IOException {
         Get entityRowGet = new Get(rowKey);
         Result result = this.lambdaTable.get(entityRowGet);
 
@@ -54,20 +571,38 @@ public class SimplifiedLambda {
         return cell;
     }
 
+    private Result getColumns(byte[] rowKey, byte[]... columns) throws IOException {
+        Get entityRowGet = new Get(rowKey);
+        for (byte[] column : columns) {
+            entityRowGet.addColumn(FAMILY, column);
+        }
+        return this.lambdaTable.get(entityRowGet);
+    }
+
     private String getValueFromCell(Cell cell) {
-        return Bytes.toString(CellUtil.cloneValue(cell));
+        // decode straight from the cell's backing array instead of cloning it first
+        return this.valueCodec.decode(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
     }
 
     public String getItemForKey(String key, byte[] column) throws IOException {
-        Cell cell = getCell(key, column);
+        String value = findItemForKey(key, column);
 
-        if (cell != null) {
-            return getValueFromCell(cell);
+        if (value != null) {
+            return value;
         } else {
             throw new IOException("Cannot retrieve string from hbase");
         }
     }
 
+    /**
+     * Like getItemForKey(), but returns null instead of throwing if the cell
+     * does not exist.
+     */
+    public String findItemForKey(String key, byte[] column) throws IOException {
+        Cell cell = getColumns(getEntityKey(key), column).getColumnLatestCell(FAMILY, column);
+        return cell == null ? null : getValueFromCell(cell);
+    }
+
     public long getTimestampForKey(String key, byte[] column) throws IOException {
         Cell cell = getCell(key, column);
 
@@ -90,93 +625,777 @@ public class SimplifiedLambda {
         //     else:
         //       move realtime to bulk
         //
+        // the same scan rebuilds the presence filter, if enabled
 
+        PresenceRebuild rebuild = beginPresenceRebuild();
+        boolean completed = false;
+        try {
+            cleanAllRows();
+            completed = true;
+        } finally {
+            finishPresenceRebuild(rebuild, completed);
+        }
+    }
+
+    private void cleanAllRows() throws IOException {
         Scan scan = new Scan();
-        scan.addFamily(FAMILY);
-        ResultScanner resultScanner = this.lambdaTable.getScanner(scan);
+        addViewFamilies(scan);
+        ResultScanner resultScanner = getBackgroundTable().getScanner(scan);
 
         for (Result result : resultScanner) {
             if (result.isEmpty())
                 continue;
-            String key = Bytes.toString(result.getRow());
-            boolean hasBulk = false;
-            boolean hasRealtime = false;
+            addPresence(result.getRow());
+            cleanRow(result);
+        }
+    }
 
-            Cell bulkCell = getCell(key, BULK_COLUMN);
-            if (bulkCell != null)
-                hasBulk = true;
+    /**
+     * Settles only the rows recorded in the touch index, in multi-gets of
+     * batchSize rows, instead of scanning the whole table, and returns the
+     * number of rows read. Buckets that are still open are left for the next
+     * call. Unlike cleaner(), this does not rebuild the presence filter or
+     * backfill the COMBINED view.
+     */
+    public int cleanTouched(int batchSize) throws IOException {
+        RealtimeTouchIndex index = this.touchIndex;
+        if (index == null)
+            throw new IllegalStateException("No touch index set");
+        int cleaned = 0;
+        List<Result> indexBatch = new ArrayList<>(batchSize);
+        ResultScanner indexScanner = index.scanClosed(batchSize);
+        try {
+            for (Result indexResult : indexScanner) {
+                indexBatch.add(indexResult);
+                if (indexBatch.size() >= batchSize) {
+                    cleaned += cleanTouchedBatch(index, indexBatch);
+                    indexBatch.clear();
+                }
+            }
+            if (!indexBatch.isEmpty())
+                cleaned += cleanTouchedBatch(index, indexBatch);
+        } finally {
+            indexScanner.close();
+        }
+        return cleaned;
+    }
 
-            Cell realtimeCell = getCell(key, REALTIME_COLUMN);
-            if (realtimeCell != null)
-                hasRealtime = true;
+    /**
+     * Runs the cleaner on the region servers with CombineEndpoint, so no row
+     * data crosses the network, and returns the number of mutations issued.
+     * Rows cleaned there are not reported to change listeners and the
+     * presence filter is not rebuilt. Not available with bulk generations.
+     */
+    public long cleanOnServer() throws IOException {
+        if (this.bulkGenerations != null)
+            throw new IllegalStateException("Bulk generations cannot be cleaned server-side");
+        final Message request = CombineProtocol.rangeRequest(HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW,
+                BULK_COLUMN, this.combinedView);
+        Map<byte[], Message> responses = callCombineEndpoint(getBackgroundTable(), HConstants.EMPTY_START_ROW,
+                HConstants.EMPTY_END_ROW, new Batch.Call<CombineProtocol, Message>() {
+                    @Override
+                    public Message call(CombineProtocol endpoint) throws IOException {
+                        ServerRpcController controller = new ServerRpcController();
+                        BlockingRpcCallback<Message> done = new BlockingRpcCallback<>();
+                        endpoint.clean(controller, request, done);
+                        controller.checkFailed();
+                        return done.get();
+                    }
+                });
+        long mutations = 0;
+        for (Message response : responses.values()) {
+            mutations += CombineProtocol.getLong(response, CombineProtocol.MUTATIONS);
+        }
+        return mutations;
+    }
+
+    private int cleanTouchedBatch(RealtimeTouchIndex index, List<Result> indexBatch) throws IOException {
+        // a row touched in several buckets is read once
+        Map<byte[], Get> gets = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+        for (Result indexResult : indexBatch) {
+            byte[] rowKey = RealtimeTouchIndex.rowKeyOf(indexResult);
+            Get get = new Get(rowKey);
+            get.addFamily(FAMILY);
+            for (LambdaView view : this.views) {
+                get.addFamily(view.getFamily());
+            }
+            gets.put(rowKey, get);
+        }
+        List<Get> getOps = new ArrayList<>(gets.values());
+        Result[] results = getBackgroundTable().get(getOps);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null && !results[i].isEmpty())
+                settleRow(getOps.get(i).getRow(), results[i]);
+        }
+        index.remove(indexBatch);
+        return results.length;
+    }
 
-            byte[] rowKey = this.getEntityKey(key);
+    /**
+     * Settles one scanned row from the scanned cells and returns the number
+     * of mutations issued. Rows without a realtime cell cost no I/O unless
+     * the COMBINED view or bulk generations need maintenance.
+     *
+     * Safe with a stale scan and safe to repeat after a failure: promotion
+     * keeps the realtime cell's timestamp and only versions of REALTIME up to
+     * the one that was read are deleted, so a retry finds the row settled, a
+     * newer bulk load is never overwritten and a realtime write racing with
+     * the cleaner survives.
+     */
+    int cleanRow(Result result) throws IOException {
+        if (!needsSettling(result))
+            return 0;
+        return settleRow(result.getRow(), result);
+    }
 
-            if (hasRealtime && !hasBulk) {
-                // move realtime to bulk
-                byte[] realtimeValue = CellUtil.cloneValue(realtimeCell);
-                Put insertOp = new Put(rowKey);
-                insertOp.add(FAMILY, BULK_COLUMN, realtimeValue);
-                Delete deleteOp = new Delete(rowKey);
-                deleteOp.deleteColumn(FAMILY, REALTIME_COLUMN);
-
-                this.lambdaTable.put(insertOp);
-                this.lambdaTable.delete(deleteOp);
-            } else if (hasRealtime && hasBulk) {
-                long bulkTimestamp = bulkCell.getTimestamp();
-                long realtimeTimestamp = realtimeCell.getTimestamp();
-                if (bulkTimestamp > realtimeTimestamp ) {
-                    //delete realtimeTimestamp
-                    Delete deleteOp = new Delete(rowKey);
-                    deleteOp.deleteColumn(FAMILY, REALTIME_COLUMN);
-                    this.lambdaTable.delete(deleteOp);
-                } else {
-                    // move realtime to bulk
-                    byte[] realtimeValue = CellUtil.cloneValue(realtimeCell);
-                    Put insertOp = new Put(rowKey);
-                    insertOp.add(FAMILY, BULK_COLUMN, realtimeValue);
-                    Delete deleteOp = new Delete(rowKey);
-                    deleteOp.deleteColumn(FAMILY, REALTIME_COLUMN);
-                    this.lambdaTable.put(insertOp);
-                    this.lambdaTable.delete(deleteOp);
+    private boolean needsSettling(Result result) {
+        if (this.combinedView || this.bulkGenerations != null)
+            return true;
+        if (result.containsColumn(FAMILY, REALTIME_COLUMN))
+            return true;
+        for (LambdaView view : this.views) {
+            if (result.containsColumn(view.getFamily(), view.getRealtimeColumn()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Settles every view of a row given its cells.
+     */
+    private int settleRow(byte[] rowKey, Result current) throws IOException {
+        int mutations = settleDefaultView(rowKey, current);
+        if (!this.views.isEmpty())
+            mutations += settleViews(rowKey, current);
+        return mutations;
+    }
+
+    /**
+     * Settles the added views of a row with a single mutateRow(). Each view
+     * compares only its own bulk and realtime timestamps.
+     */
+    private int settleViews(byte[] rowKey, Result current) throws IOException {
+        Put insertOp = new Put(rowKey);
+        Delete deleteOp = new Delete(rowKey);
+        for (LambdaView view : this.views) {
+            Cell realtimeCell = current.getColumnLatestCell(view.getFamily(), view.getRealtimeColumn());
+            if (realtimeCell == null)
+                continue;
+            long realtimeTimestamp = realtimeCell.getTimestamp();
+            Cell bulkCell = current.getColumnLatestCell(view.getFamily(), view.getBulkColumn());
+            // move realtime to bulk unless bulk is newer, then just drop realtime
+            if (bulkCell == null || bulkCell.getTimestamp() <= realtimeTimestamp)
+                insertOp.add(view.getFamily(), view.getBulkColumn(), realtimeTimestamp, CellUtil.cloneValue(realtimeCell));
+            deleteOp.deleteColumns(view.getFamily(), view.getRealtimeColumn(), realtimeTimestamp);
+        }
+        if (deleteOp.isEmpty())
+            return 0;
+        RowMutations mutations = new RowMutations(rowKey);
+        if (!insertOp.isEmpty())
+            mutations.add(insertOp);
+        mutations.add(deleteOp);
+        getBackgroundTable().mutateRow(mutations);
+        return 1;
+    }
+
+    /**
+     * Settles the default view of a row.
+     */
+    private int settleDefaultView(byte[] rowKey, Result current) throws IOException {
+        boolean hasBulk = false;
+        boolean hasRealtime = false;
+        HTableInterface table = getBackgroundTable();
+        BulkGenerations generations = this.bulkGenerations;
+        BulkGenerations.Pointer pointer = null;
+        Cell stagingCell = null;
+        int dropped = 0;
+        byte[] bulkColumn = BULK_COLUMN;
+        if (generations != null) {
+            bulkColumn = activeBulkColumn();
+            pointer = generations.current();
+            if (pointer.isLoading())
+                stagingCell = current.getColumnLatestCell(FAMILY, BulkGenerations.bulkColumn(pointer.staging));
+            dropped = dropRetiredGenerations(rowKey, current, generations, pointer);
+        }
+        Cell bulkCell = current.getColumnLatestCell(FAMILY, bulkColumn);
+        if (bulkCell != null)
+            hasBulk = true;
+
+        Cell realtimeCell = current.getColumnLatestCell(FAMILY, REALTIME_COLUMN);
+        if (realtimeCell != null)
+            hasRealtime = true;
+
+        if (hasRealtime && !hasBulk) {
+            // move realtime to bulk
+            return dropped + promoteRealtime(rowKey, bulkColumn, realtimeCell, pointer, stagingCell);
+        } else if (hasRealtime && hasBulk) {
+            long bulkTimestamp = bulkCell.getTimestamp();
+            long realtimeTimestamp = realtimeCell.getTimestamp();
+            if (bulkTimestamp > realtimeTimestamp ) {
+                if (pointer != null && pointer.isLoading()
+                        && (stagingCell == null || stagingCell.getTimestamp() < realtimeTimestamp)) {
+                    // the generation being loaded has not seen this value yet, keep it for after the publish
+                    return dropped + promoteRealtime(rowKey, null, realtimeCell, pointer, stagingCell);
                 }
+                //delete realtimeTimestamp
+                int mutations = 1;
+                if (this.combinedView)
+                    mutations += materializeBulk(rowKey, bulkCell, current.getColumnLatestCell(FAMILY, COMBINED_COLUMN));
+                Delete deleteOp = new Delete(rowKey);
+                deleteOp.deleteColumns(FAMILY, REALTIME_COLUMN, realtimeTimestamp);
+                table.delete(deleteOp);
+                notifyChange(rowKey, ChangeListener.Kind.CLEANED);
+                return dropped + mutations;
+            } else {
+                // move realtime to bulk
+                return dropped + promoteRealtime(rowKey, bulkColumn, realtimeCell, pointer, stagingCell);
             }
+        } else if (hasBulk && this.combinedView) {
+            // backfill rows loaded before the view was enabled
+            return materializeBulk(rowKey, bulkCell, current.getColumnLatestCell(FAMILY, COMBINED_COLUMN));
         }
+        return dropped;
+    }
+
+    /**
+     * Moves the realtime cell into bulkColumn, unless that is null, and into
+     * the generation being loaded if it is older there.
+     */
+    private int promoteRealtime(byte[] rowKey, byte[] bulkColumn, Cell realtimeCell, BulkGenerations.Pointer pointer,
+                                Cell stagingCell) throws IOException {
+        long realtimeTimestamp = realtimeCell.getTimestamp();
+        byte[] realtimeValue = CellUtil.cloneValue(realtimeCell);
+        Put insertOp = new Put(rowKey);
+        if (bulkColumn != null)
+            insertOp.add(FAMILY, bulkColumn, realtimeTimestamp, realtimeValue);
+        if (this.combinedView)
+            insertOp.add(FAMILY, COMBINED_COLUMN, realtimeTimestamp, realtimeValue);
+        if (pointer != null && pointer.isLoading()
+                && (stagingCell == null || stagingCell.getTimestamp() < realtimeTimestamp))
+            insertOp.add(FAMILY, BulkGenerations.bulkColumn(pointer.staging), realtimeTimestamp, realtimeValue);
+        Delete deleteOp = new Delete(rowKey);
+        deleteOp.deleteColumns(FAMILY, REALTIME_COLUMN, realtimeTimestamp);
+
+        RowMutations mutations = new RowMutations(rowKey);
+        mutations.add(insertOp);
+        mutations.add(deleteOp);
+        getBackgroundTable().mutateRow(mutations);
+        notifyChange(rowKey, ChangeListener.Kind.CLEANED);
+        return 1;
+    }
+
+    private int dropRetiredGenerations(byte[] rowKey, Result current, BulkGenerations generations,
+                                       BulkGenerations.Pointer pointer) throws IOException {
+        Delete deleteOp = null;
+        for (Cell cell : current.rawCells()) {
+            if (!CellUtil.matchingFamily(cell, FAMILY))
+                continue;
+            byte[] qualifier = CellUtil.cloneQualifier(cell);
+            long generation = BulkGenerations.generationOf(qualifier);
+            if (generation < 0 || !generations.isRetired(pointer, generation))
+                continue;
+            if (deleteOp == null)
+                deleteOp = new Delete(rowKey);
+            // an explicit timestamp: cells stamped by a clock are newer than the server time
+            deleteOp.deleteColumns(FAMILY, qualifier, cell.getTimestamp());
+        }
+        if (deleteOp == null)
+            return 0;
+        getBackgroundTable().delete(deleteOp);
+        return 1;
+    }
+
+    private int materializeBulk(byte[] rowKey, Cell bulkCell, Cell combinedCell) throws IOException {
+        if (combinedCell != null && combinedCell.getTimestamp() >= bulkCell.getTimestamp())
+            return 0;
+        // keep the bulk cell's timestamp, it is what the check above compares
+        Put insertOp = new Put(rowKey);
+        insertOp.add(FAMILY, COMBINED_COLUMN, bulkCell.getTimestamp(), CellUtil.cloneValue(bulkCell));
+        getBackgroundTable().put(insertOp);
+        return 1;
     }
 
     public String combiner(String key) throws IOException {
+        return combined(lookup(key));
+    }
+
+    public String combiner(long key) throws IOException {
+        return combined(lookup(key));
+    }
+
+    static private String combined(CombineResult result) throws IOException {
+        switch (result.getSource()) {
+            case NONE:
+                throw new IOException("Cannot retrieve string from hbase");
+            case CONFLICT:
+                throw new IOException("Bulk timestamp newer than realtime: shouldn't happen!");
+            default:
+                return result.getValue();
+        }
+    }
+
+    /**
+     * Exception-free combiner. Misses come back as CombineResult.ABSENT and a
+     * bulk cell newer than realtime as a CONFLICT result; both cell timestamps
+     * are reported so callers can judge freshness without another round trip.
+     */
+    public CombineResult lookup(String key) throws IOException {
+        return lookupRow(getEntityKey(key));
+    }
+
+    public CombineResult lookup(long key) throws IOException {
+        return lookupRow(getEntityKey(key));
+    }
+
+    /**
+     * Combines many keys with a single multi-get. The results are in the same
+     * order as the keys.
+     */
+    public CombineResult[] lookup(List<String> keys) throws IOException {
+        List<byte[]> rows = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            rows.add(getEntityKey(key));
+        }
+        return lookupRows(rows);
+    }
+
+    /**
+     * Combines many numeric keys with a single multi-get. The results are in
+     * the same order as the keys.
+     */
+    public CombineResult[] lookup(long[] keys) throws IOException {
+        List<byte[]> rows = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            rows.add(getEntityKey(key));
+        }
+        return lookupRows(rows);
+    }
+
+    CombineResult lookupRow(byte[] rowKey) throws IOException {
+        HotKeys hot = this.hotKeys;
+        if (hot != null && hot.recordRead(rowKey)) {
+            return hot.coalesceRead(rowKey, new HotKeys.RowReader() {
+                @Override
+                public CombineResult read(byte[] rowKey) throws IOException {
+                    return readRow(rowKey);
+                }
+            });
+        }
+        return readRow(rowKey);
+    }
+
+    private CombineResult readRow(byte[] rowKey) throws IOException {
+        CombineResult overlaid = lookupOverlay(rowKey);
+        if (overlaid != null)
+            return overlaid;
+        if (isDefinitelyAbsent(rowKey))
+            return CombineResult.ABSENT;
+
+        if (this.combinedView) {
+            // one Get for the settled value and the dirty marker
+            Result result = getColumns(rowKey, COMBINED_COLUMN, REALTIME_COLUMN);
+            Cell combinedCell = result.getColumnLatestCell(FAMILY, COMBINED_COLUMN);
+            Cell realtimeCell = result.getColumnLatestCell(FAMILY, REALTIME_COLUMN);
+            if (combinedCell != null && realtimeCell == null)
+                return resolve(combinedCell, null);
+            if (realtimeCell != null)
+                return resolve(getCell(rowKey, BULK_COLUMN), realtimeCell);
+        }
+
+        byte[] bulkColumn = activeBulkColumn();
+        Result result = getColumns(rowKey, bulkColumn, REALTIME_COLUMN);
+        return resolve(result.getColumnLatestCell(FAMILY, bulkColumn),
+                result.getColumnLatestCell(FAMILY, REALTIME_COLUMN));
+    }
+
+    /**
+     * Combines every row in [startRow, stopRow) with one sequential scan,
+     * fetching scannerCaching rows per round trip, instead of one Get per key.
+     * Empty start or stop rows leave that end open. The presence filter and
+     * the COMBINED view are not consulted.
+     */
+    public CombineScanner scanCombined(byte[] startRow, byte[] stopRow, int scannerCaching) throws IOException {
+        byte[] bulkColumn = activeBulkColumn();
+        Scan scan = new Scan(startRow, stopRow);
+        scan.addColumn(FAMILY, bulkColumn);
+        scan.addColumn(FAMILY, REALTIME_COLUMN);
+        scan.setCaching(scannerCaching);
+        return new CombineScanner(this, this.lambdaTable.getScanner(scan), bulkColumn);
+    }
+
+    /**
+     * Combines every key starting with prefix, e.g. all photos of a user when
+     * keys are laid out as "userId/photoId".
+     */
+    public CombineScanner scanCombined(String prefix, int scannerCaching) throws IOException {
+        byte[] startRow = stringToBytes(prefix);
+        return scanCombined(startRow, prefixStopRow(startRow), scannerCaching);
+    }
+
+    /**
+     * Combines every numeric key in [startKey, stopKey). Only meaningful for
+     * non-negative ids, which are the ones that sort numerically.
+     */
+    public CombineScanner scanCombined(long startKey, long stopKey, int scannerCaching) throws IOException {
+        return scanCombined(getEntityKey(startKey), getEntityKey(stopKey), scannerCaching);
+    }
+
+    /**
+     * Like scanCombined(), but the rows are combined by CombineEndpoint on
+     * the region servers, so only combined values cross the network. Returns
+     * the whole range at once, which must fit in memory. The realtime
+     * overlay, presence filter and COMBINED view are not consulted.
+     */
+    public List<CombinedRow> combineOnServer(byte[] startRow, byte[] stopRow) throws IOException {
+        byte[] bulkColumn = activeBulkColumn();
+        final Message request = CombineProtocol.rangeRequest(startRow, stopRow, bulkColumn, false);
+        Map<byte[], Message> responses = callCombineEndpoint(this.lambdaTable, startRow, stopRow,
+                new Batch.Call<CombineProtocol, Message>() {
+                    @Override
+                    public Message call(CombineProtocol endpoint) throws IOException {
+                        ServerRpcController controller = new ServerRpcController();
+                        BlockingRpcCallback<Message> done = new BlockingRpcCallback<>();
+                        endpoint.combine(controller, request, done);
+                        controller.checkFailed();
+                        return done.get();
+                    }
+                });
+
+        HybridLogicalClock clock = this.clock;
+        List<CombinedRow> rows = new ArrayList<>();
+        for (Message response : responses.values()) {
+            for (int i = 0; i < response.getRepeatedFieldCount(CombineProtocol.ROWS); i++) {
+                Message row = (Message) response.getRepeatedField(CombineProtocol.ROWS, i);
+                byte[] rowKey = CombineProtocol.getBytes(row, CombineProtocol.ROW_KEY);
+                CombineResult.Source source = CombineResult.Source.values()[(Integer) row.getField(CombineProtocol.SOURCE)];
+                long bulkTimestamp = CombineProtocol.getLong(row, CombineProtocol.BULK_TIMESTAMP);
+                long realtimeTimestamp = CombineProtocol.getLong(row, CombineProtocol.REALTIME_TIMESTAMP);
+                boolean realtime = source == CombineResult.Source.REALTIME;
+                KeyValue valueCell = new KeyValue(rowKey, FAMILY, realtime ? REALTIME_COLUMN : bulkColumn,
+                        realtime ? realtimeTimestamp : bulkTimestamp, CombineProtocol.getBytes(row, CombineProtocol.VALUE));
+                if (clock != null)
+                    clock.observe(valueCell.getTimestamp());
+                rows.add(new CombinedRow(rowKey, new CombineResult(source, valueCell, this.valueCodec, bulkTimestamp,
+                        realtimeTimestamp)));
+            }
+        }
+        return rows;
+    }
+
+    private static <R> Map<byte[], R> callCombineEndpoint(HTableInterface table, byte[] startRow, byte[] stopRow,
+                                                         Batch.Call<CombineProtocol, R> call) throws IOException {
+        try {
+            return table.coprocessorService(CombineProtocol.class, startRow, stopRow, call);
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException("CombineEndpoint call failed", t);
+        }
+    }
+
+    static byte[] prefixStopRow(byte[] prefix) {
+        // the smallest key greater than every key with this prefix
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] stopRow = Arrays.copyOf(prefix, i + 1);
+                stopRow[i]++;
+                return stopRow;
+            }
+        }
+        return HConstants.EMPTY_END_ROW;
+    }
+
+    private CombineResult lookupOverlay(byte[] rowKey) {
+        RealtimeOverlay overlay = this.realtimeOverlay;
+        if (overlay == null)
+            return null;
+        RealtimeOverlay.Entry entry = overlay.get(rowKey);
+        if (entry == null)
+            return null;
+        // the bulk cell was not read; any bulk write seen since would have invalidated the entry
+        KeyValue realtimeCell = new KeyValue(rowKey, FAMILY, REALTIME_COLUMN, entry.timestamp, entry.value);
+        return new CombineResult(CombineResult.Source.REALTIME, realtimeCell, this.valueCodec,
+                CombineResult.NO_TIMESTAMP, entry.timestamp);
+    }
+
+    /**
+     * Resolves key as it was at asOfTimestamp (inclusive), using only cell
+     * versions written up to then.
+     *
+     * History only goes as far as the table keeps it: bulk generations need
+     * VERSIONS > 1 on FAMILY, and realtime cells the cleaner has deleted are
+     * gone, so rows promoted since asOfTimestamp show their older bulk value.
+     * The presence filter and the COMBINED view only describe the present and
+     * are not consulted. With bulk generations only the active one is read.
+     */
+    public CombineResult lookupAsOf(String key, long asOfTimestamp) throws IOException {
+        byte[] bulkColumn = activeBulkColumn();
+        Get entityRowGet = new Get(getEntityKey(key));
+        entityRowGet.addColumn(FAMILY, bulkColumn);
+        entityRowGet.addColumn(FAMILY, REALTIME_COLUMN);
+        entityRowGet.setTimeRange(0, asOfTimestamp + 1);
+        entityRowGet.setMaxVersions(1);
+        Result result = this.lambdaTable.get(entityRowGet);
+        return resolve(result.getColumnLatestCell(FAMILY, bulkColumn),
+                result.getColumnLatestCell(FAMILY, REALTIME_COLUMN));
+    }
+
+    /**
+     * Compares every row in [startRow, stopRow) as of two points in time with
+     * a single scan, and returns the rows whose combined value or source
+     * differs. Empty start or stop rows leave that end open. The same history
+     * caveats as for lookupAsOf() apply.
+     */
+    public List<CombineDiff> diffAsOf(byte[] startRow, byte[] stopRow, long fromTimestamp, long toTimestamp) throws IOException {
+        byte[] bulkColumn = activeBulkColumn();
+        Scan scan = new Scan(startRow, stopRow);
+        scan.addColumn(FAMILY, bulkColumn);
+        scan.addColumn(FAMILY, REALTIME_COLUMN);
+        scan.setTimeRange(0, Math.max(fromTimestamp, toTimestamp) + 1);
+        scan.setMaxVersions();
+
+        List<CombineDiff> res = new ArrayList<>();
+        ResultScanner resultScanner = this.lambdaTable.getScanner(scan);
+        try {
+            for (Result result : resultScanner) {
+                if (result.isEmpty())
+                    continue;
+                List<Cell> bulkCells = result.getColumnCells(FAMILY, bulkColumn);
+                List<Cell> realtimeCells = result.getColumnCells(FAMILY, REALTIME_COLUMN);
+                CombineResult before = resolve(newestAsOf(bulkCells, fromTimestamp), newestAsOf(realtimeCells, fromTimestamp));
+                CombineResult after = resolve(newestAsOf(bulkCells, toTimestamp), newestAsOf(realtimeCells, toTimestamp));
+                if (before.getSource() != after.getSource() || !Objects.equals(before.getValue(), after.getValue()))
+                    res.add(new CombineDiff(result.getRow(), before, after));
+            }
+        } finally {
+            resultScanner.close();
+        }
+        return res;
+    }
+
+    static private Cell newestAsOf(List<Cell> versions, long asOfTimestamp) {
+        // versions come newest first
+        for (Cell cell : versions) {
+            if (cell.getTimestamp() <= asOfTimestamp)
+                return cell;
+        }
+        return null;
+    }
+
+    CombineResult resolve(Cell bulkCell, Cell realtimeCell) {
         boolean hasBulk = false;
         boolean hasRealtime = false;
 
-        Cell bulkCell = getCell(key, BULK_COLUMN);
+        HybridLogicalClock clock = this.clock;
+        if (clock != null) {
+            // later writes of this process must order after what it has seen
+            if (bulkCell != null)
+                clock.observe(bulkCell.getTimestamp());
+            if (realtimeCell != null)
+                clock.observe(realtimeCell.getTimestamp());
+        }
+
         if (bulkCell != null)
             hasBulk = true;
 
-        Cell realtimeCell = getCell(key, REALTIME_COLUMN);
         if (realtimeCell != null)
             hasRealtime = true;
 
         if (!hasBulk && !hasRealtime) {
-            throw new IOException("Cannot retrieve string from hbase");
+            return CombineResult.ABSENT;
         } else if (hasBulk && !hasRealtime) {
-            return getValueFromCell(bulkCell);
+            return new CombineResult(CombineResult.Source.BULK, bulkCell, this.valueCodec,
+                    bulkCell.getTimestamp(), CombineResult.NO_TIMESTAMP);
         } else if (!hasBulk && hasRealtime) {
-            return getValueFromCell(realtimeCell);
+            return new CombineResult(CombineResult.Source.REALTIME, realtimeCell, this.valueCodec,
+                    CombineResult.NO_TIMESTAMP, realtimeCell.getTimestamp());
         } else {
             long bulkTimestamp = bulkCell.getTimestamp();
             long realtimeTimestamp = realtimeCell.getTimestamp();
             if (realtimeTimestamp > bulkTimestamp) {
-                return getValueFromCell(realtimeCell);
+                return new CombineResult(CombineResult.Source.REALTIME, realtimeCell, this.valueCodec,
+                        bulkTimestamp, realtimeTimestamp);
             } else {
-                throw new IOException("Bulk timestamp newer than realtime: shouldn't happen!");
+                return new CombineResult(CombineResult.Source.CONFLICT, bulkCell, this.valueCodec,
+                        bulkTimestamp, realtimeTimestamp);
+            }
+        }
+    }
+
+    /**
+     * Combines many keys with a single multi-get. Keys that have no data, or
+     * whose bulk value is newer than realtime and still awaits the cleaner, are
+     * left out of the returned map.
+     */
+    public Map<String, String> batchCombiner(List<String> keys) throws IOException {
+        CombineResult[] results = lookup(keys);
+        Map<String, String> res = new TreeMap<>();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isPresent())
+                res.put(keys.get(i), results[i].getValue());
+        }
+        return res;
+    }
+
+    /**
+     * Numeric counterpart of batchCombiner(List). The values are in the same
+     * order as the keys; keys left out of the map by the String version are
+     * null here.
+     */
+    public String[] batchCombiner(long[] keys) throws IOException {
+        CombineResult[] results = lookup(keys);
+        String[] res = new String[results.length];
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isPresent())
+                res[i] = results[i].getValue();
+        }
+        return res;
+    }
+
+    /**
+     * Combines every view of key with a single Get and returns the results
+     * by view name, in the order of getViews().
+     */
+    public Map<String, CombineResult> lookupViews(String key) throws IOException {
+        return lookupViewRows(Arrays.asList(getEntityKey(key))).get(0);
+    }
+
+    public Map<String, CombineResult> lookupViews(long key) throws IOException {
+        return lookupViewRows(Arrays.asList(getEntityKey(key))).get(0);
+    }
+
+    /**
+     * Combines every view of many keys with a single multi-get. The results
+     * are in the same order as the keys.
+     */
+    public List<Map<String, CombineResult>> lookupViews(List<String> keys) throws IOException {
+        List<byte[]> rows = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            rows.add(getEntityKey(key));
+        }
+        return lookupViewRows(rows);
+    }
+
+    private List<Map<String, CombineResult>> lookupViewRows(List<byte[]> rows) throws IOException {
+        List<LambdaView> views = getViews();
+        byte[] bulkColumn = activeBulkColumn();
+        List<Get> gets = new ArrayList<>(rows.size());
+        for (byte[] row : rows) {
+            Get entityRowGet = new Get(row);
+            entityRowGet.addColumn(FAMILY, bulkColumn);
+            entityRowGet.addColumn(FAMILY, REALTIME_COLUMN);
+            for (int v = 1; v < views.size(); v++) {
+                entityRowGet.addColumn(views.get(v).getFamily(), views.get(v).getBulkColumn());
+                entityRowGet.addColumn(views.get(v).getFamily(), views.get(v).getRealtimeColumn());
+            }
+            gets.add(entityRowGet);
+        }
+        Result[] results = this.lambdaTable.get(gets);
+        List<Map<String, CombineResult>> res = new ArrayList<>(rows.size());
+        for (int i = 0; i < results.length; i++) {
+            Result result = results[i];
+            Map<String, CombineResult> combined = new LinkedHashMap<>();
+            CombineResult overlaid = lookupOverlay(rows.get(i));
+            for (int v = 0; v < views.size(); v++) {
+                LambdaView view = views.get(v);
+                if (v == 0 && overlaid != null) {
+                    combined.put(view.getName(), overlaid);
+                } else if (result == null || result.isEmpty()) {
+                    combined.put(view.getName(), CombineResult.ABSENT);
+                } else {
+                    combined.put(view.getName(), resolve(
+                            result.getColumnLatestCell(view.getFamily(), v == 0 ? bulkColumn : view.getBulkColumn()),
+                            result.getColumnLatestCell(view.getFamily(), view.getRealtimeColumn())));
+                }
+            }
+            res.add(combined);
+        }
+        return res;
+    }
+
+    CombineResult[] lookupRows(List<byte[]> rows) throws IOException {
+        CombineResult[] res = new CombineResult[rows.size()];
+        // indexes into rows that still need the table
+        int[] pending = new int[rows.size()];
+        int numPending = 0;
+        for (int i = 0; i < res.length; i++) {
+            CombineResult overlaid = lookupOverlay(rows.get(i));
+            if (overlaid != null) {
+                res[i] = overlaid;
+            } else if (isDefinitelyAbsent(rows.get(i))) {
+                res[i] = CombineResult.ABSENT;
+            } else {
+                pending[numPending++] = i;
+            }
+        }
+        if (numPending == 0)
+            return res;
+
+        if (this.combinedView) {
+            // settled rows are answered from COMBINED, only dirty ones need a second multi-get
+            List<Get> gets = new ArrayList<>(numPending);
+            for (int i = 0; i < numPending; i++) {
+                Get entityRowGet = new Get(rows.get(pending[i]));
+                entityRowGet.addColumn(FAMILY, COMBINED_COLUMN);
+                entityRowGet.addColumn(FAMILY, REALTIME_COLUMN);
+                gets.add(entityRowGet);
+            }
+            Result[] results = this.lambdaTable.get(gets);
+            int numDirty = 0;
+            for (int i = 0; i < numPending; i++) {
+                Cell combinedCell = results[i] == null ? null : results[i].getColumnLatestCell(FAMILY, COMBINED_COLUMN);
+                Cell realtimeCell = results[i] == null ? null : results[i].getColumnLatestCell(FAMILY, REALTIME_COLUMN);
+                if (combinedCell != null && realtimeCell == null) {
+                    res[pending[i]] = resolve(combinedCell, null);
+                } else {
+                    pending[numDirty++] = pending[i];
+                }
+            }
+            numPending = numDirty;
+            if (numPending == 0)
+                return res;
+        }
+
+        byte[] bulkColumn = activeBulkColumn();
+        List<Get> gets = new ArrayList<>(numPending);
+        for (int i = 0; i < numPending; i++) {
+            Get entityRowGet = new Get(rows.get(pending[i]));
+            entityRowGet.addColumn(FAMILY, bulkColumn);
+            entityRowGet.addColumn(FAMILY, REALTIME_COLUMN);
+            gets.add(entityRowGet);
+        }
+        Result[] results = this.lambdaTable.get(gets);
+        for (int i = 0; i < numPending; i++) {
+            Result result = results[i];
+            if (result == null || result.isEmpty()) {
+                res[pending[i]] = CombineResult.ABSENT;
+            } else {
+                res[pending[i]] = resolve(result.getColumnLatestCell(FAMILY, bulkColumn),
+                        result.getColumnLatestCell(FAMILY, REALTIME_COLUMN));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * A row key for display: numeric ids as numbers, other keys as strings
+     * with non-printable bytes escaped.
+     */
+    private static String describeRowKey(byte[] rowKey) {
+        if (rowKey.length == Bytes.SIZEOF_LONG) {
+            for (byte b : rowKey) {
+                if (b < ' ' || b > '~')
+                    return Long.toString(Bytes.toLong(rowKey));
             }
         }
+        return Bytes.toStringBinary(rowKey);
     }
 
     public String dumpTable() throws IOException {
         String res = "key\tbulk\trealtime\tcombined\n";
         res += "........................................\n";
 
+        byte[] bulkColumn = activeBulkColumn();
         Scan scan = new Scan();
         scan.addFamily(FAMILY);
         ResultScanner resultScanner = this.lambdaTable.getScanner(scan);
@@ -184,19 +1403,19 @@ public class SimplifiedLambda {
         for (Result result : resultScanner) {
             if (result.isEmpty())
                 continue;
-            String key = Bytes.toString(result.getRow());
+            byte[] rowKey = result.getRow();
             boolean hasBulk = false;
             boolean hasRealtime = false;
 
-            Cell bulkCell = getCell(key, BULK_COLUMN);
+            Cell bulkCell = getCell(rowKey, bulkColumn);
             if (bulkCell != null)
                 hasBulk = true;
 
-            Cell realtimeCell = getCell(key, REALTIME_COLUMN);
+            Cell realtimeCell = getCell(rowKey, REALTIME_COLUMN);
             if (realtimeCell != null)
                 hasRealtime = true;
 
-            res += key;
+            res += describeRowKey(rowKey);
             res += '\t';
             if (hasBulk) {
                 res += getValueFromCell(bulkCell);
@@ -211,7 +1430,7 @@ public class SimplifiedLambda {
             }
             res += "\t\t";
 
-            String combinedResult = combiner(key);
+            String combinedResult = combined(lookupRow(rowKey));
             res += combinedResult;
             res += '\n';
         }
@@ -0,0 +1,116 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Space-Saving heavy-hitter sketch (Metwally et al.) over row keys, with a
+ * fixed number of counters. Every key occurring more than total/capacity
+ * times is guaranteed to be tracked; a tracked key's count overestimates its
+ * true frequency by at most its error.
+ *
+ * Not thread-safe, see HotKeys.
+ */
+final class SpaceSavingSketch {
+    static final class Counter implements Comparable<Counter> {
+        final ByteBuffer key;
+        long count;
+        // count of the evicted key this counter took over
+        long error;
+        // tie breaker, so equal counts are distinct in the TreeSet
+        final long id;
+
+        Counter(ByteBuffer key, long count, long error, long id) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Counter other) {
+            if (this.count != other.count)
+                return this.count < other.count ? -1 : 1;
+            return this.id < other.id ? -1 : (this.id == other.id ? 0 : 1);
+        }
+    }
+
+    private final int capacity;
+    private final Map<ByteBuffer, Counter> counters;
+    // ascending by count, first() is the counter to replace
+    private final TreeSet<Counter> byCount = new TreeSet<>();
+    private long total = 0;
+    private long nextId = 0;
+
+    SpaceSavingSketch(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * Counts one occurrence of key and returns its guaranteed count, i.e.
+     * the estimate minus the error inherited from an evicted key. Only that
+     * part is known to be occurrences of key.
+     */
+    long offer(byte[] key) {
+        return offer(key, 1);
+    }
+
+    /**
+     * Counts weight occurrences of key at once, e.g. for sampled traffic.
+     */
+    long offer(byte[] key, long weight) {
+        this.total += weight;
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        Counter counter = this.counters.get(wrapped);
+        if (counter != null) {
+            this.byCount.remove(counter);
+            counter.count += weight;
+            this.byCount.add(counter);
+            return counter.count - counter.error;
+        }
+        if (this.counters.size() < this.capacity) {
+            counter = new Counter(wrapped, weight, 0, this.nextId++);
+        } else {
+            Counter evicted = this.byCount.pollFirst();
+            this.counters.remove(evicted.key);
+            counter = new Counter(wrapped, evicted.count + weight, evicted.count, this.nextId++);
+        }
+        this.counters.put(wrapped, counter);
+        this.byCount.add(counter);
+        return counter.count - counter.error;
+    }
+
+    /**
+     * Estimated count of key, 0 if it is not tracked.
+     */
+    long estimate(byte[] key) {
+        Counter counter = this.counters.get(ByteBuffer.wrap(key));
+        return counter == null ? 0 : counter.count;
+    }
+
+    /**
+     * The k keys with the highest counts, highest first.
+     */
+    List<Counter> top(int k) {
+        List<Counter> res = new ArrayList<>(Math.min(k, this.counters.size()));
+        Iterator<Counter> it = this.byCount.descendingIterator();
+        while (it.hasNext() && res.size() < k) {
+            res.add(it.next());
+        }
+        return res;
+    }
+
+    long getTotal() {
+        return this.total;
+    }
+}
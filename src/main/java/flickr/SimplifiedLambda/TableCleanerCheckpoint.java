@@ -0,0 +1,68 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CleanerCheckpoint kept in one metadata row, one column per range. It must
+ * not live in the lambda table itself or the cleaner and combiner would see
+ * the row.
+ */
+public class TableCleanerCheckpoint implements CleanerCheckpoint {
+    private final HTableInterface metaTable;
+    private final byte[] family;
+    private final byte[] checkpointRow;
+
+    public TableCleanerCheckpoint(HTableInterface metaTable, byte[] family, byte[] checkpointRow) {
+        this.metaTable = metaTable;
+        this.family = family;
+        this.checkpointRow = checkpointRow;
+    }
+
+    @Override
+    public Map<String, byte[]> load() throws IOException {
+        Get get = new Get(this.checkpointRow);
+        get.addFamily(this.family);
+        Result result = this.metaTable.get(get);
+        Map<String, byte[]> res = new TreeMap<>();
+        if (result == null || result.isEmpty())
+            return res;
+        for (Cell cell : result.rawCells()) {
+            res.put(Bytes.toString(CellUtil.cloneQualifier(cell)), CellUtil.cloneValue(cell));
+        }
+        return res;
+    }
+
+    @Override
+    public void save(Map<String, byte[]> lastCompletedRows) throws IOException {
+        // a single-row put is atomic; a delete marker in the same batch would
+        // mask puts written in the same millisecond, so stale ranges are only
+        // dropped by clear()
+        if (lastCompletedRows.isEmpty())
+            return;
+        Put insertOp = new Put(this.checkpointRow);
+        for (Map.Entry<String, byte[]> entry : lastCompletedRows.entrySet()) {
+            insertOp.add(this.family, Bytes.toBytes(entry.getKey()), entry.getValue());
+        }
+        this.metaTable.put(insertOp);
+    }
+
+    @Override
+    public void clear() throws IOException {
+        this.metaTable.delete(new Delete(this.checkpointRow));
+    }
+}
@@ -0,0 +1,79 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking token bucket. Tokens accrue at a fixed rate up to one second's
+ * worth; a rate of zero or less disables the limit.
+ */
+public class TokenBucket {
+    private double ratePerSecond;
+    private double capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(double ratePerSecond) {
+        this.lastRefillNanos = System.nanoTime();
+        setRate(ratePerSecond);
+        this.tokens = this.capacity;
+    }
+
+    public synchronized void setRate(double ratePerSecond) {
+        refill();
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(1.0, ratePerSecond);
+        this.tokens = Math.min(this.tokens, this.capacity);
+    }
+
+    public synchronized double getRate() {
+        return this.ratePerSecond;
+    }
+
+    /**
+     * Blocks until permits tokens are available and takes them. Requests
+     * larger than the bucket are let through once it is full, and leave it in
+     * debt.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                if (this.ratePerSecond <= 0)
+                    return;
+                refill();
+                double needed = Math.min(permits, this.capacity);
+                if (this.tokens >= needed) {
+                    this.tokens -= permits;
+                    return;
+                }
+                waitNanos = (long) ((needed - this.tokens) / this.ratePerSecond * TimeUnit.SECONDS.toNanos(1));
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1));
+        }
+    }
+
+    /**
+     * Takes permits tokens if they are available right now.
+     */
+    public synchronized boolean tryAcquire(int permits) {
+        if (this.ratePerSecond <= 0)
+            return true;
+        refill();
+        if (this.tokens < permits)
+            return false;
+        this.tokens -= permits;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (this.ratePerSecond > 0)
+            this.tokens = Math.min(this.capacity,
+                    this.tokens + (now - this.lastRefillNanos) * this.ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+        this.lastRefillNanos = now;
+    }
+}
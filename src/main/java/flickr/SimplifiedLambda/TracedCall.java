@@ -0,0 +1,70 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * One table call timed by a TracingHTable.
+ */
+public class TracedCall {
+    private final TracingHTable.Operation operation;
+    private final byte[] rowKey;
+    private final int batchSize;
+    private final long startMillis;
+    private final long durationMicros;
+    private final String threadName;
+
+    TracedCall(TracingHTable.Operation operation, byte[] rowKey, int batchSize, long startMillis, long durationMicros,
+               String threadName) {
+        this.operation = operation;
+        this.rowKey = rowKey;
+        this.batchSize = batchSize;
+        this.startMillis = startMillis;
+        this.durationMicros = durationMicros;
+        this.threadName = threadName;
+    }
+
+    public TracingHTable.Operation getOperation() {
+        return this.operation;
+    }
+
+    /**
+     * Row of the call, or of the first action of a batch; null for scans
+     * that returned nothing.
+     */
+    public byte[] getRowKey() {
+        return this.rowKey;
+    }
+
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    public long getStartMillis() {
+        return this.startMillis;
+    }
+
+    public long getDurationMicros() {
+        return this.durationMicros;
+    }
+
+    public String getThreadName() {
+        return this.threadName;
+    }
+
+    @Override
+    public String toString() {
+        return new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(this.startMillis))
+                + " " + this.operation
+                + " row=" + (this.rowKey == null ? "-" : Bytes.toStringBinary(this.rowKey))
+                + " batch=" + this.batchSize
+                + " " + this.durationMicros + "us"
+                + " [" + this.threadName + "]";
+    }
+}
@@ -0,0 +1,412 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.ForwardingHTable;
+
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Times every call on a table, e.g. to find out which of the Gets of a
+ * combine or which cleaner mutation was slow.
+ *
+ * Each call is recorded in a LatencyHistogram per operation type. Calls
+ * slower than the threshold are kept, with their row key and batch size, in
+ * a ring buffer of the most recent ones, and every call is handed to the
+ * registered listeners so it can be forwarded to a tracing system. While
+ * disabled a call costs one volatile read on top of the delegate's.
+ */
+public class TracingHTable extends ForwardingHTable {
+    public enum Operation {
+        GET,
+        MULTI_GET,
+        EXISTS,
+        SCAN_OPEN,
+        SCAN_NEXT,
+        PUT,
+        MULTI_PUT,
+        DELETE,
+        MULTI_DELETE,
+        CHECK_AND_PUT,
+        CHECK_AND_DELETE,
+        CHECK_AND_MUTATE,
+        MUTATE_ROW,
+        BATCH,
+        APPEND,
+        INCREMENT
+    }
+
+    /**
+     * Receives every traced call, on the calling thread.
+     */
+    public interface Listener {
+        void onCall(TracedCall call);
+    }
+
+    private final Map<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicReferenceArray<TracedCall> slowCalls;
+    private final AtomicLong slowCallCount = new AtomicLong();
+    private volatile long slowThresholdMicros;
+    private volatile boolean enabled = true;
+
+    public TracingHTable(HTableInterface delegate, long slowThresholdMicros, int slowLogCapacity) {
+        super(delegate);
+        for (Operation operation : Operation.values()) {
+            this.histograms.put(operation, new LatencyHistogram());
+        }
+        this.slowCalls = new AtomicReferenceArray<>(slowLogCapacity);
+        this.slowThresholdMicros = slowThresholdMicros;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public void setSlowThresholdMicros(long slowThresholdMicros) {
+        this.slowThresholdMicros = slowThresholdMicros;
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    public LatencyHistogram getHistogram(Operation operation) {
+        return this.histograms.get(operation);
+    }
+
+    public long getPercentile(Operation operation, double percentile) {
+        return this.histograms.get(operation).getPercentile(percentile);
+    }
+
+    /**
+     * Returns the slow calls still in the ring buffer, oldest first.
+     */
+    public List<TracedCall> getSlowCalls() {
+        long end = this.slowCallCount.get();
+        long start = Math.max(0, end - this.slowCalls.length());
+        List<TracedCall> res = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            TracedCall call = this.slowCalls.get((int) (i % this.slowCalls.length()));
+            if (call != null)
+                res.add(call);
+        }
+        return res;
+    }
+
+    public String dumpSlowCalls() {
+        StringBuilder res = new StringBuilder();
+        for (TracedCall call : getSlowCalls()) {
+            res.append(call).append('\n');
+        }
+        return res.toString();
+    }
+
+    /**
+     * One line of percentiles per operation type that saw any calls.
+     */
+    public String dumpHistograms() {
+        StringBuilder res = new StringBuilder();
+        for (Map.Entry<Operation, LatencyHistogram> entry : this.histograms.entrySet()) {
+            if (entry.getValue().getCount() > 0)
+                res.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return res.toString();
+    }
+
+    private long begin() {
+        return this.enabled ? System.nanoTime() : 0;
+    }
+
+    private void end(long startNanos, Operation operation, byte[] rowKey, int batchSize) {
+        if (startNanos == 0)
+            return;
+        long durationNanos = System.nanoTime() - startNanos;
+        long durationMicros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        this.histograms.get(operation).record(durationMicros);
+
+        boolean slow = durationMicros >= this.slowThresholdMicros;
+        if (!slow && this.listeners.isEmpty())
+            return;
+        TracedCall call = new TracedCall(operation, rowKey, batchSize,
+                System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(durationNanos), durationMicros,
+                Thread.currentThread().getName());
+        if (slow && this.slowCalls.length() > 0) {
+            long slot = this.slowCallCount.getAndIncrement();
+            this.slowCalls.set((int) (slot % this.slowCalls.length()), call);
+        }
+        for (Listener listener : this.listeners) {
+            listener.onCall(call);
+        }
+    }
+
+    private static byte[] firstRow(List<? extends Row> rows) {
+        return rows.isEmpty() ? null : rows.get(0).getRow();
+    }
+
+    @Override
+    public Result get(Get get) throws IOException {
+        long start = begin();
+        try {
+            return super.get(get);
+        } finally {
+            end(start, Operation.GET, get.getRow(), 1);
+        }
+    }
+
+    @Override
+    public Result[] get(List<Get> gets) throws IOException {
+        long start = begin();
+        try {
+            return super.get(gets);
+        } finally {
+            end(start, Operation.MULTI_GET, firstRow(gets), gets.size());
+        }
+    }
+
+    @Override
+    public boolean exists(Get get) throws IOException {
+        long start = begin();
+        try {
+            return super.exists(get);
+        } finally {
+            end(start, Operation.EXISTS, get.getRow(), 1);
+        }
+    }
+
+    @Override
+    public Boolean[] exists(List<Get> gets) throws IOException {
+        long start = begin();
+        try {
+            return super.exists(gets);
+        } finally {
+            end(start, Operation.EXISTS, firstRow(gets), gets.size());
+        }
+    }
+
+    @Override
+    public void batch(List<? extends Row> actions, Object[] results) throws IOException, InterruptedException {
+        long start = begin();
+        try {
+            super.batch(actions, results);
+        } finally {
+            end(start, Operation.BATCH, firstRow(actions), actions.size());
+        }
+    }
+
+    @Override
+    public Object[] batch(List<? extends Row> actions) throws IOException, InterruptedException {
+        long start = begin();
+        try {
+            return super.batch(actions);
+        } finally {
+            end(start, Operation.BATCH, firstRow(actions), actions.size());
+        }
+    }
+
+    @Override
+    public ResultScanner getScanner(Scan scan) throws IOException {
+        long start = begin();
+        ResultScanner resultScanner;
+        try {
+            resultScanner = super.getScanner(scan);
+        } finally {
+            end(start, Operation.SCAN_OPEN, scan.getStartRow(), scan.getCaching());
+        }
+        return new TracingScanner(resultScanner);
+    }
+
+    @Override
+    public void put(Put put) throws IOException {
+        long start = begin();
+        try {
+            super.put(put);
+        } finally {
+            end(start, Operation.PUT, put.getRow(), 1);
+        }
+    }
+
+    @Override
+    public void put(List<Put> puts) throws IOException {
+        long start = begin();
+        try {
+            super.put(puts);
+        } finally {
+            end(start, Operation.MULTI_PUT, firstRow(puts), puts.size());
+        }
+    }
+
+    @Override
+    public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) throws IOException {
+        long start = begin();
+        try {
+            return super.checkAndPut(row, family, qualifier, value, put);
+        } finally {
+            end(start, Operation.CHECK_AND_PUT, row, 1);
+        }
+    }
+
+    @Override
+    public void delete(Delete delete) throws IOException {
+        long start = begin();
+        try {
+            super.delete(delete);
+        } finally {
+            end(start, Operation.DELETE, delete.getRow(), 1);
+        }
+    }
+
+    @Override
+    public void delete(List<Delete> deletes) throws IOException {
+        long start = begin();
+        // the delegate may remove the deletes that succeeded
+        byte[] rowKey = firstRow(deletes);
+        int batchSize = deletes.size();
+        try {
+            super.delete(deletes);
+        } finally {
+            end(start, Operation.MULTI_DELETE, rowKey, batchSize);
+        }
+    }
+
+    @Override
+    public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value, Delete delete) throws IOException {
+        long start = begin();
+        try {
+            return super.checkAndDelete(row, family, qualifier, value, delete);
+        } finally {
+            end(start, Operation.CHECK_AND_DELETE, row, 1);
+        }
+    }
+
+    @Override
+    public boolean checkAndMutate(byte[] row, byte[] family, byte[] qualifier, CompareOp compareOp, byte[] value,
+                                  RowMutations mutation) throws IOException {
+        long start = begin();
+        try {
+            return super.checkAndMutate(row, family, qualifier, compareOp, value, mutation);
+        } finally {
+            end(start, Operation.CHECK_AND_MUTATE, row, mutation.getMutations().size());
+        }
+    }
+
+    @Override
+    public void mutateRow(RowMutations rm) throws IOException {
+        long start = begin();
+        try {
+            super.mutateRow(rm);
+        } finally {
+            end(start, Operation.MUTATE_ROW, rm.getRow(), rm.getMutations().size());
+        }
+    }
+
+    @Override
+    public Result append(Append append) throws IOException {
+        long start = begin();
+        try {
+            return super.append(append);
+        } finally {
+            end(start, Operation.APPEND, append.getRow(), 1);
+        }
+    }
+
+    @Override
+    public Result increment(Increment increment) throws IOException {
+        long start = begin();
+        try {
+            return super.increment(increment);
+        } finally {
+            end(start, Operation.INCREMENT, increment.getRow(), 1);
+        }
+    }
+
+    @Override
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, Durability durability) throws IOException {
+        long start = begin();
+        try {
+            return super.incrementColumnValue(row, family, qualifier, amount, durability);
+        } finally {
+            end(start, Operation.INCREMENT, row, 1);
+        }
+    }
+
+    @Override
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount) throws IOException {
+        return incrementColumnValue(row, family, qualifier, amount, Durability.USE_DEFAULT);
+    }
+
+    @Override
+    @Deprecated
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, boolean writeToWAL) throws IOException {
+        return incrementColumnValue(row, family, qualifier, amount, writeToWAL ? Durability.USE_DEFAULT : Durability.SKIP_WAL);
+    }
+
+    private class TracingScanner implements ResultScanner {
+        private final ResultScanner resultScanner;
+
+        TracingScanner(ResultScanner resultScanner) {
+            this.resultScanner = resultScanner;
+        }
+
+        @Override
+        public Result next() throws IOException {
+            long start = begin();
+            Result result = null;
+            try {
+                result = this.resultScanner.next();
+                return result;
+            } finally {
+                end(start, Operation.SCAN_NEXT, result == null ? null : result.getRow(), 1);
+            }
+        }
+
+        @Override
+        public Result[] next(int nbRows) throws IOException {
+            long start = begin();
+            Result[] results = null;
+            try {
+                results = this.resultScanner.next(nbRows);
+                return results;
+            } finally {
+                end(start, Operation.SCAN_NEXT, results == null || results.length == 0 ? null : results[0].getRow(), nbRows);
+            }
+        }
+
+        @Override
+        public void close() {
+            this.resultScanner.close();
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return new ScannerIterator<Result>() {
+                @Override
+                Result fetch() throws IOException {
+                    return TracingScanner.this.next();
+                }
+            };
+        }
+    }
+}
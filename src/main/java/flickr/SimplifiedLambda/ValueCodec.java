@@ -0,0 +1,243 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact encoding of cell values. An encoded value starts with an encoding
+ * byte; bytes 0xF8 - 0xFF never occur in UTF-8, so plain values written
+ * before the codec was enabled stay readable and are simply left untagged.
+ *
+ * <ul>
+ *     <li>TAG_SCORES : "tag:score,tag:score" lists as varints, tags that are
+ *     in the shared tag dictionary as their index.</li>
+ *     <li>DEFLATE : anything else of some length, deflated with the tag
+ *     dictionary as preset dictionary.</li>
+ * </ul>
+ *
+ * encode() picks whichever of these and the plain value is smallest. Every
+ * reader must use a codec with the same tag dictionary.
+ */
+public class ValueCodec {
+    public static final byte DEFLATE = (byte) 0xF9;
+    public static final byte TAG_SCORES = (byte) 0xFA;
+
+    /**
+     * Writes plain UTF-8 and reads values of any encoding that does not need
+     * a dictionary.
+     */
+    public static final ValueCodec PLAIN = new ValueCodec(Collections.<String>emptyList(), false);
+
+    private static final int MIN_DEFLATE_LENGTH = 32;
+
+    private final boolean encoding;
+    private final List<String> tags;
+    private final Map<String, Integer> tagIndexes = new HashMap<>();
+    private final byte[] deflateDictionary;
+
+    private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION);
+        }
+    };
+    private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /**
+     * tagDictionary lists the common tags, most frequent first; its order is
+     * part of the format and must not change once data has been written.
+     */
+    public ValueCodec(List<String> tagDictionary) {
+        this(tagDictionary, true);
+    }
+
+    private ValueCodec(List<String> tagDictionary, boolean encoding) {
+        this.encoding = encoding;
+        this.tags = tagDictionary;
+        StringBuilder dictionary = new StringBuilder();
+        for (int i = 0; i < tagDictionary.size(); i++) {
+            this.tagIndexes.put(tagDictionary.get(i), i);
+        }
+        // matches close to the end of the dictionary are cheapest, so the most frequent tags go last
+        for (int i = tagDictionary.size() - 1; i >= 0; i--) {
+            dictionary.append(tagDictionary.get(i)).append(':');
+        }
+        byte[] bytes = Bytes.toBytes(dictionary.toString());
+        this.deflateDictionary = bytes.length > 32768 ? Bytes.tail(bytes, 32768) : bytes;
+    }
+
+    public byte[] encode(String value) {
+        byte[] plain = Bytes.toBytes(value);
+        if (!this.encoding)
+            return plain;
+
+        byte[] best = plain;
+        byte[] tagScores = encodeTagScores(value);
+        if (tagScores != null && tagScores.length < best.length)
+            best = tagScores;
+        if (plain.length >= MIN_DEFLATE_LENGTH) {
+            byte[] deflated = deflate(plain);
+            if (deflated.length < best.length)
+                best = deflated;
+        }
+        return best;
+    }
+
+    public String decode(byte[] bytes, int offset, int length) {
+        if (length == 0)
+            return "";
+        switch (bytes[offset]) {
+            case DEFLATE:
+                return inflate(bytes, offset, length);
+            case TAG_SCORES:
+                return decodeTagScores(bytes, offset, length);
+            default:
+                return Bytes.toString(bytes, offset, length);
+        }
+    }
+
+    public String decode(byte[] bytes) {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    private byte[] encodeTagScores(String value) {
+        if (value.isEmpty())
+            return null;
+        String[] entries = value.split(",", -1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length());
+        out.write(TAG_SCORES);
+        writeVarint(out, entries.length);
+        for (String entry : entries) {
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0)
+                return null;
+            String tag = entry.substring(0, colon);
+            String score = entry.substring(colon + 1);
+            long parsed;
+            try {
+                parsed = Long.parseLong(score);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            // only if the value comes back byte for byte
+            if (!Long.toString(parsed).equals(score) || tag.indexOf(':') >= 0)
+                return null;
+
+            Integer index = this.tagIndexes.get(tag);
+            if (index != null) {
+                writeVarint(out, index + 1);
+            } else {
+                byte[] tagBytes = Bytes.toBytes(tag);
+                writeVarint(out, 0);
+                writeVarint(out, tagBytes.length);
+                out.write(tagBytes, 0, tagBytes.length);
+            }
+            writeVarint(out, (parsed << 1) ^ (parsed >> 63));
+        }
+        return out.toByteArray();
+    }
+
+    private String decodeTagScores(byte[] bytes, int offset, int length) {
+        int[] position = { offset + 1 };
+        long entries = readVarint(bytes, position);
+        StringBuilder value = new StringBuilder(length * 4);
+        for (long i = 0; i < entries; i++) {
+            if (i > 0)
+                value.append(',');
+            int code = (int) readVarint(bytes, position);
+            if (code > 0) {
+                if (code > this.tags.size())
+                    throw new IllegalStateException("Tag " + code + " is not in the dictionary");
+                value.append(this.tags.get(code - 1));
+            } else {
+                int tagLength = (int) readVarint(bytes, position);
+                value.append(Bytes.toString(bytes, position[0], tagLength));
+                position[0] += tagLength;
+            }
+            long zigzag = readVarint(bytes, position);
+            value.append(':').append((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+        return value.toString();
+    }
+
+    private byte[] deflate(byte[] plain) {
+        Deflater deflater = this.deflater.get();
+        deflater.reset();
+        if (this.deflateDictionary.length > 0)
+            deflater.setDictionary(this.deflateDictionary);
+        deflater.setInput(plain);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length);
+        out.write(DEFLATE);
+        writeVarint(out, plain.length);
+        byte[] buffer = new byte[Math.max(64, plain.length)];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private String inflate(byte[] bytes, int offset, int length) {
+        int[] position = { offset + 1 };
+        byte[] plain = new byte[(int) readVarint(bytes, position)];
+        Inflater inflater = this.inflater.get();
+        inflater.reset();
+        inflater.setInput(bytes, position[0], offset + length - position[0]);
+        try {
+            int n = 0;
+            while (n < plain.length) {
+                int inflated = inflater.inflate(plain, n, plain.length - n);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary() && this.deflateDictionary.length > 0) {
+                        inflater.setDictionary(this.deflateDictionary);
+                    } else if (inflater.needsDictionary() || inflater.finished() || inflater.needsInput()) {
+                        throw new IllegalStateException("Cannot inflate value, wrong or missing dictionary?");
+                    }
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IllegalStateException("Cannot inflate value", e);
+        }
+        return Bytes.toString(plain);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] bytes, int[] position) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+            shift += 7;
+        }
+    }
+}
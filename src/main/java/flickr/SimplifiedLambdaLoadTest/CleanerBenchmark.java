@@ -0,0 +1,100 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.ParallelCleaner;
+import flickr.SimplifiedLambda.SimplifiedLambda;
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares cleaner throughput of static range splitting, one thread per
+ * equal share of the key space, with the ParallelCleaner, for 1 to N
+ * workers. Row keys are a user id followed by a photo number, and photos
+ * per user follow a power law, so most rows are in a few users' ranges.
+ */
+public class CleanerBenchmark {
+    private static final int USERS = 200;
+
+    // mvn exec:java -Dexec.mainClass="flickr.SimplifiedLambdaLoadTest.CleanerBenchmark" -Dexec.args="8 5000"
+    public static void main(final String[] args) throws Exception {
+        int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int photosOfTopUser = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        System.out.println("table: 100us per call, " + USERS + " users, user n has "
+                + photosOfTopUser + "/n photos, every row has a realtime value to promote");
+        for (int workers = 1; workers <= maxWorkers; workers *= 2) {
+            SimplifiedLambda simplifiedLambda = load(photosOfTopUser);
+            long startNanos = System.nanoTime();
+            long rows = runStatic(simplifiedLambda, workers);
+            report("static ranges", workers, rows, startNanos, -1);
+
+            simplifiedLambda = load(photosOfTopUser);
+            try (ParallelCleaner cleaner = new ParallelCleaner(simplifiedLambda, workers)) {
+                cleaner.setMaxRowsPerTask(500);
+                startNanos = System.nanoTime();
+                rows = cleaner.run();
+                report("fork/join", workers, rows, startNanos, cleaner.getTaskCount());
+            }
+        }
+    }
+
+    private static SimplifiedLambda load(int photosOfTopUser) throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        for (long user = 0; user < USERS; user++) {
+            long photos = Math.max(1, photosOfTopUser / (user + 1));
+            for (long photo = 0; photo < photos; photo++) {
+                simplifiedLambda.pushRealtimeEntry(user << 32 | photo, "rt" + photo);
+            }
+        }
+        lambdaTable.setLatencyModel(new LatencyModel(100, 0));
+        return simplifiedLambda;
+    }
+
+    /**
+     * One thread per equal slice of the user id space, each cleaning its
+     * slice with a single sequential scan.
+     */
+    private static long runStatic(SimplifiedLambda simplifiedLambda, int workers) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Long>> slices = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            final byte[] startRow = i == 0 ? new byte[0] : Bytes.toBytes((long) USERS * i / workers << 32);
+            final byte[] stopRow = i == workers - 1 ? new byte[0] : Bytes.toBytes((long) USERS * (i + 1) / workers << 32);
+            final ParallelCleaner sequential = new ParallelCleaner(simplifiedLambda, 1);
+            sequential.setMaxRowsPerTask(Integer.MAX_VALUE);
+            slices.add(pool.submit(() -> {
+                try {
+                    return sequential.run(startRow, stopRow);
+                } finally {
+                    sequential.close();
+                }
+            }));
+        }
+        long rows = 0;
+        for (Future<Long> slice : slices) {
+            rows += slice.get();
+        }
+        pool.shutdown();
+        return rows;
+    }
+
+    private static void report(String name, int workers, long rows, long startNanos, long tasks) {
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-14s %2d workers: %d rows in %.2fs = %.0f rows/s%s%n", name, workers, rows,
+                elapsedSeconds, rows / elapsedSeconds, tasks < 0 ? "" : ", " + tasks + " tasks");
+    }
+}
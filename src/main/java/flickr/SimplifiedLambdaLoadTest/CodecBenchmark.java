@@ -0,0 +1,89 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.CombineResult;
+import flickr.SimplifiedLambda.LatencyHistogram;
+import flickr.SimplifiedLambda.SimplifiedLambda;
+import flickr.SimplifiedLambda.ValueCodec;
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares bytes per row and combine latency of plain and encoded bulk
+ * values, for tag:score aggregations and for free-form text.
+ */
+public class CodecBenchmark {
+    // mvn exec:java -Dexec.mainClass="flickr.SimplifiedLambdaLoadTest.CodecBenchmark" -Dexec.args="10000"
+    public static void main(final String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            tags.add("tag" + i);
+        }
+        ValueCodec codec = new ValueCodec(tags);
+        ZipfianGenerator tagPopularity = new ZipfianGenerator(tags.size() * 2, 0.99);
+
+        Random random = new Random(42);
+        List<String> tagScores = new ArrayList<>(rows);
+        List<String> text = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            StringBuilder scores = new StringBuilder();
+            StringBuilder words = new StringBuilder("{\"photo\":" + i + ",\"tags\":[");
+            int n = 10 + random.nextInt(40);
+            for (int j = 0; j < n; j++) {
+                // half of the tag space is outside the dictionary
+                String tag = "tag" + tagPopularity.next(random);
+                scores.append(j == 0 ? "" : ",").append(tag).append(':').append(random.nextInt(1000));
+                words.append(j == 0 ? "\"" : ",\"").append(tag).append('"');
+            }
+            tagScores.add(scores.toString());
+            text.add(words.append("]}").toString());
+        }
+
+        System.out.println("rows: " + rows + ", tag dictionary: " + tags.size());
+        run("tag:score plain  ", ValueCodec.PLAIN, tagScores);
+        run("tag:score encoded", codec, tagScores);
+        run("text plain       ", ValueCodec.PLAIN, text);
+        run("text encoded     ", codec, text);
+    }
+
+    private static void run(String name, ValueCodec codec, List<String> values) throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.setValueCodec(codec);
+
+        long bytes = 0;
+        for (int i = 0; i < values.size(); i++) {
+            simplifiedLambda.pushBulkEntry("photo" + i, values.get(i));
+        }
+
+        LatencyHistogram combine = new LatencyHistogram();
+        for (int pass = 0; pass < 2; pass++) {
+            // the first pass warms up the JIT
+            for (int i = 0; i < values.size(); i++) {
+                long start = System.nanoTime();
+                CombineResult result = simplifiedLambda.lookup("photo" + i);
+                String value = result.getValue();
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                if (pass == 1) {
+                    combine.record(micros);
+                    bytes += result.getEncodedLength();
+                }
+                if (!value.equals(values.get(i)))
+                    throw new IllegalStateException("Round trip failed for photo" + i);
+            }
+        }
+        System.out.println(String.format("%s  %6.1f bytes/row  combine %s", name, (double) bytes / values.size(), combine));
+    }
+}
@@ -0,0 +1,100 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.LatencyHistogram;
+import flickr.SimplifiedLambda.RealtimeIngestor;
+import flickr.SimplifiedLambda.SimplifiedLambda;
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares one Put per pushRealtimeEntry() call with the RealtimeIngestor at
+ * the same offered write rate. Writes are scheduled at fixed intervals and
+ * latency is measured from the scheduled time, so a writer that falls behind
+ * shows up as growing latency rather than as a lower request rate.
+ */
+public class IngestBenchmark {
+    // mvn exec:java -Dexec.mainClass="flickr.SimplifiedLambdaLoadTest.IngestBenchmark" -Dexec.args="4000 5 16"
+    public static void main(final String[] args) throws Exception {
+        double rate = args.length > 0 ? Double.parseDouble(args[0]) : 4000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        System.out.println("offered rate: " + (long) rate + "/s, " + seconds + "s, " + producers + " producers, "
+                + "table: 2ms per call + 200us per call in flight + 20us per row");
+        run("one put per call", false, rate, seconds, producers);
+        run("adaptive batches", true, rate, seconds, producers);
+    }
+
+    private static void run(String name, final boolean batched, final double rate, int seconds, int producers) throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(new LatencyModel(2000, 200, 20));
+        final SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        final RealtimeIngestor ingestor = new RealtimeIngestor(simplifiedLambda, 50, TimeUnit.MILLISECONDS);
+        Thread writer = new Thread(ingestor, "ingestor");
+        if (batched)
+            writer.start();
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong scheduled = new AtomicLong();
+        final long startNanos = System.nanoTime();
+        final long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < producers; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            long i = scheduled.getAndIncrement();
+                            long intendedNanos = startNanos + (long) (i * 1e9 / rate);
+                            if (intendedNanos >= endNanos)
+                                return;
+                            long wait = intendedNanos - System.nanoTime();
+                            if (wait > 0)
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            if (batched) {
+                                ingestor.submit("photo" + (i % 100000), "rt" + i);
+                            } else {
+                                simplifiedLambda.pushRealtimeEntry("photo" + (i % 100000), "rt" + i);
+                                latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedNanos));
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "producer-" + t);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (batched)
+            ingestor.flush(1, TimeUnit.MINUTES);
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        if (batched) {
+            ingestor.stop();
+            writer.join();
+            latency.add(ingestor.getVisibleLatency());
+        }
+
+        System.out.printf("%s: %d writes in %.2fs = %.0f/s, visible after %s%n", name, latency.getCount(), elapsedSeconds,
+                latency.getCount() / elapsedSeconds, latency);
+        if (batched) {
+            System.out.printf("    %d batches, round trip %s, final batch limit %d, SLO violations %d%n",
+                    ingestor.getBatchCount(), ingestor.getRoundTripLatency(), ingestor.getBatchLimit(),
+                    ingestor.getSloViolations());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.CombineResult;
+import flickr.SimplifiedLambda.LatencyHistogram;
+import flickr.SimplifiedLambda.SimplifiedLambda;
+import flickr.SimplifiedLambda.TokenBucket;
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a WorkloadGenerator against SimplifiedLambda over a MockHTable and
+ * reports throughput and latency percentiles per operation type, plus how
+ * the reads resolved.
+ */
+public class LoadTestDriver {
+    private static Logger LOG = Logger.getLogger(LoadTestDriver.class.getName());
+
+    // mvn exec:java -Dexec.mainClass="flickr.SimplifiedLambdaLoadTest.LoadTestDriver" -Dexec.args="--threads=16 --zipfTheta=0.8"
+    public static void main(final String[] args) throws Exception {
+        WorkloadConfig config = WorkloadConfig.parse(args);
+        System.out.println("Workload: " + config);
+        System.out.println(new LoadTestDriver(config).run());
+    }
+
+    public static class Report {
+        private final long elapsedMillis;
+        private final LatencyHistogram readLatency;
+        private final LatencyHistogram writeLatency;
+        private final LatencyHistogram cleanerLatency;
+        private final long[] readSources;
+
+        Report(long elapsedMillis, LatencyHistogram readLatency, LatencyHistogram writeLatency,
+               LatencyHistogram cleanerLatency, long[] readSources) {
+            this.elapsedMillis = elapsedMillis;
+            this.readLatency = readLatency;
+            this.writeLatency = writeLatency;
+            this.cleanerLatency = cleanerLatency;
+            this.readSources = readSources;
+        }
+
+        public long getElapsedMillis() {
+            return this.elapsedMillis;
+        }
+
+        public LatencyHistogram getReadLatency() {
+            return this.readLatency;
+        }
+
+        public LatencyHistogram getWriteLatency() {
+            return this.writeLatency;
+        }
+
+        public LatencyHistogram getCleanerLatency() {
+            return this.cleanerLatency;
+        }
+
+        /**
+         * Number of reads that resolved from the given source.
+         */
+        public long getReads(CombineResult.Source source) {
+            return this.readSources[source.ordinal()];
+        }
+
+        public double getThroughput() {
+            return (this.readLatency.getCount() + this.writeLatency.getCount()) * 1000.0 / Math.max(1, this.elapsedMillis);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder res = new StringBuilder();
+            res.append(String.format("elapsed %dms, %.0f ops/s%n", this.elapsedMillis, getThroughput()));
+            res.append("reads:    ").append(this.readLatency).append('\n');
+            res.append("writes:   ").append(this.writeLatency).append('\n');
+            res.append("cleaner:  ").append(this.cleanerLatency).append('\n');
+            res.append("resolved:");
+            for (CombineResult.Source source : CombineResult.Source.values()) {
+                res.append(' ').append(source).append('=').append(getReads(source));
+            }
+            return res.append('\n').toString();
+        }
+    }
+
+    private final WorkloadConfig config;
+    private final WorkloadGenerator generator;
+
+    public LoadTestDriver(WorkloadConfig config) {
+        this.config = config;
+        this.generator = new WorkloadGenerator(config);
+    }
+
+    public Report run() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        final SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+
+        // load without latency, the load phase is not what we measure
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        Random loadRandom = new Random(this.config.getSeed());
+        for (long rank = 0; rank < this.config.getBulkLoadSize(); rank++) {
+            simplifiedLambda.pushBulkEntry(WorkloadGenerator.keyFor(rank), this.generator.nextValue(loadRandom));
+        }
+        lambdaTable.setLatencyModel(new LatencyModel(this.config.getTableLatencyMicros(), 0));
+        LOG.info("Bulk loaded " + this.config.getBulkLoadSize() + " keys");
+
+        final LatencyHistogram readLatency = new LatencyHistogram();
+        final LatencyHistogram writeLatency = new LatencyHistogram();
+        final LatencyHistogram cleanerLatency = new LatencyHistogram();
+        final AtomicLongArray readSources = new AtomicLongArray(CombineResult.Source.values().length);
+        final TokenBucket writeLimiter = new TokenBucket(this.config.getRealtimeWriteRate());
+
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor();
+        if (this.config.getCleanerIntervalMillis() > 0) {
+            cleaner.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        simplifiedLambda.cleaner();
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, "Cleaner pass failed", e);
+                    }
+                    cleanerLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+            }, this.config.getCleanerIntervalMillis(), this.config.getCleanerIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.config.getDurationSeconds());
+        ExecutorService workers = Executors.newFixedThreadPool(this.config.getThreads());
+        List<Future<Void>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < this.config.getThreads(); t++) {
+            final Random random = new Random(this.config.getSeed() + 1 + t);
+            futures.add(workers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (System.nanoTime() < deadline) {
+                        if (generator.nextOperationType(random) == WorkloadGenerator.OperationType.READ) {
+                            String key = generator.nextReadKey(random);
+                            long opStart = System.nanoTime();
+                            CombineResult result = simplifiedLambda.lookup(key);
+                            readLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - opStart));
+                            readSources.incrementAndGet(result.getSource().ordinal());
+                        } else {
+                            writeLimiter.acquire(1);
+                            String key = generator.nextWriteKey(random);
+                            String value = generator.nextValue(random);
+                            long opStart = System.nanoTime();
+                            simplifiedLambda.pushRealtimeEntry(key, value);
+                            writeLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - opStart));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            workers.shutdownNow();
+            cleaner.shutdownNow();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long[] sources = new long[readSources.length()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = readSources.get(i);
+        }
+        return new Report(elapsedMillis, readLatency, writeLatency, cleanerLatency, sources);
+    }
+}
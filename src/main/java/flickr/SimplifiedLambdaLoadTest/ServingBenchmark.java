@@ -0,0 +1,95 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.AsyncCombiner;
+import flickr.SimplifiedLambda.LatencyHistogram;
+import flickr.SimplifiedLambda.SimplifiedLambda;
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares a platform thread pool running one blocking lookup() per request
+ * with the AsyncCombiner, with the same number of requests outstanding at
+ * any time. Latency is measured from the moment a request is issued, so time
+ * spent waiting for a pool thread counts.
+ */
+public class ServingBenchmark {
+    // mvn exec:java -Dexec.mainClass="flickr.SimplifiedLambdaLoadTest.ServingBenchmark" -Dexec.args="10000 100000 200"
+    public static void main(final String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int poolThreads = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        for (int i = 0; i < 100000; i++) {
+            simplifiedLambda.pushBulkEntry("photo" + i, "bulk" + i);
+            if (i % 10 == 0)
+                simplifiedLambda.pushRealtimeEntry("photo" + i, "rt" + i);
+        }
+        lambdaTable.setLatencyModel(new LatencyModel(2000, 200, 20));
+
+        System.out.println(requests + " requests, " + concurrency + " outstanding, "
+                + "table: 2ms per call + 200us per call in flight + 20us per row");
+        run("thread pool (" + poolThreads + " threads)", simplifiedLambda, null, poolThreads, concurrency, requests);
+        try (AsyncCombiner combiner = new AsyncCombiner(simplifiedLambda, 4, 1000)) {
+            run("async combiner (4 readers)", simplifiedLambda, combiner, 0, concurrency, requests);
+            System.out.printf("    %d batches, %.1f keys per batch%n", combiner.getBatchCount(),
+                    (double) combiner.getRequestCount() / combiner.getBatchCount());
+        }
+    }
+
+    private static void run(String name, final SimplifiedLambda simplifiedLambda, AsyncCombiner combiner,
+                            int poolThreads, int concurrency, int requests) throws Exception {
+        final Semaphore outstanding = new Semaphore(concurrency);
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        ExecutorService pool = combiner == null ? Executors.newFixedThreadPool(poolThreads) : null;
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            outstanding.acquire();
+            final String key = "photo" + (i * 7919 % 100000);
+            final long issuedNanos = System.nanoTime();
+            if (combiner == null) {
+                pool.execute(() -> {
+                    try {
+                        simplifiedLambda.lookup(key);
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - issuedNanos));
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        outstanding.release();
+                    }
+                });
+            } else {
+                combiner.lookup(key).whenComplete((result, error) -> {
+                    if (error == null) {
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - issuedNanos));
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                    outstanding.release();
+                });
+            }
+        }
+        outstanding.acquire(concurrency);
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        if (pool != null)
+            pool.shutdown();
+
+        System.out.printf("%s: %.2fs = %.0f/s, %d errors, latency %s%n", name, elapsedSeconds,
+                requests / elapsedSeconds, errors.get(), latency);
+    }
+}
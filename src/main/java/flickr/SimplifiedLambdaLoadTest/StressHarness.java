@@ -0,0 +1,369 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.CombineResult;
+import flickr.SimplifiedLambda.HybridLogicalClock;
+import flickr.SimplifiedLambda.LatencyHistogram;
+import flickr.SimplifiedLambda.SimplifiedLambda;
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs realtime writers, bulk loaders, cleaner passes and combiner readers
+ * against one SimplifiedLambda at the same time for a fixed duration, then
+ * reports the throughput of each role and every broken invariant.
+ *
+ * Every value carries a per-key version. Writes of one key are serialized,
+ * and cells are stamped by a HybridLogicalClock, so a higher version always
+ * has a newer timestamp. The harness checks that:
+ *
+ * <ul>
+ *     <li>a read never returns an older version than the last write of the
+ *     key acknowledged before the read started, and never nothing once a
+ *     write was acknowledged (no lost or stale writes),</li>
+ *     <li>once writers stop and a last cleaner pass ran, every key is settled
+ *     in BULK with its newest version, and combiner() does not throw,</li>
+ *     <li>no role throws at all.</li>
+ * </ul>
+ *
+ * Run it before rolling out any change to concurrency or performance.
+ */
+public class StressHarness {
+    private static final int MAX_VIOLATIONS = 20;
+
+    public enum Role {
+        REALTIME_WRITER,
+        BULK_LOADER,
+        CLEANER,
+        READER
+    }
+
+    public static class Report {
+        private final long elapsedMillis;
+        private final long[] operations;
+        private final LatencyHistogram[] latencies;
+        private final long conflictReads;
+        private final long violationCount;
+        private final List<String> violations;
+
+        Report(long elapsedMillis, long[] operations, LatencyHistogram[] latencies, long conflictReads,
+               long violationCount, List<String> violations) {
+            this.elapsedMillis = elapsedMillis;
+            this.operations = operations;
+            this.latencies = latencies;
+            this.conflictReads = conflictReads;
+            this.violationCount = violationCount;
+            this.violations = violations;
+        }
+
+        public long getElapsedMillis() {
+            return this.elapsedMillis;
+        }
+
+        /**
+         * Operations completed by a role: writes, reads or cleaner passes.
+         */
+        public long getOperations(Role role) {
+            return this.operations[role.ordinal()];
+        }
+
+        public double getThroughput(Role role) {
+            return getOperations(role) * 1000.0 / Math.max(1, this.elapsedMillis);
+        }
+
+        public LatencyHistogram getLatency(Role role) {
+            return this.latencies[role.ordinal()];
+        }
+
+        /**
+         * Reads that found a bulk value newer than realtime, expected while
+         * bulk loads race with realtime writes.
+         */
+        public long getConflictReads() {
+            return this.conflictReads;
+        }
+
+        public long getViolationCount() {
+            return this.violationCount;
+        }
+
+        /**
+         * The first violations found, as messages.
+         */
+        public List<String> getViolations() {
+            return this.violations;
+        }
+
+        public boolean isClean() {
+            return this.violationCount == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder res = new StringBuilder();
+            res.append(String.format("elapsed %dms%n", this.elapsedMillis));
+            for (Role role : Role.values()) {
+                res.append(String.format("%-16s %8d ops, %8.0f/s, latency %s%n", role, getOperations(role),
+                        getThroughput(role), getLatency(role)));
+            }
+            res.append("conflict reads: ").append(this.conflictReads).append('\n');
+            res.append("violations: ").append(this.violationCount).append('\n');
+            for (String violation : this.violations) {
+                res.append("    ").append(violation).append('\n');
+            }
+            return res.toString();
+        }
+    }
+
+    private final MockHTable lambdaTable;
+    private int keys = 1000;
+    private int realtimeWriters = 4;
+    private int bulkLoaders = 1;
+    private int readers = 4;
+    private long durationMillis = 10000;
+    private LatencyModel latencyModel = new LatencyModel(200, 0);
+    private long seed = 1;
+
+    // per key: version of the last write issued and of the last one acknowledged
+    private AtomicLongArray issued;
+    private AtomicLongArray acknowledged;
+    private Object[] keyLocks;
+    private final AtomicLong violationCount = new AtomicLong();
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * lambdaTable must have SimplifiedLambda.FAMILY and no data.
+     */
+    public StressHarness(MockHTable lambdaTable) {
+        this.lambdaTable = lambdaTable;
+    }
+
+    // mvn exec:java -Dexec.mainClass="flickr.SimplifiedLambdaLoadTest.StressHarness" -Dexec.args="10 4 1 4 1000"
+    public static void main(final String[] args) throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        StressHarness harness = new StressHarness(lambdaTable);
+        if (args.length > 0)
+            harness.setDuration(Integer.parseInt(args[0]), TimeUnit.SECONDS);
+        if (args.length > 3)
+            harness.setRoles(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        if (args.length > 4)
+            harness.setKeys(Integer.parseInt(args[4]));
+        Report report = harness.run();
+        System.out.print(report);
+        if (!report.isClean())
+            System.exit(1);
+    }
+
+    public void setKeys(int keys) {
+        this.keys = keys;
+    }
+
+    public void setRoles(int realtimeWriters, int bulkLoaders, int readers) {
+        this.realtimeWriters = realtimeWriters;
+        this.bulkLoaders = bulkLoaders;
+        this.readers = readers;
+    }
+
+    public void setDuration(long duration, TimeUnit unit) {
+        this.durationMillis = unit.toMillis(duration);
+    }
+
+    public void setLatencyModel(LatencyModel latencyModel) {
+        this.latencyModel = latencyModel;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    static String key(int index) {
+        return "stress" + index;
+    }
+
+    static String value(long version) {
+        return "v" + version;
+    }
+
+    static long versionOf(String value) {
+        return Long.parseLong(value.substring(1));
+    }
+
+    public Report run() throws Exception {
+        this.issued = new AtomicLongArray(this.keys);
+        this.acknowledged = new AtomicLongArray(this.keys);
+        this.keyLocks = new Object[this.keys];
+        for (int i = 0; i < this.keys; i++) {
+            this.keyLocks[i] = new Object();
+        }
+        this.violationCount.set(0);
+        this.violations.clear();
+        final SimplifiedLambda simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+        simplifiedLambda.setClock(new HybridLogicalClock(1));
+        this.lambdaTable.setLatencyModel(this.latencyModel);
+
+        final AtomicLongArray operations = new AtomicLongArray(Role.values().length);
+        final LatencyHistogram[] latencies = new LatencyHistogram[Role.values().length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        final AtomicLong conflictReads = new AtomicLong();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.durationMillis);
+
+        List<Callable<Void>> workers = new ArrayList<>();
+        int worker = 0;
+        for (int i = 0; i < this.realtimeWriters + this.bulkLoaders; i++) {
+            final boolean bulk = i >= this.realtimeWriters;
+            final Role role = bulk ? Role.BULK_LOADER : Role.REALTIME_WRITER;
+            final Random random = new Random(this.seed + worker++);
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (System.nanoTime() < deadline) {
+                        int index = random.nextInt(StressHarness.this.keys);
+                        long start = System.nanoTime();
+                        write(simplifiedLambda, index, bulk);
+                        latencies[role.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                        operations.incrementAndGet(role.ordinal());
+                    }
+                    return null;
+                }
+            });
+        }
+        workers.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    simplifiedLambda.cleaner();
+                    latencies[Role.CLEANER.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    operations.incrementAndGet(Role.CLEANER.ordinal());
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < this.readers; i++) {
+            final Random random = new Random(this.seed + worker++);
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (System.nanoTime() < deadline) {
+                        int index = random.nextInt(StressHarness.this.keys);
+                        long start = System.nanoTime();
+                        if (read(simplifiedLambda, index))
+                            conflictReads.incrementAndGet();
+                        latencies[Role.READER.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                        operations.incrementAndGet(Role.READER.ordinal());
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Callable<Void> callable : workers) {
+                futures.add(pool.submit(callable));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    violation("worker failed: " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        checkSettled(simplifiedLambda);
+
+        long[] counts = new long[operations.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = operations.get(i);
+        }
+        return new Report(elapsedMillis, counts, latencies, conflictReads.get(), this.violationCount.get(),
+                new ArrayList<>(this.violations));
+    }
+
+    private void write(SimplifiedLambda simplifiedLambda, int index, boolean bulk) throws Exception {
+        // one write per key at a time, so version order is timestamp order
+        synchronized (this.keyLocks[index]) {
+            long version = this.issued.incrementAndGet(index);
+            if (bulk) {
+                simplifiedLambda.pushBulkEntry(key(index), value(version));
+            } else {
+                simplifiedLambda.pushRealtimeEntry(key(index), value(version));
+            }
+            this.acknowledged.set(index, version);
+        }
+    }
+
+    /**
+     * Reads a key and checks it against the writes acknowledged before;
+     * returns whether the read was a CONFLICT.
+     */
+    private boolean read(SimplifiedLambda simplifiedLambda, int index) throws Exception {
+        long acknowledged = this.acknowledged.get(index);
+        CombineResult result = simplifiedLambda.lookup(key(index));
+        if (result.getSource() == CombineResult.Source.NONE) {
+            if (acknowledged > 0)
+                violation(key(index) + ": lost, version " + acknowledged + " was acknowledged");
+            return false;
+        }
+        long version = versionOf(result.getValue());
+        if (version < acknowledged)
+            violation(key(index) + ": read " + result.getSource() + " version " + version + ", but "
+                    + acknowledged + " was acknowledged");
+        if (version > this.issued.get(index))
+            violation(key(index) + ": read version " + version + ", which was never written");
+        return result.getSource() == CombineResult.Source.CONFLICT;
+    }
+
+    private void checkSettled(SimplifiedLambda simplifiedLambda) {
+        try {
+            simplifiedLambda.cleaner();
+            for (int index = 0; index < this.keys; index++) {
+                long newest = this.acknowledged.get(index);
+                CombineResult result = simplifiedLambda.lookup(key(index));
+                if (newest == 0) {
+                    if (result.getSource() != CombineResult.Source.NONE)
+                        violation(key(index) + ": found " + result.getSource() + " but was never written");
+                    continue;
+                }
+                if (result.getSource() != CombineResult.Source.BULK)
+                    violation(key(index) + ": " + result.getSource() + " after the last cleaner pass");
+                String combined = simplifiedLambda.combiner(key(index));
+                if (versionOf(combined) != newest)
+                    violation(key(index) + ": settled on version " + versionOf(combined) + ", newest is " + newest);
+            }
+        } catch (Exception e) {
+            violation("final check failed: " + e);
+        }
+    }
+
+    private void violation(String message) {
+        if (this.violationCount.incrementAndGet() <= MAX_VIOLATIONS)
+            this.violations.add(message);
+    }
+}
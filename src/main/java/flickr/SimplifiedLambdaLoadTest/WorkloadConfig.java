@@ -0,0 +1,156 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+/**
+ * Knobs of a synthetic Magic View workload. Every option can be set from the
+ * command line as --name=value, e.g. --keyCardinality=1000000.
+ */
+public class WorkloadConfig {
+    // distinct photo keys the workload touches
+    private long keyCardinality = 100000;
+    // Zipfian skew of key popularity, 0 for uniform
+    private double zipfTheta = 0.99;
+    // keys [0, bulkLoadSize) get a bulk value before the run starts
+    private long bulkLoadSize = 50000;
+    // realtime writes per second over all threads, 0 for unlimited
+    private double realtimeWriteRate = 500;
+    // fraction of operations that are reads, the rest are realtime writes
+    private double readFraction = 0.9;
+    // fraction of realtime writes that hit bulk-loaded keys
+    private double overlapFraction = 0.5;
+    private int threads = 8;
+    private int durationSeconds = 10;
+    // simulated MockHTable latency per call
+    private long tableLatencyMicros = 1000;
+    // run the cleaner this often during the test, 0 to never run it
+    private long cleanerIntervalMillis = 0;
+    private long seed = 42;
+
+    public static WorkloadConfig parse(String[] args) {
+        WorkloadConfig config = new WorkloadConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "keyCardinality": config.setKeyCardinality(Long.parseLong(value)); break;
+                case "zipfTheta": config.setZipfTheta(Double.parseDouble(value)); break;
+                case "bulkLoadSize": config.setBulkLoadSize(Long.parseLong(value)); break;
+                case "realtimeWriteRate": config.setRealtimeWriteRate(Double.parseDouble(value)); break;
+                case "readFraction": config.setReadFraction(Double.parseDouble(value)); break;
+                case "overlapFraction": config.setOverlapFraction(Double.parseDouble(value)); break;
+                case "threads": config.setThreads(Integer.parseInt(value)); break;
+                case "durationSeconds": config.setDurationSeconds(Integer.parseInt(value)); break;
+                case "tableLatencyMicros": config.setTableLatencyMicros(Long.parseLong(value)); break;
+                case "cleanerIntervalMillis": config.setCleanerIntervalMillis(Long.parseLong(value)); break;
+                case "seed": config.setSeed(Long.parseLong(value)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (config.bulkLoadSize > config.keyCardinality)
+            throw new IllegalArgumentException("bulkLoadSize exceeds keyCardinality");
+        return config;
+    }
+
+    public long getKeyCardinality() {
+        return this.keyCardinality;
+    }
+
+    public void setKeyCardinality(long keyCardinality) {
+        this.keyCardinality = keyCardinality;
+    }
+
+    public double getZipfTheta() {
+        return this.zipfTheta;
+    }
+
+    public void setZipfTheta(double zipfTheta) {
+        this.zipfTheta = zipfTheta;
+    }
+
+    public long getBulkLoadSize() {
+        return this.bulkLoadSize;
+    }
+
+    public void setBulkLoadSize(long bulkLoadSize) {
+        this.bulkLoadSize = bulkLoadSize;
+    }
+
+    public double getRealtimeWriteRate() {
+        return this.realtimeWriteRate;
+    }
+
+    public void setRealtimeWriteRate(double realtimeWriteRate) {
+        this.realtimeWriteRate = realtimeWriteRate;
+    }
+
+    public double getReadFraction() {
+        return this.readFraction;
+    }
+
+    public void setReadFraction(double readFraction) {
+        this.readFraction = readFraction;
+    }
+
+    public double getOverlapFraction() {
+        return this.overlapFraction;
+    }
+
+    public void setOverlapFraction(double overlapFraction) {
+        this.overlapFraction = overlapFraction;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getDurationSeconds() {
+        return this.durationSeconds;
+    }
+
+    public void setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public long getTableLatencyMicros() {
+        return this.tableLatencyMicros;
+    }
+
+    public void setTableLatencyMicros(long tableLatencyMicros) {
+        this.tableLatencyMicros = tableLatencyMicros;
+    }
+
+    public long getCleanerIntervalMillis() {
+        return this.cleanerIntervalMillis;
+    }
+
+    public void setCleanerIntervalMillis(long cleanerIntervalMillis) {
+        this.cleanerIntervalMillis = cleanerIntervalMillis;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public String toString() {
+        return "keyCardinality=" + this.keyCardinality + " zipfTheta=" + this.zipfTheta
+                + " bulkLoadSize=" + this.bulkLoadSize + " realtimeWriteRate=" + this.realtimeWriteRate
+                + " readFraction=" + this.readFraction + " overlapFraction=" + this.overlapFraction
+                + " threads=" + this.threads + " durationSeconds=" + this.durationSeconds
+                + " tableLatencyMicros=" + this.tableLatencyMicros
+                + " cleanerIntervalMillis=" + this.cleanerIntervalMillis + " seed=" + this.seed;
+    }
+}
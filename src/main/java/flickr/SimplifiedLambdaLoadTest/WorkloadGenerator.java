@@ -0,0 +1,87 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import java.util.Random;
+
+/**
+ * Turns a WorkloadConfig into a stream of operations. Key popularity follows
+ * the Zipfian ranks, with bulk-loaded keys being the most popular ones, and
+ * row keys are salted with a hash of the rank so hot keys spread over the
+ * key space like they would over regions.
+ *
+ * The generator itself is stateless; each thread passes its own Random.
+ */
+public class WorkloadGenerator {
+    public enum OperationType {
+        READ,
+        REALTIME_WRITE
+    }
+
+    private final WorkloadConfig config;
+    private final ZipfianGenerator readKeys;
+    private final ZipfianGenerator bulkKeys;
+    private final ZipfianGenerator freshKeys;
+
+    public WorkloadGenerator(WorkloadConfig config) {
+        this.config = config;
+        this.readKeys = new ZipfianGenerator(config.getKeyCardinality(), config.getZipfTheta());
+        this.bulkKeys = config.getBulkLoadSize() > 0
+                ? new ZipfianGenerator(config.getBulkLoadSize(), config.getZipfTheta())
+                : null;
+        long fresh = config.getKeyCardinality() - config.getBulkLoadSize();
+        this.freshKeys = fresh > 0 ? new ZipfianGenerator(fresh, config.getZipfTheta()) : null;
+    }
+
+    public WorkloadConfig getConfig() {
+        return this.config;
+    }
+
+    public OperationType nextOperationType(Random random) {
+        return random.nextDouble() < this.config.getReadFraction() ? OperationType.READ : OperationType.REALTIME_WRITE;
+    }
+
+    public String nextReadKey(Random random) {
+        return keyFor(this.readKeys.next(random));
+    }
+
+    /**
+     * Picks a bulk-loaded key with probability overlapFraction and a key that
+     * only exists in realtime (a fresh upload) otherwise.
+     */
+    public String nextWriteKey(Random random) {
+        boolean overlap = this.freshKeys == null
+                || (this.bulkKeys != null && random.nextDouble() < this.config.getOverlapFraction());
+        if (overlap)
+            return keyFor(this.bulkKeys.next(random));
+        return keyFor(this.config.getBulkLoadSize() + this.freshKeys.next(random));
+    }
+
+    public String nextValue(Random random) {
+        // a short tag:score list, like the Magic View aggregations
+        StringBuilder value = new StringBuilder();
+        int tags = 1 + random.nextInt(8);
+        for (int i = 0; i < tags; i++) {
+            if (i > 0)
+                value.append(',');
+            value.append("tag").append(random.nextInt(1000)).append(':').append(random.nextInt(100));
+        }
+        return value.toString();
+    }
+
+    /**
+     * Row key of the key with the given popularity rank.
+     */
+    public static String keyFor(long rank) {
+        return String.format("%08x_%d", (int) mix(rank), rank);
+    }
+
+    private static long mix(long x) {
+        // splitmix64 finalizer
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+}
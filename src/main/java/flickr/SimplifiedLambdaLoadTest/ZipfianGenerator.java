@@ -0,0 +1,57 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import java.util.Random;
+
+/**
+ * Draws ranks in [0, items) with a Zipfian distribution, rank 0 being the
+ * most popular (Gray et al., "Quickly generating billion-record synthetic
+ * databases"). A theta of 0 gives a uniform distribution; YCSB uses 0.99.
+ */
+public class ZipfianGenerator {
+    private final long items;
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+
+    public ZipfianGenerator(long items, double theta) {
+        if (items <= 0)
+            throw new IllegalArgumentException("items must be positive: " + items);
+        if (theta < 0 || theta >= 1)
+            throw new IllegalArgumentException("theta must be in [0, 1): " + theta);
+        this.items = items;
+        this.theta = theta;
+        this.zetan = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / this.zetan);
+    }
+
+    public long getItems() {
+        return this.items;
+    }
+
+    public long next(Random random) {
+        if (this.theta == 0)
+            return (long) (random.nextDouble() * this.items);
+        double u = random.nextDouble();
+        double uz = u * this.zetan;
+        if (uz < 1.0)
+            return 0;
+        if (uz < 1.0 + Math.pow(0.5, this.theta))
+            return Math.min(1, this.items - 1);
+        long rank = (long) (this.items * Math.pow(this.eta * u - this.eta + 1, this.alpha));
+        return Math.min(rank, this.items - 1);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
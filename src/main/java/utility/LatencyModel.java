@@ -0,0 +1,62 @@
+package utility;
+
+/**
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * utility.LatencyModel.
+ *
+ * Simulated round-trip time of a MockHTable call: a base latency plus a
+ * penalty for every other call in flight on the same table, which is enough
+ * to make background traffic visibly slow down serving reads, and a cost per
+ * row of a batch call such as a multi-get or multi-put.
+ */
+public final class LatencyModel {
+    public static final LatencyModel NONE = fixed(0);
+
+    private final long baseMicros;
+    private final long perInFlightMicros;
+    private final long perRowMicros;
+
+    public LatencyModel(long baseMicros, long perInFlightMicros) {
+        this(baseMicros, perInFlightMicros, 0);
+    }
+
+    public LatencyModel(long baseMicros, long perInFlightMicros, long perRowMicros) {
+        this.baseMicros = baseMicros;
+        this.perInFlightMicros = perInFlightMicros;
+        this.perRowMicros = perRowMicros;
+    }
+
+    public static LatencyModel fixed(long millis) {
+        return new LatencyModel(TimeUnit.MILLISECONDS.toMicros(millis), 0);
+    }
+
+    /**
+     * Returns the latency of a call that starts while inFlight calls,
+     * including itself, are running.
+     */
+    public long latencyMicros(int inFlight) {
+        return latencyMicros(inFlight, 1);
+    }
+
+    /**
+     * Returns the latency of a call carrying rows rows; the first row is
+     * included in the base latency.
+     */
+    public long latencyMicros(int inFlight, int rows) {
+        return this.baseMicros + this.perInFlightMicros * Math.max(0, inFlight - 1)
+                + this.perRowMicros * Math.max(0, rows - 1);
+    }
+}
@@ -18,18 +18,27 @@ import com.google.protobuf.Service;
 import com.google.protobuf.ServiceException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.client.coprocessor.Batch;
 import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.ipc.BlockingRpcCallback;
 import org.apache.hadoop.hbase.ipc.CoprocessorRpcChannel;
+import org.apache.hadoop.hbase.ipc.ServerRpcController;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 /**
@@ -52,6 +61,18 @@ import java.util.logging.Logger;
  *     <li>implement getTableDescriptor()</li>
  *     <li>throws RuntimeException when unimplemented method was called.</li>
  *     <li>remove some methods for loading data, checking values ...</li>
+ *     <li>get(List) sleeps once per batch, like a single multi-get RPC.</li>
+ *     <li>get() and getScanner() honour the time range and max versions per column.</li>
+ *     <li>getScanner() honours stopRow when no startRow is set.</li>
+ *     <li>thread-safe: reads and mutations run under a read/write lock, the simulated latency outside it.</li>
+ *     <li>optional write-ahead log (see utility.MockWriteAheadLog) honouring Durability and writeToWAL.</li>
+ *     <li>delete() honours timestamps: deleteColumn(f, q, ts) removes one version, deleteColumns(f, q, ts)
+ *     and deleteFamily(f, ts) every version up to ts. Like a region server, deletes without a timestamp
+ *     are stamped with the current time, so they leave cells with later timestamps alone.</li>
+ *     <li>simulated latency comes from a pluggable utility.LatencyModel, 10ms per call by default.</li>
+ *     <li>put(List) and delete(List) are a single round trip and WAL sync, like get(List).</li>
+ *     <li>optional region splits and coprocessor endpoints (see addEndpoint()), executed in-process per
+ *     region. Calls made by an endpoint run next to the data and cost no simulated latency.</li>
  * </ul>
  */
 public class MockHTable implements HTableInterface {
@@ -62,6 +83,22 @@ public class MockHTable implements HTableInterface {
 
     private NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>>> data
             = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile MockWriteAheadLog writeAheadLog;
+    private volatile LatencyModel latencyModel = LatencyModel.fixed(10);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile byte[][] splitKeys = new byte[0][];
+    private final List<EndpointFactory> endpointFactories = new CopyOnWriteArrayList<>();
+    // endpoint instances per region, created on first use; guarded by itself
+    private final Map<Integer, List<Service>> endpoints = new HashMap<>();
+    private final ThreadLocal<Boolean> inEndpoint = new ThreadLocal<>();
+
+    /**
+     * Creates the instance of a coprocessor endpoint for one region.
+     */
+    public interface EndpointFactory {
+        Service create(HTableInterface table, byte[] startKey, byte[] endKey);
+    }
 
     private static List<KeyValue> toKeyValue(byte[] row, NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowdata, int maxVersions) {
         return toKeyValue(row, rowdata, 0, Long.MAX_VALUE, maxVersions);
@@ -80,6 +117,64 @@ public class MockHTable implements HTableInterface {
         this.columnFamilies.add(columnFamily);
     }
 
+    /**
+     * Replays the log into this table and then appends every later mutation
+     * to it. Mutations with Durability.SKIP_WAL are not logged, ASYNC_WAL ones
+     * do not wait for the sync.
+     */
+    public void setWriteAheadLog(MockWriteAheadLog writeAheadLog) throws IOException {
+        lock.writeLock().lock();
+        try {
+            writeAheadLog.replay(new MockWriteAheadLog.Replayer() {
+                @Override
+                public void replay(byte type, byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value) {
+                    if (type == MockWriteAheadLog.PUT) {
+                        applyPut(row, family, qualifier, timestamp, value);
+                    } else {
+                        removeCells(type, row, family, qualifier, timestamp);
+                    }
+                }
+            });
+            this.writeAheadLog = writeAheadLog;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public MockWriteAheadLog getWriteAheadLog() {
+        return this.writeAheadLog;
+    }
+
+    /**
+     * Splits the table into regions at the given keys, which only matters to
+     * coprocessor endpoints. There is a single region by default.
+     */
+    public void setRegionSplits(byte[]... splitKeys) {
+        byte[][] sorted = splitKeys.clone();
+        Arrays.sort(sorted, Bytes.BYTES_COMPARATOR);
+        synchronized (this.endpoints) {
+            this.splitKeys = sorted;
+            this.endpoints.clear();
+        }
+    }
+
+    /**
+     * Registers a coprocessor endpoint; factory is called once per region.
+     */
+    public void addEndpoint(EndpointFactory factory) {
+        synchronized (this.endpoints) {
+            this.endpointFactories.add(factory);
+            this.endpoints.clear();
+        }
+    }
+
+    /**
+     * Replaces the default of a fixed 10ms per call.
+     */
+    public void setLatencyModel(LatencyModel latencyModel) {
+        this.latencyModel = latencyModel;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -119,14 +214,23 @@ public class MockHTable implements HTableInterface {
     @Override
     public void mutateRow(RowMutations rm) throws IOException {
         this.sleeper();
-        // currently only support Put and Delete
-        for (Mutation mutation : rm.getMutations()) {
-            if (mutation instanceof Put) {
-                put((Put) mutation);
-            } else if (mutation instanceof Delete) {
-                delete((Delete) mutation);
+        long sequence = 0;
+        boolean async = true;
+        lock.writeLock().lock();
+        try {
+            // currently only support Put and Delete
+            for (Mutation mutation : rm.getMutations()) {
+                if (mutation instanceof Put) {
+                    sequence = Math.max(sequence, putInternal((Put) mutation));
+                } else if (mutation instanceof Delete) {
+                    sequence = Math.max(sequence, deleteInternal((Delete) mutation));
+                }
+                async &= mutation.getDurability() == Durability.ASYNC_WAL;
             }
+        } finally {
+            lock.writeLock().unlock();
         }
+        sync(sequence, async ? Durability.ASYNC_WAL : Durability.USE_DEFAULT);
     }
 
     /**
@@ -142,23 +246,30 @@ public class MockHTable implements HTableInterface {
         List<KeyValue> ret = new ArrayList<KeyValue>();
         for (byte[] family : rowdata.keySet())
             for (byte[] qualifier : rowdata.get(family).keySet()) {
-                int versionsAdded = 0;
-                //LOG.info("num cells: " + rowdata.get(family).get(qualifier).descendingMap().entrySet().size());
-                for (Map.Entry<Long, byte[]> tsToVal : rowdata.get(family).get(qualifier).descendingMap().entrySet()) {
-                    if (versionsAdded++ == maxVersions)
-                        break;
-                    Long timestamp = tsToVal.getKey();
-                    if (timestamp < timestampStart)
-                        continue;
-                    if (timestamp > timestampEnd)
-                        continue;
-                    byte[] value = tsToVal.getValue();
-                    ret.add(new KeyValue(row, family, qualifier, timestamp, value));
-                }
+                addVersions(ret, row, family, qualifier, rowdata.get(family).get(qualifier), timestampStart, timestampEnd, maxVersions);
             }
         return ret;
     }
 
+    /**
+     * Adds the newest maxVersions versions of one column that fall into
+     * [timestampStart, timestampEnd), like a TimeRange on a Get or Scan.
+     */
+    private static void addVersions(List<KeyValue> kvs, byte[] row, byte[] family, byte[] qualifier, NavigableMap<Long, byte[]> versions, long timestampStart, long timestampEnd, int maxVersions) {
+        int versionsAdded = 0;
+        for (Map.Entry<Long, byte[]> tsToVal : versions.descendingMap().entrySet()) {
+            if (versionsAdded == maxVersions)
+                break;
+            Long timestamp = tsToVal.getKey();
+            if (timestamp < timestampStart)
+                break;
+            if (timestamp >= timestampEnd)
+                continue;
+            kvs.add(new KeyValue(row, family, qualifier, timestamp, tsToVal.getValue()));
+            versionsAdded++;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -226,12 +337,25 @@ public class MockHTable implements HTableInterface {
     @Override
     public Result get(Get get) throws IOException {
         this.sleeper();
+        return getInternal(get);
+    }
+
+    private Result getInternal(Get get) throws IOException {
+        lock.readLock().lock();
+        try {
+            return getLocked(get);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Result getLocked(Get get) throws IOException {
         if (!data.containsKey(get.getRow()))
             return new Result();
         byte[] row = get.getRow();
         List<KeyValue> kvs = new ArrayList<KeyValue>();
         if (!get.hasFamilies()) {
-            kvs = toKeyValue(row, data.get(row), get.getMaxVersions());
+            kvs = toKeyValue(row, data.get(row), get.getTimeRange().getMin(), get.getTimeRange().getMax(), get.getMaxVersions());
         } else {
             for (byte[] family : get.getFamilyMap().keySet()) {
                 if (data.get(row).get(family) == null)
@@ -246,8 +370,8 @@ public class MockHTable implements HTableInterface {
                             !data.get(row).get(family).containsKey(qualifier) ||
                             data.get(row).get(family).get(qualifier).isEmpty())
                         continue;
-                    Map.Entry<Long, byte[]> timestampAndValue = data.get(row).get(family).get(qualifier).lastEntry();
-                    kvs.add(new KeyValue(row, family, qualifier, timestampAndValue.getKey(), timestampAndValue.getValue()));
+                    addVersions(kvs, row, family, qualifier, data.get(row).get(family).get(qualifier),
+                            get.getTimeRange().getMin(), get.getTimeRange().getMax(), get.getMaxVersions());
                 }
             }
         }
@@ -264,9 +388,11 @@ public class MockHTable implements HTableInterface {
      */
     @Override
     public Result[] get(List<Get> gets) throws IOException {
+        // a multi-get is a single round trip
+        this.sleeper(gets.size());
         List<Result> results = new ArrayList<Result>();
         for (Get g : gets) {
-            results.add(get(g));
+            results.add(getInternal(g));
         }
         return results.toArray(new Result[results.size()]);
     }
@@ -290,11 +416,13 @@ public class MockHTable implements HTableInterface {
         byte[] sp = scan.getStopRow();
         Filter filter = scan.getFilter();
 
+        lock.readLock().lock();
+        try {
         for (byte[] row : data.keySet()) {
             // if row is equal to startRow emit it. When startRow (inclusive) and
             // stopRow (exclusive) is the same, it should not be excluded which would
             // happen w/o this control.
-            if (st != null && st.length > 0 &&
+            if (st == null || st.length == 0 ||
                     Bytes.BYTES_COMPARATOR.compare(st, row) != 0) {
                 // if row is before startRow do not emit, pass to next row
                 if (st != null && st.length > 0 &&
@@ -320,17 +448,8 @@ public class MockHTable implements HTableInterface {
                     for (byte[] qualifier : qualifiers) {
                         if (data.get(row).get(family).get(qualifier) == null)
                             continue;
-                        for (Long timestamp : data.get(row).get(family).get(qualifier).descendingKeySet()) {
-                            if (timestamp < scan.getTimeRange().getMin())
-                                continue;
-                            if (timestamp > scan.getTimeRange().getMax())
-                                continue;
-                            byte[] value = data.get(row).get(family).get(qualifier).get(timestamp);
-                            kvs.add(new KeyValue(row, family, qualifier, timestamp, value));
-                            if (kvs.size() == scan.getMaxVersions()) {
-                                break;
-                            }
-                        }
+                        addVersions(kvs, row, family, qualifier, data.get(row).get(family).get(qualifier),
+                                scan.getTimeRange().getMin(), scan.getTimeRange().getMax(), scan.getMaxVersions());
                     }
                 }
             }
@@ -345,6 +464,9 @@ public class MockHTable implements HTableInterface {
                 ret.add(new Result(kvs));
             }
         }
+        } finally {
+            lock.readLock().unlock();
+        }
 
         return new ResultScanner() {
             private final Iterator<Result> iterator = ret.iterator();
@@ -457,10 +579,21 @@ public class MockHTable implements HTableInterface {
     }
 
     private void sleeper() {
+        sleeper(1);
+    }
+
+    private void sleeper(int rows) {
+        if (this.inEndpoint.get() != null)
+            return;
+        int calls = this.inFlight.incrementAndGet();
         try {
-            Thread.sleep(10);
+            long micros = this.latencyModel.latencyMicros(calls, rows);
+            if (micros > 0)
+                TimeUnit.MICROSECONDS.sleep(micros);
         } catch (InterruptedException e) {
 
+        } finally {
+            this.inFlight.decrementAndGet();
         }
     }
 
@@ -470,20 +603,114 @@ public class MockHTable implements HTableInterface {
     @Override
     public void put(Put put) throws IOException {
         this.sleeper();
+        sync(putInternal(put), put.getDurability());
+    }
+
+    /**
+     * Applies and logs a put; returns the WAL sequence of its last record, or
+     * 0 if nothing was logged.
+     */
+    private long putInternal(Put put) throws IOException {
         byte[] row = put.getRow();
-        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData = forceFind(data, row, new TreeMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>>(Bytes.BYTES_COMPARATOR));
         for (byte[] family : put.getFamilyMap().keySet()) {
             if (columnFamilies.contains(new String(family)) == false) {
                 throw new RuntimeException("Not Exists columnFamily : " + new String(family));
             }
-            NavigableMap<byte[], NavigableMap<Long, byte[]>> familyData = forceFind(rowData, family, new TreeMap<byte[], NavigableMap<Long, byte[]>>(Bytes.BYTES_COMPARATOR));
-            for (KeyValue kv : put.getFamilyMap().get(family)) {
-                kv.updateLatestStamp(Bytes.toBytes(System.currentTimeMillis()));
-                byte[] qualifier = kv.getQualifier();
-                NavigableMap<Long, byte[]> qualifierData = forceFind(familyData, qualifier, new TreeMap<Long, byte[]>());
-                qualifierData.put(kv.getTimestamp(), kv.getValue());
+        }
+        long sequence = 0;
+        lock.writeLock().lock();
+        try {
+            for (byte[] family : put.getFamilyMap().keySet()) {
+                for (KeyValue kv : put.getFamilyMap().get(family)) {
+                    kv.updateLatestStamp(Bytes.toBytes(System.currentTimeMillis()));
+                    byte[] qualifier = kv.getQualifier();
+                    byte[] value = kv.getValue();
+                    sequence = log(put.getDurability(), MockWriteAheadLog.PUT, row, family, qualifier, kv.getTimestamp(), value);
+                    applyPut(row, family, qualifier, kv.getTimestamp(), value);
+                }
             }
+        } finally {
+            lock.writeLock().unlock();
         }
+        return sequence;
+    }
+
+    private void applyPut(byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value) {
+        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData = forceFind(data, row, new TreeMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>>(Bytes.BYTES_COMPARATOR));
+        NavigableMap<byte[], NavigableMap<Long, byte[]>> familyData = forceFind(rowData, family, new TreeMap<byte[], NavigableMap<Long, byte[]>>(Bytes.BYTES_COMPARATOR));
+        NavigableMap<Long, byte[]> qualifierData = forceFind(familyData, qualifier, new TreeMap<Long, byte[]>());
+        qualifierData.put(timestamp, value);
+    }
+
+    /**
+     * Timestamp of the newest version of a column not after maxTimestamp, or
+     * null if there is none. Call with the lock held.
+     */
+    private Long newestVersion(byte[] row, byte[] family, byte[] qualifier, long maxTimestamp) {
+        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData = data.get(row);
+        NavigableMap<byte[], NavigableMap<Long, byte[]>> familyData = rowData == null ? null : rowData.get(family);
+        NavigableMap<Long, byte[]> versions = familyData == null ? null : familyData.get(qualifier);
+        return versions == null ? null : versions.floorKey(maxTimestamp);
+    }
+
+    /**
+     * Removes cells of a whole row, a family or a single column and prunes
+     * whatever became empty. DELETE_VERSION removes the version at timestamp;
+     * the other types remove every version up to timestamp, or all of them
+     * for LATEST_TIMESTAMP.
+     */
+    private void removeCells(byte type, byte[] row, byte[] family, byte[] qualifier, long timestamp) {
+        NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData = data.get(row);
+        if (rowData == null)
+            return;
+        Collection<NavigableMap<byte[], NavigableMap<Long, byte[]>>> families = type == MockWriteAheadLog.DELETE_ROW
+                ? rowData.values()
+                : Collections.singletonList(rowData.get(family));
+        for (NavigableMap<byte[], NavigableMap<Long, byte[]>> familyData : families) {
+            if (familyData == null)
+                continue;
+            Collection<NavigableMap<Long, byte[]>> columns = type == MockWriteAheadLog.DELETE_ROW || type == MockWriteAheadLog.DELETE_FAMILY
+                    ? familyData.values()
+                    : Collections.singletonList(familyData.get(qualifier));
+            for (NavigableMap<Long, byte[]> versions : columns) {
+                if (versions == null)
+                    continue;
+                if (type == MockWriteAheadLog.DELETE_VERSION) {
+                    versions.remove(timestamp);
+                } else if (timestamp == HConstants.LATEST_TIMESTAMP) {
+                    versions.clear();
+                } else {
+                    versions.headMap(timestamp, true).clear();
+                }
+            }
+            Iterator<NavigableMap<Long, byte[]>> it = familyData.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isEmpty())
+                    it.remove();
+            }
+        }
+        Iterator<NavigableMap<byte[], NavigableMap<Long, byte[]>>> it = rowData.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isEmpty())
+                it.remove();
+        }
+        if (rowData.isEmpty()) {
+            data.remove(row);
+        }
+    }
+
+    private long log(Durability durability, byte type, byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value) throws IOException {
+        MockWriteAheadLog wal = this.writeAheadLog;
+        if (wal == null || durability == Durability.SKIP_WAL)
+            return 0;
+        return wal.append(type, row, family, qualifier, timestamp, value);
+    }
+
+    private void sync(long sequence, Durability durability) throws IOException {
+        // called after the lock is released so concurrent writers can share one fsync
+        if (sequence == 0 || durability == Durability.ASYNC_WAL)
+            return;
+        this.writeAheadLog.sync(sequence);
     }
 
     /**
@@ -491,10 +718,15 @@ public class MockHTable implements HTableInterface {
      */
     @Override
     public void put(List<Put> puts) throws IOException {
+        // a multi-put is a single round trip and a single WAL sync
+        this.sleeper(puts.size());
+        long sequence = 0;
+        boolean async = true;
         for (Put put : puts) {
-            put(put);
+            sequence = Math.max(sequence, putInternal(put));
+            async &= put.getDurability() == Durability.ASYNC_WAL;
         }
-
+        sync(sequence, async ? Durability.ASYNC_WAL : Durability.USE_DEFAULT);
     }
 
     private boolean check(byte[] row, byte[] family, byte[] qualifier, byte[] value) {
@@ -515,11 +747,18 @@ public class MockHTable implements HTableInterface {
      */
     @Override
     public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) throws IOException {
-        if (check(row, family, qualifier, value)) {
-            put(put);
-            return true;
+        this.sleeper();
+        long sequence;
+        lock.writeLock().lock();
+        try {
+            if (!check(row, family, qualifier, value))
+                return false;
+            sequence = putInternal(put);
+        } finally {
+            lock.writeLock().unlock();
         }
-        return false;
+        sync(sequence, put.getDurability());
+        return true;
     }
 
    /**
@@ -543,30 +782,58 @@ public class MockHTable implements HTableInterface {
     @Override
     public void delete(Delete delete) throws IOException {
         this.sleeper();
+        sync(deleteInternal(delete), delete.getDurability());
+    }
+
+    private long deleteInternal(Delete delete) throws IOException {
         byte[] row = delete.getRow();
-        if (data.get(row) == null)
-            return;
-        if (delete.getFamilyMap().size() == 0) {
-            data.remove(row);
-            return;
-        }
-        for (byte[] family : delete.getFamilyMap().keySet()) {
-            if (data.get(row).get(family) == null)
-                continue;
-            if (delete.getFamilyMap().get(family).isEmpty()) {
-                data.get(row).remove(family);
-                continue;
-            }
-            for (KeyValue kv : delete.getFamilyMap().get(family)) {
-                data.get(row).get(kv.getFamily()).remove(kv.getQualifier());
+        Durability durability = delete.getDurability();
+        long sequence = 0;
+        lock.writeLock().lock();
+        try {
+            if (data.get(row) == null)
+                return 0;
+            // like a region server, stamp deletes without a timestamp with the current time
+            long now = System.currentTimeMillis();
+            if (delete.getFamilyMap().size() == 0) {
+                long timestamp = delete.getTimeStamp() == HConstants.LATEST_TIMESTAMP ? now : delete.getTimeStamp();
+                sequence = log(durability, MockWriteAheadLog.DELETE_ROW, row, null, null, timestamp, null);
+                removeCells(MockWriteAheadLog.DELETE_ROW, row, null, null, timestamp);
+                return sequence;
             }
-            if (data.get(row).get(family).isEmpty()) {
-                data.get(row).remove(family);
+            for (byte[] family : delete.getFamilyMap().keySet()) {
+                if (delete.getFamilyMap().get(family).isEmpty()) {
+                    sequence = log(durability, MockWriteAheadLog.DELETE_FAMILY, row, family, null, now, null);
+                    removeCells(MockWriteAheadLog.DELETE_FAMILY, row, family, null, now);
+                    continue;
+                }
+                for (KeyValue kv : delete.getFamilyMap().get(family)) {
+                    byte type;
+                    byte[] qualifier = kv.getQualifier();
+                    long timestamp = kv.isLatestTimestamp() ? now : kv.getTimestamp();
+                    if (kv.getTypeByte() == KeyValue.Type.DeleteFamily.getCode()) {
+                        type = MockWriteAheadLog.DELETE_FAMILY;
+                        qualifier = null;
+                    } else if (kv.getTypeByte() == KeyValue.Type.Delete.getCode()) {
+                        type = MockWriteAheadLog.DELETE_VERSION;
+                        if (kv.isLatestTimestamp()) {
+                            // the newest version, as long as it is not in the future
+                            Long newest = newestVersion(row, family, qualifier, now);
+                            if (newest == null)
+                                continue;
+                            timestamp = newest;
+                        }
+                    } else {
+                        type = MockWriteAheadLog.DELETE_COLUMN;
+                    }
+                    sequence = log(durability, type, row, family, qualifier, timestamp, null);
+                    removeCells(type, row, family, qualifier, timestamp);
+                }
             }
+        } finally {
+            lock.writeLock().unlock();
         }
-        if (data.get(row).isEmpty()) {
-            data.remove(row);
-        }
+        return sequence;
     }
 
     /**
@@ -574,9 +841,14 @@ public class MockHTable implements HTableInterface {
      */
     @Override
     public void delete(List<Delete> deletes) throws IOException {
+        this.sleeper(deletes.size());
+        long sequence = 0;
+        boolean async = true;
         for (Delete delete : deletes) {
-            delete(delete);
+            sequence = Math.max(sequence, deleteInternal(delete));
+            async &= delete.getDurability() == Durability.ASYNC_WAL;
         }
+        sync(sequence, async ? Durability.ASYNC_WAL : Durability.USE_DEFAULT);
     }
 
     /**
@@ -585,11 +857,17 @@ public class MockHTable implements HTableInterface {
     @Override
     public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value, Delete delete) throws IOException {
         this.sleeper();
-        if (check(row, family, qualifier, value)) {
-            delete(delete);
-            return true;
+        long sequence;
+        lock.writeLock().lock();
+        try {
+            if (!check(row, family, qualifier, value))
+                return false;
+            sequence = deleteInternal(delete);
+        } finally {
+            lock.writeLock().unlock();
         }
-        return false;
+        sync(sequence, delete.getDurability());
+        return true;
     }
 
 
@@ -627,22 +905,33 @@ public class MockHTable implements HTableInterface {
      */
     @Override
     public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, boolean writeToWAL) throws IOException {
-        this.sleeper();
-        if (check(row, family, qualifier, null)) {
-            Put put = new Put(row);
-            put.add(family, qualifier, Bytes.toBytes(amount));
-            put(put);
-            return amount;
-        }
-        long newValue = Bytes.toLong(data.get(row).get(family).get(qualifier).lastEntry().getValue()) + amount;
-        data.get(row).get(family).get(qualifier).put(System.currentTimeMillis(),
-                Bytes.toBytes(newValue));
-        return newValue;
+        return incrementColumnValue(row, family, qualifier, amount, writeToWAL ? Durability.USE_DEFAULT : Durability.SKIP_WAL);
     }
 
     @Override
-    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, Durability var6) throws IOException {
-        throw new RuntimeException(this.getClass() + " does NOT implement this method.");
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount, Durability durability) throws IOException {
+        this.sleeper();
+        long newValue;
+        long sequence;
+        lock.writeLock().lock();
+        try {
+            if (check(row, family, qualifier, null)) {
+                Put put = new Put(row);
+                put.add(family, qualifier, Bytes.toBytes(amount));
+                put.setDurability(durability);
+                newValue = amount;
+                sequence = putInternal(put);
+            } else {
+                newValue = Bytes.toLong(data.get(row).get(family).get(qualifier).lastEntry().getValue()) + amount;
+                long timestamp = System.currentTimeMillis();
+                sequence = log(durability, MockWriteAheadLog.PUT, row, family, qualifier, timestamp, Bytes.toBytes(newValue));
+                applyPut(row, family, qualifier, timestamp, Bytes.toBytes(newValue));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        sync(sequence, durability);
+        return newValue;
     }
 
     /**
@@ -685,32 +974,143 @@ public class MockHTable implements HTableInterface {
     //    throw new RuntimeException(this.getClass() + " does NOT implement this method.");
     //}
 
+    private int regionIndex(byte[] row) {
+        byte[][] splitKeys = this.splitKeys;
+        int index = 0;
+        while (index < splitKeys.length && Bytes.compareTo(splitKeys[index], row) <= 0) {
+            index++;
+        }
+        return index;
+    }
+
+    private byte[] regionStartKey(int index) {
+        return index == 0 ? HConstants.EMPTY_START_ROW : this.splitKeys[index - 1];
+    }
+
+    private byte[] regionEndKey(int index) {
+        return index == this.splitKeys.length ? HConstants.EMPTY_END_ROW : this.splitKeys[index];
+    }
+
+    private Service findEndpoint(int region, String serviceName) {
+        List<Service> services;
+        synchronized (this.endpoints) {
+            services = this.endpoints.get(region);
+            if (services == null) {
+                services = new ArrayList<>();
+                for (EndpointFactory factory : this.endpointFactories) {
+                    services.add(factory.create(this, regionStartKey(region), regionEndKey(region)));
+                }
+                this.endpoints.put(region, services);
+            }
+        }
+        for (Service service : services) {
+            if (service.getDescriptorForType().getFullName().equals(serviceName))
+                return service;
+        }
+        return null;
+    }
+
+    /**
+     * Runs an endpoint call the way a region server does: the request and
+     * response go through their wire format and failures reported to the
+     * controller are thrown.
+     */
+    private Message execService(int region, Descriptors.MethodDescriptor method, Message request,
+                                Message responsePrototype) throws IOException {
+        this.sleeper();
+        Service service = findEndpoint(region, method.getService().getFullName());
+        if (service == null)
+            throw new IOException("No endpoint for " + method.getService().getFullName() + " on table " + tableName);
+        Descriptors.MethodDescriptor serverMethod = service.getDescriptorForType().findMethodByName(method.getName());
+        Message serverRequest = service.getRequestPrototype(serverMethod).newBuilderForType()
+                .mergeFrom(request.toByteString()).build();
+        ServerRpcController controller = new ServerRpcController();
+        BlockingRpcCallback<Message> done = new BlockingRpcCallback<>();
+        this.inEndpoint.set(Boolean.TRUE);
+        try {
+            service.callMethod(serverMethod, controller, serverRequest, done);
+        } finally {
+            this.inEndpoint.remove();
+        }
+        controller.checkFailed();
+        Message response = done.get();
+        if (response == null)
+            return responsePrototype.getDefaultInstanceForType();
+        return responsePrototype.newBuilderForType().mergeFrom(response.toByteString()).build();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public CoprocessorRpcChannel coprocessorService(byte[] var1) {
-        throw new RuntimeException(this.getClass() + " does NOT implement this method.");
+    public CoprocessorRpcChannel coprocessorService(byte[] row) {
+        final int region = regionIndex(row);
+        return new CoprocessorRpcChannel() {
+            @Override
+            protected Message callExecService(Descriptors.MethodDescriptor method, Message request,
+                                              Message responsePrototype) throws IOException {
+                return execService(region, method, request, responsePrototype);
+            }
+        };
     }
 
+    /**
+     * Calls every region overlapping [startKey, endKey] in turn; the results
+     * are keyed by region start key rather than region name.
+     */
     @Override
-    public <T extends Service, R> Map<byte[], R> coprocessorService(Class<T> var1, byte[] var2, byte[] var3, Batch.Call<T, R> var4) throws ServiceException, Throwable {
-        throw new RuntimeException(this.getClass() + " does NOT implement this method.");
+    public <T extends Service, R> Map<byte[], R> coprocessorService(Class<T> service, byte[] startKey, byte[] endKey,
+                                                                     Batch.Call<T, R> callable) throws ServiceException, Throwable {
+        final Map<byte[], R> results = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+        coprocessorService(service, startKey, endKey, callable, new Batch.Callback<R>() {
+            @Override
+            public void update(byte[] region, byte[] row, R result) {
+                results.put(region, result);
+            }
+        });
+        return results;
     }
 
     @Override
-    public <T extends Service, R> void coprocessorService(Class<T> var1, byte[] var2, byte[] var3, Batch.Call<T, R> var4, Batch.Callback<R> var5) throws ServiceException, Throwable {
-        throw new RuntimeException(this.getClass() + " does NOT implement this method.");
+    public <T extends Service, R> void coprocessorService(Class<T> service, byte[] startKey, byte[] endKey,
+                                                          Batch.Call<T, R> callable, Batch.Callback<R> callback) throws ServiceException, Throwable {
+        int first = startKey == null ? 0 : regionIndex(startKey);
+        int last = endKey == null || endKey.length == 0 ? this.splitKeys.length : regionIndex(endKey);
+        for (int region = first; region <= last; region++) {
+            byte[] regionStart = regionStartKey(region);
+            T instance = ProtobufUtil.newServiceStub(service, coprocessorService(regionStart));
+            callback.update(regionStart, regionStart, callable.call(instance));
+        }
     }
 
+    /**
+     * Sends the same request to every region overlapping [startKey, endKey];
+     * the responses are keyed by region start key rather than region name.
+     */
     @Override
-    public <R extends Message> Map<byte[], R> batchCoprocessorService(Descriptors.MethodDescriptor var1, Message var2, byte[] var3, byte[] var4, R var5) throws ServiceException, Throwable {
-        throw new RuntimeException(this.getClass() + " does NOT implement this method.");
+    public <R extends Message> Map<byte[], R> batchCoprocessorService(Descriptors.MethodDescriptor method, Message request,
+                                                                      byte[] startKey, byte[] endKey, R responsePrototype) throws ServiceException, Throwable {
+        final Map<byte[], R> results = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+        batchCoprocessorService(method, request, startKey, endKey, responsePrototype, new Batch.Callback<R>() {
+            @Override
+            public void update(byte[] region, byte[] row, R result) {
+                results.put(region, result);
+            }
+        });
+        return results;
     }
 
     @Override
-    public <R extends Message> void batchCoprocessorService(Descriptors.MethodDescriptor var1, Message var2, byte[] var3, byte[] var4, R var5, Batch.Callback<R> var6) throws ServiceException, Throwable {
-        throw new RuntimeException(this.getClass() + " does NOT implement this method.");
+    @SuppressWarnings("unchecked")
+    public <R extends Message> void batchCoprocessorService(Descriptors.MethodDescriptor method, Message request,
+                                                            byte[] startKey, byte[] endKey, R responsePrototype,
+                                                            Batch.Callback<R> callback) throws ServiceException, Throwable {
+        int first = startKey == null ? 0 : regionIndex(startKey);
+        int last = endKey == null || endKey.length == 0 ? this.splitKeys.length : regionIndex(endKey);
+        for (int region = first; region <= last; region++) {
+            byte[] regionStart = regionStartKey(region);
+            callback.update(regionStart, regionStart, (R) execService(region, method, request, responsePrototype));
+        }
     }
 
     @Override
@@ -0,0 +1,303 @@
+package utility;
+
+/**
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * utility.MockWriteAheadLog.
+ *
+ * Append-only log of the mutations applied to a MockHTable, so the mock can
+ * survive a restart. Records are buffered in memory and written to a
+ * FileChannel when synced:
+ *
+ * <ul>
+ *     <li>PER_OPERATION : every mutation writes and fsyncs its own records.</li>
+ *     <li>PER_BATCH : group commit. The first waiting writer syncs everything
+ *     appended so far, writers queued behind it find their records already
+ *     durable.</li>
+ *     <li>PERIODIC : a background thread syncs every syncIntervalMillis and
+ *     writers never wait.</li>
+ * </ul>
+ *
+ * Each record carries its length and a CRC32, and replay stops at the first
+ * torn or corrupt record and truncates the file there.
+ */
+public class MockWriteAheadLog implements Closeable {
+    private static Logger LOG = Logger.getLogger(MockWriteAheadLog.class.getName());
+
+    public enum SyncPolicy {
+        PER_OPERATION,
+        PER_BATCH,
+        PERIODIC
+    }
+
+    public static final byte PUT = 1;
+    public static final byte DELETE_ROW = 2;
+    public static final byte DELETE_FAMILY = 3;
+    public static final byte DELETE_COLUMN = 4;
+    public static final byte DELETE_VERSION = 5;
+
+    /**
+     * Receives records during replay, in log order.
+     */
+    public interface Replayer {
+        void replay(byte type, byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value);
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final SyncPolicy syncPolicy;
+    private final ScheduledExecutorService syncer;
+
+    // guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSequence = 0;
+    private long appendCount = 0;
+
+    // guarded by syncLock
+    private final Object syncLock = new Object();
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+    private long syncedSequence = 0;
+    private long syncCount = 0;
+    private long bytesWritten = 0;
+
+    public MockWriteAheadLog(File file, SyncPolicy syncPolicy) throws IOException {
+        this(file, syncPolicy, 100);
+    }
+
+    public MockWriteAheadLog(File file, SyncPolicy syncPolicy, long syncIntervalMillis) throws IOException {
+        this.file = file;
+        this.syncPolicy = syncPolicy;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.channel.position(this.channel.size());
+
+        if (syncPolicy == SyncPolicy.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "wal-syncer-" + MockWriteAheadLog.this.file.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        syncAll();
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "Periodic WAL sync failed", e);
+                    }
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return this.syncPolicy;
+    }
+
+    /**
+     * Buffers one record and returns its sequence number. The record is not
+     * durable until sync() has been called with that number.
+     */
+    public synchronized long append(byte type, byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(32 + row.length
+                + (value == null ? 0 : value.length));
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(type);
+        writeBytes(out, row);
+        writeBytes(out, family);
+        writeBytes(out, qualifier);
+        out.writeLong(timestamp);
+        writeBytes(out, value);
+        out.flush();
+
+        byte[] record = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        DataOutputStream pendingOut = new DataOutputStream(this.pending);
+        pendingOut.writeInt(record.length);
+        pendingOut.writeInt((int) crc.getValue());
+        pendingOut.write(record);
+        pendingOut.flush();
+
+        this.appendCount++;
+        return ++this.appendedSequence;
+    }
+
+    /**
+     * Makes every record up to sequence durable, as the sync policy demands.
+     * Under PERIODIC this returns immediately.
+     */
+    public void sync(long sequence) throws IOException {
+        switch (this.syncPolicy) {
+            case PERIODIC:
+                return;
+            case PER_OPERATION:
+                syncPending(Long.MAX_VALUE);
+                return;
+            case PER_BATCH:
+                syncPending(sequence);
+                return;
+        }
+    }
+
+    /**
+     * Writes and fsyncs everything appended so far, regardless of policy.
+     */
+    public void syncAll() throws IOException {
+        syncPending(Long.MAX_VALUE);
+    }
+
+    private void syncPending(long sequence) throws IOException {
+        synchronized (this.syncLock) {
+            if (this.syncedSequence >= sequence)
+                return;
+
+            ByteArrayOutputStream toWrite;
+            long lastSequence;
+            synchronized (this) {
+                toWrite = this.pending;
+                lastSequence = this.appendedSequence;
+                this.pending = this.spare;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(toWrite.toByteArray());
+            while (buffer.hasRemaining()) {
+                this.bytesWritten += this.channel.write(buffer);
+            }
+            this.channel.force(false);
+            toWrite.reset();
+            this.spare = toWrite;
+            this.syncedSequence = lastSequence;
+            this.syncCount++;
+        }
+    }
+
+    /**
+     * Feeds every intact record in the log to the replayer and truncates a
+     * torn tail, if any.
+     */
+    public void replay(Replayer replayer) throws IOException {
+        long validLength = 0;
+        long fileLength = this.file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || validLength + 8 + length > fileLength)
+                        break;
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, record.length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = recordIn.readByte();
+                byte[] row = readBytes(recordIn);
+                byte[] family = readBytes(recordIn);
+                byte[] qualifier = readBytes(recordIn);
+                long timestamp = recordIn.readLong();
+                byte[] value = readBytes(recordIn);
+                replayer.replay(type, row, family, qualifier, timestamp, value);
+                validLength += 8 + length;
+            }
+        } finally {
+            in.close();
+        }
+
+        synchronized (this.syncLock) {
+            if (validLength < this.channel.size()) {
+                LOG.warning("Truncating torn WAL tail of " + this.file + " at " + validLength);
+                this.channel.truncate(validLength);
+            }
+            this.channel.position(this.channel.size());
+        }
+    }
+
+    public synchronized long getAppendCount() {
+        return this.appendCount;
+    }
+
+    public long getSyncCount() {
+        synchronized (this.syncLock) {
+            return this.syncCount;
+        }
+    }
+
+    public long getBytesWritten() {
+        synchronized (this.syncLock) {
+            return this.bytesWritten;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.syncer != null)
+            this.syncer.shutdownNow();
+        syncAll();
+        this.channel.close();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
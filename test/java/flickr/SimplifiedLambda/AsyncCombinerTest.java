@@ -0,0 +1,101 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class AsyncCombinerTest {
+    private MockHTable lambdaTable;
+    private SimplifiedLambda simplifiedLambda;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        this.lambdaTable = new MockHTable("lambdaTable");
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        this.simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+        for (int i = 0; i < 100; i++) {
+            this.simplifiedLambda.pushBulkEntry("photo" + i, "bulk" + i);
+        }
+        Thread.sleep(2);
+        this.simplifiedLambda.pushRealtimeEntry("photo7", "rt7");
+    }
+
+    @Test
+    public void testConcurrentRequestsShareBatches() throws Exception {
+        this.lambdaTable.setLatencyModel(LatencyModel.fixed(5));
+        List<CompletableFuture<CombineResult>> futures = new ArrayList<>();
+        try (AsyncCombiner combiner = new AsyncCombiner(this.simplifiedLambda, 2, 50)) {
+            for (int i = 0; i < 200; i++) {
+                futures.add(combiner.lookup("photo" + (i % 101)));
+            }
+            for (int i = 0; i < 200; i++) {
+                CombineResult result = futures.get(i).get(10, TimeUnit.SECONDS);
+                int key = i % 101;
+                if (key == 100) {
+                    assertEquals(result.getSource(), CombineResult.Source.NONE);
+                } else {
+                    assertEquals(result.getValue(), key == 7 ? "rt7" : "bulk" + key);
+                }
+            }
+            assertEquals(combiner.getRequestCount(), 200);
+            // at most 50 keys per batch, and the queue fills up while the first one is in flight
+            assertTrue(combiner.getBatchCount() >= 4 && combiner.getBatchCount() < 20, "" + combiner.getBatchCount());
+
+            CombineResult[] results = combiner.lookup(Arrays.asList("photo7", "missing", "photo3"))
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(results[0].getValue(), "rt7");
+            assertEquals(results[1].getSource(), CombineResult.Source.NONE);
+            assertEquals(results[2].getValue(), "bulk3");
+        }
+    }
+
+    @Test
+    public void testFailuresCompleteExceptionally() throws Exception {
+        MockHTable failingTable = new MockHTable("failingTable") {
+            @Override
+            public Result[] get(List<Get> gets) throws IOException {
+                throw new IOException("region server unavailable");
+            }
+        };
+        failingTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        failingTable.setLatencyModel(LatencyModel.NONE);
+        AsyncCombiner combiner = new AsyncCombiner(new SimplifiedLambda(failingTable), 1, 10);
+        try {
+            combiner.lookup("photo1").get(10, TimeUnit.SECONDS);
+            fail("lookup succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(combiner.getFailedBatches(), 1);
+        combiner.close();
+
+        try {
+            combiner.lookup("photo1").get(10, TimeUnit.SECONDS);
+            fail("lookup succeeded after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
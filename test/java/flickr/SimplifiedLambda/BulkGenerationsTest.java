@@ -0,0 +1,248 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class BulkGenerationsTest {
+    private static final byte[] META_FAMILY = Bytes.toBytes("meta");
+    private static final byte[] POINTER_ROW = Bytes.toBytes("bulk-generation");
+
+    private MockHTable lambdaTable;
+    private MockHTable metaTable;
+
+    @BeforeMethod
+    public void setUp() {
+        this.lambdaTable = new MockHTable("lambdaTable");
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        this.metaTable = new MockHTable("metaTable");
+        this.metaTable.addColumnFamily(new String(META_FAMILY));
+        this.metaTable.setLatencyModel(LatencyModel.NONE);
+    }
+
+    private SimplifiedLambda newSimplifiedLambda(long refreshMillis) {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+        simplifiedLambda.setBulkGenerations(new BulkGenerations(this.metaTable, META_FAMILY, POINTER_ROW,
+                refreshMillis, TimeUnit.MILLISECONDS));
+        return simplifiedLambda;
+    }
+
+    @Test
+    public void testPublishFlipsAllRowsAtOnce() throws Exception {
+        SimplifiedLambda loader = newSimplifiedLambda(50);
+        SimplifiedLambda reader = newSimplifiedLambda(50);
+        final List<ChangeListener.Kind> changes = new ArrayList<>();
+        reader.addChangeListener(new ChangeListener() {
+            @Override
+            public void onChange(byte[] rowKey, Kind kind) {
+                changes.add(kind);
+            }
+        });
+
+        // rows written before generations were enabled are generation 0
+        loader.pushBulkEntry("photo1", "old1");
+        loader.pushBulkEntry("photo2", "old2");
+        assertEquals(reader.combiner("photo1"), "old1");
+
+        BulkLoad load = loader.beginBulkLoad(1);
+        assertEquals(load.getGeneration(), 1);
+        load.push("photo1", "new1");
+        load.push("photo3", "new3");
+        // half-written loads are invisible
+        assertEquals(reader.combiner("photo1"), "old1");
+        assertEquals(reader.lookup("photo3").getSource(), CombineResult.Source.NONE);
+        Thread.sleep(2);
+        loader.pushRealtimeEntry("photo2", "rt2");
+
+        load.publish();
+        assertEquals(loader.combiner("photo1"), "new1");
+        assertEquals(loader.combiner("photo3"), "new3");
+        // realtime written after the load still wins
+        assertEquals(loader.combiner("photo2"), "rt2");
+
+        // other processes follow once their cached pointer expires
+        Thread.sleep(60);
+        assertEquals(reader.combiner("photo1"), "new1");
+        assertTrue(changes.contains(ChangeListener.Kind.PUBLISHED));
+
+        loader.cleaner();
+        assertEquals(loader.combiner("photo2"), "rt2");
+        assertEquals(loader.findItemForKey("photo2", BulkGenerations.bulkColumn(1)), "rt2");
+        // generation 0 is still within the grace period of stale readers
+        assertEquals(loader.findItemForKey("photo1", SimplifiedLambda.BULK_COLUMN), "old1");
+
+        Thread.sleep(110);
+        loader.cleaner();
+        assertNull(loader.findItemForKey("photo1", SimplifiedLambda.BULK_COLUMN));
+        assertEquals(loader.combiner("photo1"), "new1");
+    }
+
+    @Test
+    public void testPublishIsReportedOnce() throws Exception {
+        SimplifiedLambda loader = newSimplifiedLambda(50);
+        final SimplifiedLambda reader = newSimplifiedLambda(50);
+        final AtomicInteger published = new AtomicInteger();
+        reader.addChangeListener(new ChangeListener() {
+            @Override
+            public void onChange(byte[] rowKey, Kind kind) {
+                if (kind == Kind.PUBLISHED)
+                    published.incrementAndGet();
+            }
+        });
+        BulkLoad load = loader.beginBulkLoad(100);
+        load.push("photo1", "new1");
+        load.publish();
+
+        // concurrent readers all notice the new generation
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> lookups = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            lookups.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int j = 0; j < 200; j++) {
+                        assertEquals(reader.combiner("photo1"), "new1");
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> lookup : lookups) {
+            lookup.get();
+        }
+        pool.shutdown();
+        assertEquals(published.get(), 1);
+    }
+
+    @Test
+    public void testCleanerKeepsRealtimeForStagingGeneration() throws Exception {
+        SimplifiedLambda simplifiedLambda = newSimplifiedLambda(50);
+        BulkLoad load = simplifiedLambda.beginBulkLoad(100);
+        load.push("photo1", "staged");
+        load.flush();
+        Thread.sleep(2);
+        simplifiedLambda.pushRealtimeEntry("photo1", "rt");
+        simplifiedLambda.pushRealtimeEntry("photo2", "rt2");
+
+        // the cleaner promotes into both the active and the loading generation
+        simplifiedLambda.cleaner();
+        assertEquals(simplifiedLambda.combiner("photo1"), "rt");
+        load.publish();
+        assertEquals(simplifiedLambda.combiner("photo1"), "rt");
+        assertEquals(simplifiedLambda.combiner("photo2"), "rt2");
+    }
+
+    @Test
+    public void testOneLoadAtATime() throws Exception {
+        SimplifiedLambda simplifiedLambda = newSimplifiedLambda(50);
+        BulkLoad load = simplifiedLambda.beginBulkLoad(100);
+        try {
+            newSimplifiedLambda(50).beginBulkLoad(100);
+            fail("second load started");
+        } catch (IOException e) {
+            // expected
+        }
+        load.push("photo1", "aborted");
+        load.flush();
+        load.close();
+
+        // aborted generations are never reused and are dropped right away
+        BulkLoad next = simplifiedLambda.beginBulkLoad(100);
+        assertEquals(next.getGeneration(), 2);
+        simplifiedLambda.cleaner();
+        assertNull(simplifiedLambda.findItemForKey("photo1", BulkGenerations.bulkColumn(1)));
+        next.push("photo1", "published");
+        next.publish();
+        assertEquals(simplifiedLambda.combiner("photo1"), "published");
+    }
+
+    @Test
+    public void testRetiredGenerationsAreDroppedUnderClock() throws Exception {
+        final HybridLogicalClock clock = new HybridLogicalClock(1);
+        final AtomicBoolean raced = new AtomicBoolean();
+        // a write lands in the retired column between the cleaner's scan and its delete
+        this.lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public void delete(Delete delete) throws IOException {
+                if (raced.compareAndSet(false, true)) {
+                    Put late = new Put(delete.getRow());
+                    late.add(SimplifiedLambda.FAMILY, BulkGenerations.bulkColumn(1), clock.next(), Bytes.toBytes("late"));
+                    put(late);
+                }
+                super.delete(delete);
+            }
+        };
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = newSimplifiedLambda(50);
+        simplifiedLambda.setClock(clock);
+
+        BulkLoad load = simplifiedLambda.beginBulkLoad(100);
+        load.push("photo1", "aborted");
+        load.push("photo2", "aborted");
+        load.flush();
+        load.close();
+
+        // clock timestamps are far ahead of the server time a delete is stamped with
+        simplifiedLambda.cleaner();
+        assertTrue(raced.get());
+        assertNull(simplifiedLambda.findItemForKey("photo2", BulkGenerations.bulkColumn(1)));
+        // only the cells the cleaner saw are dropped
+        assertEquals(simplifiedLambda.findItemForKey("photo1", BulkGenerations.bulkColumn(1)), "late");
+    }
+
+    @Test
+    public void testFilterRebuildDuringLoadKeepsRows() throws Exception {
+        final AtomicReference<SimplifiedLambda> rebuilder = new AtomicReference<>();
+        // a presence filter rebuild runs between marking the rows and writing them
+        this.lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public void put(List<Put> puts) throws IOException {
+                SimplifiedLambda simplifiedLambda = rebuilder.getAndSet(null);
+                if (simplifiedLambda != null)
+                    simplifiedLambda.rebuildPresenceFilter();
+                super.put(puts);
+            }
+        };
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = newSimplifiedLambda(50);
+        simplifiedLambda.enablePresenceFilter(1000, 0.001);
+        simplifiedLambda.rebuildPresenceFilter();
+
+        BulkLoad load = simplifiedLambda.beginBulkLoad(100);
+        load.push("photo1", "new1");
+        rebuilder.set(simplifiedLambda);
+        load.publish();
+        assertNull(rebuilder.get());
+        assertEquals(simplifiedLambda.lookup("photo1").getValue(), "new1");
+    }
+}
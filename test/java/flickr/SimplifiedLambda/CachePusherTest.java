@@ -0,0 +1,177 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.MockHTable;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+public class CachePusherTest {
+    private MockHTable createLambdaTable() {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        return lambdaTable;
+    }
+
+    @Test
+    public void testPushesChangedKeys() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(createLambdaTable());
+        ChangeFeed changeFeed = new ChangeFeed(100);
+        simplifiedLambda.addChangeListener(changeFeed);
+        InMemoryCacheSink cacheSink = new InMemoryCacheSink();
+        CachePusher cachePusher = new CachePusher(simplifiedLambda, changeFeed, cacheSink, 10);
+
+        simplifiedLambda.pushBulkEntry("rowA", "bulk");
+        simplifiedLambda.pushBulkEntry("rowB", "bulk");
+        simplifiedLambda.pushRealtimeEntry("rowB", "rtOvrd");
+        simplifiedLambda.pushRealtimeEntry("rowB", "rtOvrd2");
+
+        // rowB is only queued once
+        assertEquals(changeFeed.size(), 2);
+        assertEquals(cachePusher.pushChanges(0, TimeUnit.MILLISECONDS), 2);
+        assertEquals(cacheSink.get("rowA"), "bulk");
+        assertEquals(cacheSink.get("rowB"), "rtOvrd2");
+
+        // nothing changed, nothing pushed
+        assertEquals(cachePusher.pushChanges(0, TimeUnit.MILLISECONDS), 0);
+        assertEquals(cacheSink.getPutCount(), 2);
+    }
+
+    @Test
+    public void testCleanerEmitsChanges() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(createLambdaTable());
+        ChangeFeed changeFeed = new ChangeFeed(100);
+        InMemoryCacheSink cacheSink = new InMemoryCacheSink();
+        CachePusher cachePusher = new CachePusher(simplifiedLambda, changeFeed, cacheSink, 10);
+
+        simplifiedLambda.pushRealtimeEntry("common", "1");
+        simplifiedLambda.pushBulkEntry("common", "0");
+        simplifiedLambda.pushBulkEntry("untouched", "0");
+
+        simplifiedLambda.addChangeListener(changeFeed);
+        simplifiedLambda.cleaner();
+
+        // only the row the cleaner rewrote is queued
+        assertEquals(changeFeed.size(), 1);
+        cachePusher.pushChanges(0, TimeUnit.MILLISECONDS);
+        assertEquals(cacheSink.get("common"), "0");
+        assertNull(cacheSink.get("untouched"));
+    }
+
+    @Test
+    public void testOverflowSweepsTable() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(createLambdaTable());
+        ChangeFeed changeFeed = new ChangeFeed(2);
+        simplifiedLambda.addChangeListener(changeFeed);
+        InMemoryCacheSink cacheSink = new InMemoryCacheSink();
+        CachePusher cachePusher = new CachePusher(simplifiedLambda, changeFeed, cacheSink, 2);
+
+        for (String key : Arrays.asList("rowA", "rowB", "rowC", "rowD")) {
+            simplifiedLambda.pushBulkEntry(key, "bulk");
+        }
+        assertEquals(changeFeed.getDroppedChanges(), 2);
+
+        assertEquals(cachePusher.pushChanges(0, TimeUnit.MILLISECONDS), 4);
+        assertEquals(cacheSink.size(), 4);
+        assertFalse(changeFeed.takeOverflow());
+    }
+
+    /**
+     * Fails the first few puts, like a cache that is briefly unreachable.
+     */
+    private static class FailingCacheSink implements CacheSink {
+        private final InMemoryCacheSink values = new InMemoryCacheSink();
+        private int failures;
+
+        FailingCacheSink(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public synchronized void put(byte[] rowKey, String combinedValue) throws IOException {
+            if (this.failures > 0) {
+                this.failures--;
+                throw new IOException("cache unreachable");
+            }
+            this.values.put(rowKey, combinedValue);
+        }
+
+        @Override
+        public void invalidate(byte[] rowKey) {
+            this.values.invalidate(rowKey);
+        }
+    }
+
+    private static void assertPushFails(CachePusher cachePusher) throws Exception {
+        try {
+            cachePusher.pushChanges(0, TimeUnit.MILLISECONDS);
+            fail("push did not fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailedPushIsRetried() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(createLambdaTable());
+        ChangeFeed changeFeed = new ChangeFeed(100);
+        simplifiedLambda.addChangeListener(changeFeed);
+        FailingCacheSink cacheSink = new FailingCacheSink(1);
+        CachePusher cachePusher = new CachePusher(simplifiedLambda, changeFeed, cacheSink, 10);
+
+        simplifiedLambda.pushBulkEntry("rowA", "bulk");
+        simplifiedLambda.pushBulkEntry("rowB", "bulk");
+        assertPushFails(cachePusher);
+        // the keys taken from the feed are back
+        assertEquals(changeFeed.size(), 2);
+        assertEquals(cachePusher.pushChanges(0, TimeUnit.MILLISECONDS), 2);
+        assertEquals(cacheSink.values.get("rowA"), "bulk");
+        assertEquals(cacheSink.values.get("rowB"), "bulk");
+    }
+
+    @Test
+    public void testFailedSweepIsRetried() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(createLambdaTable());
+        ChangeFeed changeFeed = new ChangeFeed(2);
+        simplifiedLambda.addChangeListener(changeFeed);
+        FailingCacheSink cacheSink = new FailingCacheSink(1);
+        CachePusher cachePusher = new CachePusher(simplifiedLambda, changeFeed, cacheSink, 2);
+
+        for (String key : Arrays.asList("rowA", "rowB", "rowC", "rowD")) {
+            simplifiedLambda.pushBulkEntry(key, "bulk");
+        }
+        assertPushFails(cachePusher);
+        // still overflowed, so the next call sweeps again
+        assertEquals(cachePusher.pushChanges(0, TimeUnit.MILLISECONDS), 4);
+        assertEquals(cacheSink.values.size(), 4);
+        assertFalse(changeFeed.takeOverflow());
+    }
+
+    @Test
+    public void testBatchCombiner() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(createLambdaTable());
+
+        simplifiedLambda.pushBulkEntry("bulk", "0");
+        simplifiedLambda.pushRealtimeEntry("realtime", "1");
+        simplifiedLambda.pushRealtimeEntry("stale", "1");
+        simplifiedLambda.pushBulkEntry("stale", "2");
+
+        Map<String, String> combined = simplifiedLambda.batchCombiner(Arrays.asList("bulk", "realtime", "stale", "missing"));
+        assertEquals(combined.size(), 2);
+        assertEquals(combined.get("bulk"), "0");
+        assertEquals(combined.get("realtime"), "1");
+        assertFalse(combined.containsKey("stale"));
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.Service;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+public class CombineEndpointTest {
+    private MockHTable lambdaTable;
+    private SimplifiedLambda simplifiedLambda;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        this.lambdaTable = new MockHTable("lambdaTable");
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        this.lambdaTable.setRegionSplits(Bytes.toBytes("photo3"), Bytes.toBytes("photo6"));
+        this.simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+
+        for (int i = 0; i < 9; i++) {
+            this.simplifiedLambda.pushBulkEntry("photo" + i, "bulk" + i);
+        }
+        Thread.sleep(2);
+        // realtime wins on 1, 4 and 8; 9 is realtime only
+        for (int i : new int[] { 1, 4, 8, 9 }) {
+            this.simplifiedLambda.pushRealtimeEntry("photo" + i, "rt" + i);
+        }
+        Thread.sleep(2);
+        // bulk newer than realtime on 4
+        this.simplifiedLambda.pushBulkEntry("photo4", "bulk4b");
+    }
+
+    private void addEndpoint() {
+        this.lambdaTable.addEndpoint(new MockHTable.EndpointFactory() {
+            @Override
+            public Service create(HTableInterface table, byte[] startKey, byte[] endKey) {
+                return new CombineEndpoint(table, startKey, endKey);
+            }
+        });
+    }
+
+    private static List<String> describe(Iterable<CombinedRow> rows) {
+        List<String> res = new ArrayList<>();
+        for (CombinedRow row : rows) {
+            res.add(row.getKey() + "=" + row.getResult().getSource() + ":" + row.getResult().getValue()
+                    + "@" + row.getResult().getBulkTimestamp() + "/" + row.getResult().getRealtimeTimestamp());
+        }
+        return res;
+    }
+
+    @Test
+    public void testCombineMatchesClientSideScan() throws Exception {
+        addEndpoint();
+        CombineScanner scanner = this.simplifiedLambda.scanCombined(HConstants.EMPTY_START_ROW,
+                HConstants.EMPTY_END_ROW, 100);
+        List<String> expected = describe(scanner);
+        scanner.close();
+        assertEquals(expected.size(), 10);
+        assertEquals(describe(this.simplifiedLambda.combineOnServer(HConstants.EMPTY_START_ROW,
+                HConstants.EMPTY_END_ROW)), expected);
+
+        // a range spanning parts of two regions
+        List<CombinedRow> rows = this.simplifiedLambda.combineOnServer(Bytes.toBytes("photo2"), Bytes.toBytes("photo5"));
+        assertEquals(rows.size(), 3);
+        assertEquals(rows.get(0).getKey(), "photo2");
+        assertEquals(rows.get(1).getResult().getValue(), "bulk3");
+        assertEquals(rows.get(2).getResult().getSource(), CombineResult.Source.CONFLICT);
+        assertEquals(rows.get(2).getResult().getValue(), "bulk4b");
+    }
+
+    @Test
+    public void testCleanOnServer() throws Exception {
+        addEndpoint();
+        // photo1, 8 and 9 are promoted, the stale realtime cell of photo4 is deleted
+        assertEquals(this.simplifiedLambda.cleanOnServer(), 4);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(this.lambdaTable.get(new Get(SimplifiedLambda.getEntityKey("photo" + i)))
+                    .containsColumn(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN));
+        }
+        assertEquals(this.simplifiedLambda.combiner("photo1"), "rt1");
+        assertEquals(this.simplifiedLambda.combiner("photo4"), "bulk4b");
+        assertEquals(this.simplifiedLambda.combiner("photo9"), "rt9");
+        assertEquals(this.simplifiedLambda.cleanOnServer(), 0);
+    }
+
+    @Test
+    public void testBatchCoprocessorService() throws Throwable {
+        addEndpoint();
+        Message request = CombineProtocol.rangeRequest(HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW,
+                SimplifiedLambda.BULK_COLUMN, false);
+        // one response per region
+        Map<byte[], DynamicMessage> responses = this.lambdaTable.batchCoprocessorService(CombineProtocol.COMBINE,
+                request, HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW,
+                DynamicMessage.getDefaultInstance(CombineProtocol.COMBINE_RESPONSE));
+        assertEquals(responses.size(), 3);
+        int rows = 0;
+        for (DynamicMessage response : responses.values()) {
+            rows += response.getRepeatedFieldCount(CombineProtocol.ROWS);
+        }
+        assertEquals(rows, 10);
+    }
+
+    @Test
+    public void testMissingEndpointFails() throws Exception {
+        try {
+            this.simplifiedLambda.combineOnServer(HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+            fail("combined without an endpoint");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,259 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class HotKeysTest {
+    @Test
+    public void testSketchKeepsHeavyHitters() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(4);
+        for (int i = 0; i < 1000; i++) {
+            sketch.offer(Bytes.toBytes("hot"));
+            sketch.offer(Bytes.toBytes("cold" + i));
+        }
+        assertEquals(sketch.getTotal(), 2000);
+        List<SpaceSavingSketch.Counter> top = sketch.top(1);
+        assertEquals(Bytes.toString(Bytes.getBytes(top.get(0).key)), "hot");
+        assertTrue(top.get(0).count >= 1000);
+        assertTrue(top.get(0).count - top.get(0).error <= 1000);
+        assertEquals(sketch.top(10).size(), 4);
+    }
+
+    @Test
+    public void testHotKeysAndTopRates() throws Exception {
+        HotKeys hotKeys = new HotKeys(10, 1, TimeUnit.SECONDS, 5);
+        // exact counts
+        hotKeys.setHotSampling(1);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            hotKeys.recordRead(Bytes.toBytes("a"));
+        }
+        for (int i = 0; i < 4; i++) {
+            hotKeys.recordRead(Bytes.toBytes("b"));
+        }
+        assertTrue(hotKeys.recordRead(Bytes.toBytes("b")));
+        assertFalse(hotKeys.recordRead(Bytes.toBytes("c")));
+        assertTrue(hotKeys.isHotRead(Bytes.toBytes("a")));
+        assertFalse(hotKeys.isHotWrite(Bytes.toBytes("a")));
+
+        Thread.sleep(Math.max(0, start + 1100 - System.currentTimeMillis()));
+        List<HotKeys.HotKey> top = hotKeys.getTopReads(2);
+        assertEquals(top.size(), 2);
+        assertEquals(Bytes.toString(top.get(0).getRowKey()), "a");
+        assertEquals(top.get(0).getRatePerSecond(), 20.0, 0.01);
+        assertEquals(top.get(1).getCount(), 5);
+        // still hot for the window after
+        assertTrue(hotKeys.isHotRead(Bytes.toBytes("b")));
+        assertFalse(hotKeys.isHotRead(Bytes.toBytes("c")));
+        assertTrue(hotKeys.getTopWrites(2).isEmpty());
+    }
+
+    @Test
+    public void testColdKeysAreNotHot() {
+        // 60 guaranteed reads per window to be hot
+        HotKeys hotKeys = new HotKeys(10, 1, TimeUnit.MINUTES, 1);
+        int hot = 0;
+        for (int i = 0; i < 20000; i++) {
+            if (hotKeys.recordRead(Bytes.toBytes("cold" + i)))
+                hot++;
+        }
+        assertEquals(hot, 0);
+
+        // still caught among cold traffic
+        for (int i = 0; i < 200; i++) {
+            hotKeys.recordRead(Bytes.toBytes("hot"));
+            hotKeys.recordRead(Bytes.toBytes("colder" + i));
+        }
+        assertTrue(hotKeys.isHotRead(Bytes.toBytes("hot")));
+
+        // at most capacity hot keys
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 60; j++) {
+                hotKeys.recordRead(Bytes.toBytes("busy" + i));
+            }
+        }
+        hot = 0;
+        for (int i = 0; i < 100; i++) {
+            if (hotKeys.isHotRead(Bytes.toBytes("busy" + i)))
+                hot++;
+        }
+        assertTrue(hot <= 9, "hot: " + hot);
+    }
+
+    @Test
+    public void testConcurrentReadsAreCoalesced() throws Exception {
+        final HotKeys hotKeys = new HotKeys(10, 1, TimeUnit.MINUTES, 1);
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final HotKeys.RowReader reader = new HotKeys.RowReader() {
+            @Override
+            public CombineResult read(byte[] rowKey) throws IOException {
+                // hold only the first read
+                if (reads.getAndIncrement() == 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return CombineResult.ABSENT;
+            }
+        };
+        final AtomicInteger arrived = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<CombineResult>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(pool.submit(new Callable<CombineResult>() {
+                @Override
+                public CombineResult call() throws IOException {
+                    arrived.incrementAndGet();
+                    return hotKeys.coalesceRead(Bytes.toBytes("a"), reader);
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((reads.get() < 1 || arrived.get() < 8) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Future<CombineResult> result : results) {
+            assertFalse(result.get().isPresent());
+        }
+        pool.shutdown();
+        // the calls that arrived during the first read share one more
+        assertEquals(reads.get(), 2);
+        assertEquals(hotKeys.getCoalescedReads(), 6);
+    }
+
+    @Test
+    public void testCoalescedReadSeesAcknowledgedWrite() throws Exception {
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger gets = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public Result get(Get get) throws IOException {
+                Result result = super.get(get);
+                // hold the first read after it has seen the old value
+                if (gets.getAndIncrement() == 0) {
+                    held.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return result;
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        final SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushRealtimeEntry("photo1", "v1");
+        simplifiedLambda.setHotKeys(new HotKeys(10, 1, TimeUnit.MINUTES, 0.01));
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Callable<CombineResult> lookup = new Callable<CombineResult>() {
+            @Override
+            public CombineResult call() throws IOException {
+                return simplifiedLambda.lookup("photo1");
+            }
+        };
+        Future<CombineResult> before = pool.submit(lookup);
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+        simplifiedLambda.pushRealtimeEntry("photo1", "v2");
+        Future<CombineResult> after = pool.submit(lookup);
+        Thread.sleep(50);
+        release.countDown();
+        assertEquals(before.get().getValue(), "v1");
+        assertEquals(after.get().getValue(), "v2");
+        pool.shutdown();
+        assertEquals(gets.get(), 2);
+    }
+
+    @Test
+    public void testRapidWritesCollapseToLatest() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.fixed(20));
+        final SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        // hot from the first write
+        HotKeys hotKeys = new HotKeys(10, 1, TimeUnit.MINUTES, 0.01);
+        simplifiedLambda.setHotKeys(hotKeys);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> pushes = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            final int n = i;
+            pushes.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    simplifiedLambda.pushRealtimeEntry("photo1", "rt" + n);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> push : pushes) {
+            push.get();
+        }
+        pool.shutdown();
+        assertTrue(hotKeys.getCollapsedWrites() > 0);
+        assertTrue(hotKeys.isHotWrite(SimplifiedLambda.getEntityKey("photo1")));
+
+        // once every push has returned, a later one always wins
+        simplifiedLambda.pushRealtimeEntry("photo1", "last");
+        assertEquals(simplifiedLambda.lookup("photo1").getValue(), "last");
+    }
+
+    @Test
+    public void testServingCachePinsHotKeys() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        for (int i = 0; i < 10; i++) {
+            simplifiedLambda.pushBulkEntry("photo" + i, "bulk" + i);
+        }
+        simplifiedLambda.setHotKeys(new HotKeys(10, 1, TimeUnit.MINUTES, 0.05));
+
+        ServingCache cache = new ServingCache(simplifiedLambda, 3);
+        for (int i = 0; i < 3; i++) {
+            cache.get("photo0");
+        }
+        assertTrue(simplifiedLambda.getHotKeys().isHotRead(SimplifiedLambda.getEntityKey("photo0")));
+        // photo0 is the least recently used from here on
+        for (int i = 1; i < 10; i++) {
+            cache.get("photo" + i);
+        }
+        assertEquals(cache.size(), 3);
+        long misses = cache.getMissCount();
+        assertEquals(cache.get("photo0"), "bulk0");
+        assertEquals(cache.getMissCount(), misses);
+    }
+}
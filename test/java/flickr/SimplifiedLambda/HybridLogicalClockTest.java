@@ -0,0 +1,133 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class HybridLogicalClockTest {
+    private static HybridLogicalClock skewedClock(int nodeId, final long skewMillis) {
+        return new HybridLogicalClock(nodeId) {
+            @Override
+            protected long physicalMillis() {
+                return System.currentTimeMillis() + skewMillis;
+            }
+        };
+    }
+
+    private static void runAll(List<Thread> threads, AtomicReference<Throwable> failure) throws Exception {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    @Test
+    public void testUniqueAndMonotonic() throws Exception {
+        final HybridLogicalClock[] clocks = {new HybridLogicalClock(1), new HybridLogicalClock(2)};
+        final Set<Long> seen = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final HybridLogicalClock clock = clocks[t % 2];
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long previous = 0;
+                    for (int i = 0; i < 50000; i++) {
+                        long timestamp = clock.next();
+                        if (timestamp <= previous || !seen.add(timestamp)) {
+                            failure.compareAndSet(null, new AssertionError("Duplicate or decreasing " + timestamp));
+                            return;
+                        }
+                        previous = timestamp;
+                    }
+                }
+            }));
+        }
+        runAll(threads, failure);
+        assertEquals(seen.size(), 8 * 50000);
+
+        long timestamp = clocks[0].next();
+        assertEquals(timestamp & HybridLogicalClock.MAX_NODE_ID, 1);
+        assertTrue(Math.abs(HybridLogicalClock.toMillis(timestamp) - System.currentTimeMillis()) < 1000);
+    }
+
+    @Test
+    public void testConcurrentWritersNeverConflict() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        // two writer processes, the bulk one's clock 2s ahead
+        final SimplifiedLambda bulkWriter = new SimplifiedLambda(lambdaTable);
+        bulkWriter.setClock(skewedClock(1, 2000));
+        final SimplifiedLambda realtimeWriter = new SimplifiedLambda(lambdaTable);
+        realtimeWriter.setClock(new HybridLogicalClock(2, 5000, TimeUnit.MILLISECONDS));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500 && failure.get() == null; i++) {
+                            String key = "photo" + thread + "/" + (i % 10);
+                            bulkWriter.pushBulkEntry(key, "bulk" + i);
+                            // reading the row orders the next write after the bulk one
+                            realtimeWriter.lookup(key);
+                            realtimeWriter.pushRealtimeEntry(key, "rt" + i);
+                            CombineResult result = bulkWriter.lookup(key);
+                            if (result.getSource() != CombineResult.Source.REALTIME || !result.getValue().equals("rt" + i))
+                                throw new AssertionError(key + " " + result);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        runAll(threads, failure);
+        bulkWriter.cleaner();
+        assertEquals(bulkWriter.combiner("photo7/9"), "rt499");
+    }
+
+    @Test
+    public void testIgnoresClocksTooFarAhead() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda broken = new SimplifiedLambda(lambdaTable);
+        broken.setClock(skewedClock(1, 60000));
+        SimplifiedLambda healthy = new SimplifiedLambda(lambdaTable);
+        HybridLogicalClock clock = new HybridLogicalClock(2);
+        healthy.setClock(clock);
+
+        broken.pushBulkEntry("photo", "bulk");
+        assertEquals(healthy.lookup("photo").getValue(), "bulk");
+        assertEquals(clock.getRejectedObservations(), 1);
+        assertTrue(HybridLogicalClock.toMillis(clock.next()) < System.currentTimeMillis() + 1000);
+        assertNull(healthy.lookup("other").getValue());
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.testng.Assert.assertTrue;
+
+public class IoSchedulerTest {
+    private static Logger LOG = Logger.getLogger(IoSchedulerTest.class.getName());
+
+    private MockHTable createLambdaTable() throws IOException {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda loader = new SimplifiedLambda(lambdaTable);
+        for (int i = 0; i < 200; i++) {
+            loader.pushRealtimeEntry(String.format("row%04d", i), "rt" + i);
+        }
+        // 1ms per call, plus 4ms for every other call in flight
+        lambdaTable.setLatencyModel(new LatencyModel(1000, 4000));
+        return lambdaTable;
+    }
+
+    /**
+     * Runs the cleaner in the background and returns the mean latency in
+     * microseconds of serving lookups issued meanwhile.
+     */
+    private long servingLatencyDuringCleaner(final SimplifiedLambda simplifiedLambda) throws Exception {
+        Thread cleaner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    simplifiedLambda.cleaner();
+                } catch (IOException e) {
+                    // interrupted at the end of the test
+                } catch (RuntimeException e) {
+                    // ditto, from the throttled scanner's iterator
+                }
+            }
+        });
+        cleaner.start();
+        // let the scheduler settle on a background rate
+        for (int i = 0; i < 50; i++) {
+            simplifiedLambda.lookup(String.format("row%04d", i * 2));
+        }
+
+        long start = System.nanoTime();
+        int lookups = 50;
+        for (int i = 0; i < lookups; i++) {
+            simplifiedLambda.lookup(String.format("row%04d", i * 3));
+        }
+        long meanMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / lookups;
+
+        cleaner.interrupt();
+        cleaner.join();
+        return meanMicros;
+    }
+
+    @Test
+    public void testServingLatencyStaysFlat() throws Exception {
+        long unscheduled = servingLatencyDuringCleaner(new SimplifiedLambda(createLambdaTable()));
+
+        HTableInterface lambdaTable = createLambdaTable();
+        IoScheduler scheduler = new IoScheduler(2000, 5, 1000);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(
+                new ScheduledHTable(lambdaTable, scheduler, IoScheduler.Priority.SERVING));
+        simplifiedLambda.setBackgroundTable(
+                new ScheduledHTable(lambdaTable, scheduler, IoScheduler.Priority.BACKGROUND));
+        long scheduled = servingLatencyDuringCleaner(simplifiedLambda);
+
+        LOG.info("serving latency while cleaning: " + unscheduled + "us unscheduled, " + scheduled
+                + "us scheduled, background rate " + scheduler.getBackgroundRate() + "/s");
+        assertTrue(scheduled < unscheduled, scheduled + "us >= " + unscheduled + "us");
+        assertTrue(scheduler.getBackgroundRate() < 1000);
+    }
+}
@@ -0,0 +1,116 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class LambdaViewTest {
+    private MockHTable lambdaTable;
+    private SimplifiedLambda simplifiedLambda;
+    private LambdaView faces;
+    private LambdaView aesthetics;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        this.lambdaTable = new MockHTable("lambdaTable");
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.addColumnFamily("faces");
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        this.simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+        this.faces = LambdaView.ofFamily("faces", "faces");
+        this.aesthetics = LambdaView.ofQualifiers("aesthetics", new String(SimplifiedLambda.FAMILY));
+        this.simplifiedLambda.addView(this.faces);
+        this.simplifiedLambda.addView(this.aesthetics);
+    }
+
+    @Test
+    public void testViewsAreCombinedWithOneGet() throws Exception {
+        this.simplifiedLambda.pushBulkEntry("photo1", "beach");
+        this.simplifiedLambda.pushBulkEntry(this.faces, "photo1", "2 faces");
+        Thread.sleep(2);
+        this.simplifiedLambda.pushRealtimeEntry(this.faces, "photo1", "3 faces");
+        this.simplifiedLambda.pushRealtimeEntry(this.aesthetics, "photo1", "0.8");
+
+        this.lambdaTable.setLatencyModel(LatencyModel.fixed(50));
+        long startMillis = System.currentTimeMillis();
+        Map<String, CombineResult> views = this.simplifiedLambda.lookupViews("photo1");
+        assertEquals(views.keySet().toArray(), new String[] { "default", "faces", "aesthetics" });
+        assertEquals(views.get("default").getValue(), "beach");
+        assertEquals(views.get("faces").getValue(), "3 faces");
+        assertEquals(views.get("faces").getSource(), CombineResult.Source.REALTIME);
+        assertEquals(views.get("aesthetics").getValue(), "0.8");
+        // one round trip, not one per view
+        assertTrue(System.currentTimeMillis() - startMillis < 100);
+
+        List<Map<String, CombineResult>> many = this.simplifiedLambda.lookupViews(Arrays.asList("photo1", "photo2"));
+        assertEquals(many.get(0).get("faces").getValue(), "3 faces");
+        assertFalse(many.get(1).get("aesthetics").isPresent());
+    }
+
+    @Test
+    public void testCleanerSettlesEveryViewIndependently() throws Exception {
+        this.simplifiedLambda.pushRealtimeEntry("photo1", "rt");
+        this.simplifiedLambda.pushRealtimeEntry(this.faces, "photo1", "rt faces");
+        Thread.sleep(2);
+        // a newer bulk load of aesthetics only
+        this.simplifiedLambda.pushRealtimeEntry(this.aesthetics, "photo1", "rt aesthetics");
+        Thread.sleep(2);
+        this.simplifiedLambda.pushBulkEntry(this.aesthetics, "photo1", "bulk aesthetics");
+        // a row with data in one added view only
+        this.simplifiedLambda.pushRealtimeEntry(this.faces, "photo2", "faces only");
+
+        this.simplifiedLambda.cleaner();
+
+        Result row = this.lambdaTable.get(new Get(SimplifiedLambda.getEntityKey("photo1")));
+        assertNull(row.getColumnLatestCell(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN));
+        assertNull(row.getColumnLatestCell(Bytes.toBytes("faces"), SimplifiedLambda.REALTIME_COLUMN));
+        assertNull(row.getColumnLatestCell(SimplifiedLambda.FAMILY, this.aesthetics.getRealtimeColumn()));
+        assertNotNull(row.getColumnLatestCell(SimplifiedLambda.FAMILY, this.aesthetics.getBulkColumn()));
+
+        Map<String, CombineResult> views = this.simplifiedLambda.lookupViews("photo1");
+        assertEquals(views.get("default").getSource(), CombineResult.Source.BULK);
+        assertEquals(views.get("default").getValue(), "rt");
+        assertEquals(views.get("faces").getValue(), "rt faces");
+        assertEquals(views.get("aesthetics").getValue(), "bulk aesthetics");
+
+        views = this.simplifiedLambda.lookupViews("photo2");
+        assertEquals(views.get("faces").getSource(), CombineResult.Source.BULK);
+        assertFalse(views.get("default").isPresent());
+    }
+
+    @Test
+    public void testClashingViewsAreRejected() {
+        for (LambdaView view : Arrays.asList(LambdaView.ofFamily("faces2", "faces"),
+                LambdaView.ofQualifiers("faces", "other"), LambdaView.ofFamily("plain", "f"))) {
+            try {
+                this.simplifiedLambda.addView(view);
+                fail("expected " + view + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(this.simplifiedLambda.getViews().size(), 3);
+        assertEquals(this.simplifiedLambda.getView("faces"), this.faces);
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ParallelCleanerTest {
+    @Test
+    public void testMidpoint() {
+        byte[] mid = ParallelCleaner.midpoint(Bytes.toBytes(0L), Bytes.toBytes(100L));
+        assertEquals(Bytes.toLong(mid), 50L);
+        mid = ParallelCleaner.midpoint(new byte[] { 0x10 }, new byte[0]);
+        assertTrue(Bytes.compareTo(mid, new byte[] { 0x10 }) > 0);
+        assertNull(ParallelCleaner.midpoint(new byte[] { (byte) 0xff }, new byte[0]));
+        assertNull(ParallelCleaner.midpoint(Bytes.toBytes(7L), Bytes.toBytes(7L)));
+    }
+
+    @Test
+    public void testCleansSkewedRanges() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        // one dense run of ids and a few scattered ones
+        for (long i = 0; i < 2000; i++) {
+            simplifiedLambda.pushRealtimeEntry(1000000 + i, "rt" + i);
+        }
+        for (long i = 1; i <= 20; i++) {
+            simplifiedLambda.pushBulkEntry(i << 40, "bulk" + i);
+            simplifiedLambda.pushRealtimeEntry(i << 40, "rt" + i);
+        }
+
+        try (ParallelCleaner cleaner = new ParallelCleaner(simplifiedLambda, 4)) {
+            cleaner.setMaxRowsPerTask(50);
+            assertEquals(cleaner.run(), 2020);
+            assertTrue(cleaner.getTaskCount() >= 2020 / 50);
+        }
+        for (long i = 0; i < 2000; i += 97) {
+            Result result = lambdaTable.get(new Get(SimplifiedLambda.getEntityKey(1000000 + i)));
+            assertNull(result.getColumnLatestCell(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN));
+            assertEquals(simplifiedLambda.lookup(1000000 + i).getValue(), "rt" + i);
+        }
+        assertEquals(simplifiedLambda.lookup(7L << 40).getValue(), "rt7");
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        final AtomicInteger mutations = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public void mutateRow(RowMutations rm) throws IOException {
+                if (Bytes.toLong(rm.getRow()) == 150)
+                    throw new IOException("region unavailable");
+                super.mutateRow(rm);
+                mutations.incrementAndGet();
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        for (long i = 0; i < 2000; i++) {
+            simplifiedLambda.pushRealtimeEntry(i, "rt" + i);
+        }
+        lambdaTable.setLatencyModel(LatencyModel.fixed(1));
+        try (ParallelCleaner cleaner = new ParallelCleaner(simplifiedLambda, 4)) {
+            cleaner.setMaxRowsPerTask(100);
+            cleaner.run();
+            fail("expected the failed row to be reported");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "region unavailable");
+        }
+        // nothing is left running once the failure is reported
+        int cleaned = mutations.get();
+        Thread.sleep(50);
+        assertEquals(mutations.get(), cleaned);
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertTrue;
+
+public class PresenceFilterTest {
+    @Test
+    public void testNoFalseNegatives() throws Exception {
+        PresenceFilter presenceFilter = new PresenceFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            presenceFilter.add(Bytes.toBytes("photo" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(presenceFilter.mightContain(Bytes.toBytes("photo" + i)));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        PresenceFilter presenceFilter = new PresenceFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            presenceFilter.add(Bytes.toBytes("photo" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (presenceFilter.mightContain(Bytes.toBytes("absent" + i)))
+                falsePositives++;
+        }
+        // target is 1%, leave generous slack
+        assertTrue(falsePositives < 2000, "false positives: " + falsePositives);
+    }
+}
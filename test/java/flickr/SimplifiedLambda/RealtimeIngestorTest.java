@@ -0,0 +1,179 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RealtimeIngestorTest {
+    private static SimplifiedLambda newSimplifiedLambda(LatencyModel latencyModel) {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(latencyModel);
+        return new SimplifiedLambda(lambdaTable);
+    }
+
+    @Test
+    public void testBatchesUnderLoad() throws Exception {
+        SimplifiedLambda simplifiedLambda = newSimplifiedLambda(LatencyModel.fixed(5));
+        simplifiedLambda.pushBulkEntry("photo0", "bulk");
+        RealtimeIngestor ingestor = new RealtimeIngestor(simplifiedLambda, 1, TimeUnit.SECONDS);
+        Thread writer = new Thread(ingestor);
+        writer.start();
+
+        // 1000 writes one Put at a time would take 5s
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            ingestor.submit("photo" + (i % 100), "rt" + i);
+        }
+        assertTrue(ingestor.flush(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        ingestor.stop();
+        writer.join();
+
+        assertEquals(simplifiedLambda.combiner("photo0"), "rt900");
+        assertEquals(simplifiedLambda.combiner("photo99"), "rt999");
+        assertTrue(ingestor.getBatchCount() < 200);
+        assertTrue(ingestor.getBatchLimit() > 1);
+        assertEquals(ingestor.getVisibleLatency().getCount(), 1000);
+        assertEquals(ingestor.getDroppedEntries(), 0);
+    }
+
+    @Test
+    public void testShrinksBatchesAboveSlo() throws Exception {
+        // 1ms per row makes any batch above 10 rows blow the 20ms SLO budget
+        SimplifiedLambda simplifiedLambda = newSimplifiedLambda(new LatencyModel(1000, 0, 1000));
+        RealtimeIngestor ingestor = new RealtimeIngestor(simplifiedLambda, 20, TimeUnit.MILLISECONDS, 10000, 1000);
+        final int[] largestBatch = new int[1];
+        ingestor.addBatchListener(new RealtimeIngestor.BatchListener() {
+            @Override
+            public void onBatch(int entries, int rows, long roundTripMicros, long oldestWaitMicros, int queueDepth, int batchLimit) {
+                largestBatch[0] = Math.max(largestBatch[0], rows);
+            }
+        });
+        for (int i = 0; i < 2000; i++) {
+            ingestor.submit(i, "rt" + i);
+        }
+        Thread writer = new Thread(ingestor);
+        writer.start();
+        assertTrue(ingestor.flush(30, TimeUnit.SECONDS));
+        ingestor.stop();
+        writer.join();
+
+        assertEquals(simplifiedLambda.combiner(1999L), "rt1999");
+        assertTrue(largestBatch[0] < 40, "largest batch " + largestBatch[0]);
+        assertTrue(ingestor.getBatchLimit() < 40);
+    }
+
+    @Test
+    public void testRetriesUntilStoppedAndReportsLoss() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(8);
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public void put(List<Put> puts) throws IOException {
+                if (failures.getAndDecrement() > 0)
+                    throw new IOException("region unavailable");
+                super.put(puts);
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        RealtimeIngestor ingestor = new RealtimeIngestor(simplifiedLambda, 1, TimeUnit.SECONDS);
+        Thread writer = new Thread(ingestor);
+        writer.start();
+
+        // more failures than the retries once stopped, still written while running
+        ingestor.submit("photo1", "rt1");
+        assertTrue(ingestor.flush(30, TimeUnit.SECONDS));
+        assertEquals(simplifiedLambda.combiner("photo1"), "rt1");
+        assertEquals(ingestor.getFailedBatches(), 8);
+
+        failures.set(Integer.MAX_VALUE);
+        ingestor.submit("photo2", "rt2");
+        assertFalse(ingestor.flush(200, TimeUnit.MILLISECONDS));
+        ingestor.stop();
+        writer.join();
+        assertFalse(ingestor.flush(0, TimeUnit.SECONDS));
+        assertEquals(ingestor.getDroppedEntries(), 1);
+        // reported once
+        assertTrue(ingestor.flush(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInterruptedRetryCountsAsDropped() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public void put(List<Put> puts) throws IOException {
+                attempts.incrementAndGet();
+                throw new IOException("region unavailable");
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        RealtimeIngestor ingestor = new RealtimeIngestor(new SimplifiedLambda(lambdaTable), 1, TimeUnit.SECONDS);
+        Thread writer = new Thread(ingestor);
+        writer.start();
+
+        ingestor.submit("photo1", "rt1");
+        while (attempts.get() < 3) {
+            Thread.sleep(5);
+        }
+        // interrupted while backing off between retries
+        writer.interrupt();
+        writer.join();
+        assertEquals(ingestor.getDroppedEntries(), 1);
+        assertFalse(ingestor.flush(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingListenersDoNotStopTheWriter() throws Exception {
+        SimplifiedLambda simplifiedLambda = newSimplifiedLambda(LatencyModel.NONE);
+        simplifiedLambda.addChangeListener(new ChangeListener() {
+            @Override
+            public void onChange(byte[] rowKey, Kind kind) {
+                if (Bytes.toString(rowKey).endsWith("bad"))
+                    throw new IllegalStateException("listener bug");
+            }
+        });
+        RealtimeIngestor ingestor = new RealtimeIngestor(simplifiedLambda, 1, TimeUnit.SECONDS);
+        ingestor.addBatchListener(new RealtimeIngestor.BatchListener() {
+            @Override
+            public void onBatch(int entries, int rows, long roundTripMicros, long oldestWaitMicros, int queueDepth,
+                                int batchLimit) {
+                throw new IllegalStateException("listener bug");
+            }
+        });
+        Thread writer = new Thread(ingestor);
+        writer.start();
+
+        ingestor.submit("photo1", "rt1");
+        assertTrue(ingestor.flush(10, TimeUnit.SECONDS));
+        ingestor.submit("photobad", "rt");
+        assertFalse(ingestor.flush(10, TimeUnit.SECONDS));
+        ingestor.submit("photo2", "rt2");
+        // the writer keeps going, and the loss is only reported once
+        assertTrue(ingestor.flush(10, TimeUnit.SECONDS));
+        assertEquals(simplifiedLambda.combiner("photo2"), "rt2");
+        assertTrue(writer.isAlive());
+        ingestor.stop();
+        writer.join();
+    }
+}
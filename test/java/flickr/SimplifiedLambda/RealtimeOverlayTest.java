@@ -0,0 +1,87 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class RealtimeOverlayTest {
+    @Test
+    public void testReadsFreshWritesWithoutTable() throws Exception {
+        final AtomicInteger gets = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public Result get(Get get) throws IOException {
+                gets.incrementAndGet();
+                return super.get(get);
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.setRealtimeOverlay(new RealtimeOverlay(1, TimeUnit.MINUTES, 100));
+
+        simplifiedLambda.pushBulkEntry("photo", "bulk");
+        Thread.sleep(2);
+        simplifiedLambda.pushRealtimeEntry("photo", "rt");
+        CombineResult result = simplifiedLambda.lookup("photo");
+        assertEquals(result.getSource(), CombineResult.Source.REALTIME);
+        assertEquals(result.getValue(), "rt");
+        assertEquals(result.getTimestamp(), simplifiedLambda.getTimestampForKey("photo", SimplifiedLambda.REALTIME_COLUMN));
+        gets.set(0);
+        assertEquals(simplifiedLambda.combiner("photo"), "rt");
+        assertEquals(gets.get(), 0);
+
+        // a newer bulk value wins over the overlay
+        Thread.sleep(2);
+        simplifiedLambda.pushBulkEntry("photo", "bulk2");
+        assertEquals(simplifiedLambda.lookup("photo").getSource(), CombineResult.Source.CONFLICT);
+        simplifiedLambda.cleaner();
+        assertEquals(simplifiedLambda.combiner("photo"), "bulk2");
+        assertTrue(gets.get() > 0);
+    }
+
+    @Test
+    public void testTombstoneRejectsOlderWrite() {
+        RealtimeOverlay overlay = new RealtimeOverlay(1, TimeUnit.MINUTES, 100);
+        byte[] row = Bytes.toBytes("photo");
+        long before = System.currentTimeMillis() - 10;
+        overlay.invalidate(row);
+        overlay.put(row, Bytes.toBytes("stale"), before);
+        assertNull(overlay.get(row));
+
+        overlay.put(row, Bytes.toBytes("fresh"), System.currentTimeMillis() + 10);
+        assertEquals(Bytes.toString(overlay.get(row).value), "fresh");
+        overlay.put(row, Bytes.toBytes("older"), before);
+        assertEquals(Bytes.toString(overlay.get(row).value), "fresh");
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        RealtimeOverlay overlay = new RealtimeOverlay(50, TimeUnit.MILLISECONDS, 10);
+        for (int i = 0; i < 20; i++) {
+            overlay.put(Bytes.toBytes("photo" + i), Bytes.toBytes("rt"), i);
+        }
+        assertEquals(overlay.size(), 10);
+        // oldest first
+        assertNull(overlay.get(Bytes.toBytes("photo0")));
+        assertEquals(Bytes.toString(overlay.get(Bytes.toBytes("photo19")).value), "rt");
+
+        Thread.sleep(60);
+        assertNull(overlay.get(Bytes.toBytes("photo19")));
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class RealtimeTouchIndexTest {
+    private static final byte[] INDEX_FAMILY = Bytes.toBytes("touched");
+
+    private final AtomicInteger lambdaScans = new AtomicInteger();
+    private final AtomicInteger lambdaGets = new AtomicInteger();
+    private MockHTable lambdaTable;
+    private MockHTable indexTable;
+
+    @BeforeMethod
+    public void setUp() {
+        this.lambdaScans.set(0);
+        this.lambdaGets.set(0);
+        this.lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public ResultScanner getScanner(Scan scan) throws IOException {
+                lambdaScans.incrementAndGet();
+                return super.getScanner(scan);
+            }
+
+            @Override
+            public Result[] get(List<Get> gets) throws IOException {
+                lambdaGets.addAndGet(gets.size());
+                return super.get(gets);
+            }
+        };
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        this.indexTable = new MockHTable("indexTable");
+        this.indexTable.addColumnFamily(new String(INDEX_FAMILY));
+        this.indexTable.setLatencyModel(LatencyModel.NONE);
+    }
+
+    private int indexSize() throws IOException {
+        int rows = 0;
+        for (Result ignored : this.indexTable.getScanner(new Scan())) {
+            rows++;
+        }
+        return rows;
+    }
+
+    @Test
+    public void testCleansOnlyTouchedRows() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+        for (int i = 0; i < 1000; i++) {
+            simplifiedLambda.pushBulkEntry("photo" + i, "bulk" + i);
+        }
+        simplifiedLambda.setTouchIndex(new RealtimeTouchIndex(this.indexTable, INDEX_FAMILY, 20, TimeUnit.MILLISECONDS));
+        Thread.sleep(2);
+        simplifiedLambda.pushRealtimeEntry("photo3", "rt3");
+        simplifiedLambda.pushRealtimeEntry("photo3", "rt3b");
+        simplifiedLambda.pushRealtimeEntry("photo500", "rt500");
+        simplifiedLambda.pushRealtimeRows(Arrays.asList(SimplifiedLambda.getEntityKey("photo7"),
+                SimplifiedLambda.getEntityKey("new")), Arrays.asList("rt7", "rtnew"));
+        // 5 if the writes to photo3 straddle a bucket boundary
+        assertTrue(indexSize() >= 4);
+
+        // the bucket has to close first
+        Thread.sleep(50);
+        assertEquals(simplifiedLambda.cleanTouched(100), 4);
+        assertEquals(this.lambdaScans.get(), 0);
+        assertEquals(this.lambdaGets.get(), 4);
+        assertEquals(indexSize(), 0);
+
+        for (String key : new String[] { "photo3", "photo500", "photo7", "new" }) {
+            byte[] row = this.lambdaTable.get(new Get(SimplifiedLambda.getEntityKey(key)))
+                    .getValue(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN);
+            assertNull(row, key);
+        }
+        assertEquals(simplifiedLambda.combiner("photo3"), "rt3b");
+        assertEquals(simplifiedLambda.combiner("new"), "rtnew");
+        assertEquals(simplifiedLambda.combiner("photo4"), "bulk4");
+
+        assertEquals(simplifiedLambda.cleanTouched(100), 0);
+    }
+
+    @Test
+    public void testOpenBucketIsDeferred() throws Exception {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+        simplifiedLambda.setTouchIndex(new RealtimeTouchIndex(this.indexTable, INDEX_FAMILY, 1, TimeUnit.HOURS));
+        simplifiedLambda.pushBulkEntry("photo1", "bulk1");
+        simplifiedLambda.pushRealtimeEntry("photo1", "rt1");
+
+        assertEquals(simplifiedLambda.cleanTouched(100), 0);
+        assertEquals(indexSize(), 1);
+        assertTrue(this.lambdaTable.get(new Get(SimplifiedLambda.getEntityKey("photo1")))
+                .containsColumn(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN));
+
+        // a full clean still works, and the stale index entry then costs only a read
+        simplifiedLambda.cleaner();
+        assertFalse(this.lambdaTable.get(new Get(SimplifiedLambda.getEntityKey("photo1")))
+                .containsColumn(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN));
+        assertEquals(simplifiedLambda.combiner("photo1"), "rt1");
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import com.google.protobuf.Service;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+/**
+ * CombineEndpoint over RegionHTable on a real HRegion stored on the local
+ * filesystem, as it runs inside a region server.
+ */
+public class RegionHTableTest {
+    private File rootDir;
+    private HRegion region;
+    private RegionHTable regionTable;
+    private SimplifiedLambda local;
+    private SimplifiedLambda remote;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        this.rootDir = Files.createTempDirectory("region").toFile();
+        Configuration conf = HBaseConfiguration.create();
+        HTableDescriptor htd = new HTableDescriptor(TableName.valueOf("lambdaTable"));
+        htd.addFamily(new HColumnDescriptor(SimplifiedLambda.FAMILY));
+        this.region = HRegion.createHRegion(new HRegionInfo(htd.getTableName()),
+                new Path(this.rootDir.toURI()), conf, htd);
+        this.regionTable = new RegionHTable(this.region, conf);
+        // reads and writes straight through the region
+        this.local = new SimplifiedLambda(this.regionTable);
+
+        // a client whose endpoint calls land on the region
+        MockHTable clientTable = new MockHTable("lambdaTable");
+        clientTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        clientTable.setLatencyModel(LatencyModel.NONE);
+        clientTable.addEndpoint(new MockHTable.EndpointFactory() {
+            @Override
+            public Service create(HTableInterface table, byte[] startKey, byte[] endKey) {
+                return new CombineEndpoint(RegionHTableTest.this.regionTable, startKey, endKey);
+            }
+        });
+        this.remote = new SimplifiedLambda(clientTable);
+
+        for (int i = 0; i < 9; i++) {
+            this.local.pushBulkEntry("photo" + i, "bulk" + i);
+        }
+        Thread.sleep(2);
+        // realtime wins on 1, 4 and 8; 9 is realtime only
+        for (int i : new int[] { 1, 4, 8, 9 }) {
+            this.local.pushRealtimeEntry("photo" + i, "rt" + i);
+        }
+        Thread.sleep(2);
+        // bulk newer than realtime on 4
+        this.local.pushBulkEntry("photo4", "bulk4b");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        HRegion.closeHRegion(this.region);
+        FileUtil.fullyDelete(this.rootDir);
+    }
+
+    private static List<String> describe(Iterable<CombinedRow> rows) {
+        List<String> res = new ArrayList<>();
+        for (CombinedRow row : rows) {
+            res.add(row.getKey() + "=" + row.getResult().getSource() + ":" + row.getResult().getValue());
+        }
+        return res;
+    }
+
+    @Test
+    public void testCombine() throws Exception {
+        CombineScanner scanner = this.local.scanCombined(HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW, 100);
+        List<String> expected = describe(scanner);
+        scanner.close();
+        assertEquals(expected.size(), 10);
+        assertEquals(expected.get(1), "photo1=REALTIME:rt1");
+        assertEquals(expected.get(4), "photo4=CONFLICT:bulk4b");
+        assertEquals(expected.get(9), "photo9=REALTIME:rt9");
+        assertEquals(describe(this.remote.combineOnServer(HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW)),
+                expected);
+    }
+
+    @Test
+    public void testClean() throws Exception {
+        // photo1, 8 and 9 are promoted, the stale realtime cell of photo4 is deleted
+        assertEquals(this.remote.cleanOnServer(), 4);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(this.regionTable.get(new Get(SimplifiedLambda.getEntityKey("photo" + i)))
+                    .containsColumn(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN));
+        }
+        assertEquals(this.local.combiner("photo1"), "rt1");
+        assertEquals(this.local.combiner("photo4"), "bulk4b");
+        assertEquals(this.local.combiner("photo9"), "rt9");
+        assertEquals(this.remote.cleanOnServer(), 0);
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ResumableCleanerTest {
+    /**
+     * Fails the promotion of one row once, either like a crashed process or
+     * like a transient RPC error.
+     */
+    private static class FailingTable extends MockHTable {
+        private final String failRow;
+        private final boolean crash;
+        private boolean failed = false;
+
+        FailingTable(String failRow, boolean crash) {
+            super("lambdaTable");
+            this.failRow = failRow;
+            this.crash = crash;
+            addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        }
+
+        @Override
+        public void mutateRow(RowMutations rm) throws IOException {
+            if (!this.failed && Bytes.toString(rm.getRow()).equals(this.failRow)) {
+                this.failed = true;
+                if (this.crash)
+                    throw new IllegalStateException("crash");
+                throw new IOException("scanner lease expired");
+            }
+            super.mutateRow(rm);
+        }
+    }
+
+    private SimplifiedLambda createLambda(MockHTable lambdaTable) throws IOException {
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        for (int i = 0; i < 10; i++) {
+            simplifiedLambda.pushRealtimeEntry("row" + i, "rt" + i);
+        }
+        return simplifiedLambda;
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        File file = File.createTempFile("cleaner", ".checkpoint");
+        file.delete();
+        file.deleteOnExit();
+        CleanerCheckpoint checkpoint = new FileCleanerCheckpoint(file);
+        SimplifiedLambda simplifiedLambda = createLambda(new FailingTable("row5", true));
+
+        ResumableCleaner cleaner = new ResumableCleaner(simplifiedLambda, checkpoint);
+        cleaner.setCheckpointInterval(1);
+        try {
+            cleaner.run();
+            fail("expected the cleaner to crash");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Bytes.toString(checkpoint.load().get("")), "row4");
+
+        ResumableCleaner restarted = new ResumableCleaner(simplifiedLambda, checkpoint);
+        assertEquals(restarted.run(), 5);
+        assertTrue(checkpoint.load().isEmpty());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(simplifiedLambda.getItemForKey("row" + i, SimplifiedLambda.BULK_COLUMN), "rt" + i);
+            assertNull(simplifiedLambda.findItemForKey("row" + i, SimplifiedLambda.REALTIME_COLUMN));
+        }
+    }
+
+    @Test
+    public void testRetriesRangeAfterFailure() throws Exception {
+        MockHTable metaTable = new MockHTable("metaTable");
+        metaTable.addColumnFamily("m");
+        CleanerCheckpoint checkpoint = new TableCleanerCheckpoint(metaTable, Bytes.toBytes("m"), Bytes.toBytes("cleaner"));
+        SimplifiedLambda simplifiedLambda = createLambda(new FailingTable("row7", false));
+
+        byte[][] splitKeys = { Bytes.toBytes("row3"), Bytes.toBytes("row6") };
+        ResumableCleaner cleaner = new ResumableCleaner(simplifiedLambda, checkpoint, splitKeys);
+        cleaner.setRowsPerSecond(1000);
+        assertEquals(cleaner.run(), 10);
+        assertTrue(checkpoint.load().isEmpty());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(simplifiedLambda.combiner("row" + i), "rt" + i);
+            assertNull(simplifiedLambda.findItemForKey("row" + i, SimplifiedLambda.REALTIME_COLUMN));
+        }
+
+        Map<String, byte[]> saved = new TreeMap<>();
+        saved.put("", Bytes.toBytes("row2"));
+        saved.put("row3", Bytes.toBytes("row4"));
+        checkpoint.save(saved);
+        Map<String, byte[]> loaded = checkpoint.load();
+        assertEquals(loaded.size(), 2);
+        assertEquals(Bytes.toString(loaded.get("row3")), "row4");
+    }
+
+    @Test
+    public void testCleanerKeepsConcurrentRealtimeWrite() throws Exception {
+        final SimplifiedLambda[] simplifiedLambda = new SimplifiedLambda[1];
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            private boolean raced = false;
+
+            @Override
+            public void mutateRow(RowMutations rm) throws IOException {
+                // a realtime write lands between the cleaner's read and its promotion
+                if (!this.raced) {
+                    this.raced = true;
+                    simplifiedLambda[0].pushRealtimeEntry("common", "2");
+                }
+                super.mutateRow(rm);
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        simplifiedLambda[0] = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda[0].pushBulkEntry("common", "0");
+        simplifiedLambda[0].pushRealtimeEntry("common", "1");
+
+        File file = File.createTempFile("cleaner", ".checkpoint");
+        file.deleteOnExit();
+        new ResumableCleaner(simplifiedLambda[0], new FileCleanerCheckpoint(file)).run();
+        assertEquals(simplifiedLambda[0].getItemForKey("common", SimplifiedLambda.BULK_COLUMN), "1");
+        assertEquals(simplifiedLambda[0].combiner("common"), "2");
+    }
+}
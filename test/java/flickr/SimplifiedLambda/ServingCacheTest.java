@@ -0,0 +1,206 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ServingCacheTest {
+    private MockHTable lambdaTable;
+    private SimplifiedLambda simplifiedLambda;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        this.lambdaTable = new MockHTable("lambdaTable");
+        this.lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        this.lambdaTable.setLatencyModel(LatencyModel.NONE);
+        this.simplifiedLambda = new SimplifiedLambda(this.lambdaTable);
+        for (int i = 0; i < 10; i++) {
+            this.simplifiedLambda.pushBulkEntry("photo" + i, "bulk" + i);
+        }
+    }
+
+    @Test
+    public void testReadThroughWithLruEviction() throws Exception {
+        ServingCache cache = new ServingCache(this.simplifiedLambda, 3);
+        assertEquals(cache.get("photo1"), "bulk1");
+        assertEquals(cache.get("photo2"), "bulk2");
+        assertEquals(cache.get("photo1"), "bulk1");
+        assertNull(cache.get("missing"));
+        assertEquals(cache.getMissCount(), 3);
+        assertEquals(cache.getHitCount(), 1);
+
+        // photo2 is the least recently used
+        assertEquals(cache.get("photo3"), "bulk3");
+        assertEquals(cache.get("photo4"), "bulk4");
+        assertEquals(cache.size(), 3);
+        cache.get("photo2");
+        assertEquals(cache.getMissCount(), 6);
+
+        cache.put(SimplifiedLambda.getEntityKey("photo2"), "pushed");
+        assertEquals(cache.get("photo2"), "pushed");
+        cache.invalidate(SimplifiedLambda.getEntityKey("photo2"));
+        assertEquals(cache.get("photo2"), "bulk2");
+    }
+
+    @Test
+    public void testInvalidateDuringReadIsNotLost() throws Exception {
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean hold = new AtomicBoolean(true);
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public Result get(Get get) throws IOException {
+                Result result = super.get(get);
+                if (hold.getAndSet(false)) {
+                    held.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return result;
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushBulkEntry("photo1", "bulk1");
+        Thread.sleep(2);
+        final ServingCache cache = new ServingCache(simplifiedLambda, 10);
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<String> read = pool.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return cache.get("photo1");
+            }
+        });
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+        // the read has seen bulk1 when the new value is pushed and invalidated
+        simplifiedLambda.pushRealtimeEntry("photo1", "rt1");
+        cache.invalidate(SimplifiedLambda.getEntityKey("photo1"));
+        release.countDown();
+        assertEquals(read.get(), "bulk1");
+        pool.shutdown();
+
+        assertEquals(cache.size(), 0);
+        assertEquals(cache.get("photo1"), "rt1");
+    }
+
+    @Test
+    public void testEntriesExpireAfterTtl() throws Exception {
+        ServingCache cache = new ServingCache(this.simplifiedLambda, 10);
+        cache.setEntryTtl(50, TimeUnit.MILLISECONDS);
+        assertEquals(cache.get("photo1"), "bulk1");
+        // no CachePusher tells the cache
+        Thread.sleep(2);
+        this.simplifiedLambda.pushRealtimeEntry("photo1", "rt1");
+        assertEquals(cache.get("photo1"), "bulk1");
+        Thread.sleep(60);
+        assertEquals(cache.get("photo1"), "rt1");
+        assertEquals(cache.getMissCount(), 2);
+    }
+
+    @Test
+    public void testSnapshotIsServedAndRevalidated() throws Exception {
+        File file = File.createTempFile("serving", ".cache");
+        file.deleteOnExit();
+        ServingCache before = new ServingCache(this.simplifiedLambda, 100);
+        for (int i = 0; i < 10; i++) {
+            before.get("photo" + i);
+        }
+        assertEquals(before.writeSnapshot(file), 10);
+
+        // changes while the process was down
+        Thread.sleep(2);
+        this.simplifiedLambda.pushRealtimeEntry("photo1", "rt1");
+        this.lambdaTable.delete(new Delete(SimplifiedLambda.getEntityKey("photo2")));
+
+        ServingCache after = new ServingCache(this.simplifiedLambda, 100);
+        assertEquals(after.loadSnapshot(file), 10);
+        assertEquals(after.getUnvalidatedCount(), 10);
+        // served from the snapshot without touching the table
+        assertEquals(after.get("photo1"), "bulk1");
+        assertEquals(after.getHitCount(), 1);
+        assertEquals(after.getMissCount(), 0);
+
+        // a push before revalidation wins over the snapshot
+        after.put(SimplifiedLambda.getEntityKey("photo3"), "pushed3");
+        assertEquals(after.revalidate(4), 4);
+        assertEquals(after.revalidate(100), 5);
+        assertEquals(after.revalidate(100), 0);
+        assertEquals(after.getUnvalidatedCount(), 0);
+        assertEquals(after.get("photo1"), "rt1");
+        assertEquals(after.get("photo3"), "pushed3");
+        assertEquals(after.size(), 9);
+        assertNull(after.get("photo2"));
+    }
+
+    @Test
+    public void testWarmerRevalidatesAndSnapshots() throws Exception {
+        File file = File.createTempFile("serving", ".cache");
+        file.deleteOnExit();
+        ServingCache before = new ServingCache(this.simplifiedLambda, 100);
+        for (int i = 0; i < 10; i++) {
+            before.get("photo" + i);
+        }
+        before.writeSnapshot(file);
+
+        ServingCache after = new ServingCache(this.simplifiedLambda, 100);
+        CacheWarmer warmer = new CacheWarmer(after, file, 1, TimeUnit.HOURS, 3);
+        assertEquals(warmer.load(), 10);
+        Thread thread = new Thread(warmer);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (after.getUnvalidatedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(after.getUnvalidatedCount(), 0);
+        after.get("photo11");
+        this.simplifiedLambda.pushBulkEntry("photo11", "bulk11");
+        after.get("photo11");
+        warmer.stop();
+        thread.join();
+
+        ServingCache restarted = new ServingCache(this.simplifiedLambda, 100);
+        assertEquals(restarted.loadSnapshot(file), 11);
+    }
+
+    @Test
+    public void testCorruptSnapshotStartsCold() throws Exception {
+        File file = File.createTempFile("serving", ".cache");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 0x53, 0x4c, 0x43, 0x31, 0, 0, 0, 5, 0, 0 });
+        out.close();
+        ServingCache cache = new ServingCache(this.simplifiedLambda, 100);
+        assertEquals(new CacheWarmer(cache, file, 1, TimeUnit.HOURS, 10).load(), 0);
+        assertEquals(cache.size(), 0);
+    }
+}
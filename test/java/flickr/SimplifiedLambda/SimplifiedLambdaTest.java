@@ -4,15 +4,35 @@
 
 package flickr.SimplifiedLambda;
 
+import utility.LatencyModel;
 import utility.MockHTable;
 
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -177,4 +197,410 @@ public class SimplifiedLambdaTest {
             assertEquals(e.toString(), "java.io.IOException: Cannot retrieve string from hbase");
         }
     }
+
+    @Test
+    public void testCombinedView() throws Exception {
+        MockHTable lambdaTable = createLambdaTable();
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.setCombinedViewEnabled(true);
+
+        simplifiedLambda.pushBulkEntry("common", "0");
+        assertEquals(simplifiedLambda.getItemForKey("common", SimplifiedLambda.COMBINED_COLUMN), "0");
+        assertEquals(simplifiedLambda.combiner("common"), "0");
+
+        // a pending realtime cell makes the row dirty
+        simplifiedLambda.pushRealtimeEntry("common", "1");
+        assertEquals(simplifiedLambda.combiner("common"), "1");
+        assertEquals(simplifiedLambda.getItemForKey("common", SimplifiedLambda.COMBINED_COLUMN), "0");
+
+        simplifiedLambda.cleaner();
+        assertEquals(simplifiedLambda.getItemForKey("common", SimplifiedLambda.COMBINED_COLUMN), "1");
+        assertEquals(simplifiedLambda.combiner("common"), "1");
+        assertEquals(simplifiedLambda.batchCombiner(Arrays.asList("common")).get("common"), "1");
+    }
+
+    @Test
+    public void testCombinedViewBackfill() throws Exception {
+        MockHTable lambdaTable = createLambdaTable();
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushBulkEntry("bulk", "0");
+        simplifiedLambda.pushRealtimeEntry("common", "1");
+        simplifiedLambda.pushBulkEntry("common", "2");
+
+        simplifiedLambda.setCombinedViewEnabled(true);
+        assertEquals(simplifiedLambda.combiner("bulk"), "0");
+
+        simplifiedLambda.cleaner();
+        assertEquals(simplifiedLambda.getItemForKey("bulk", SimplifiedLambda.COMBINED_COLUMN), "0");
+        assertEquals(simplifiedLambda.getItemForKey("common", SimplifiedLambda.COMBINED_COLUMN), "2");
+        assertEquals(simplifiedLambda.combiner("common"), "2");
+    }
+
+    @Test
+    public void testCleanerSettlesFromScan() throws Exception {
+        final AtomicInteger gets = new AtomicInteger();
+        final AtomicInteger mutations = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public Result get(Get get) throws IOException {
+                gets.incrementAndGet();
+                return super.get(get);
+            }
+
+            @Override
+            public void mutateRow(RowMutations rm) throws IOException {
+                mutations.incrementAndGet();
+                super.mutateRow(rm);
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        for (int i = 0; i < 10; i++) {
+            simplifiedLambda.pushBulkEntry("bulk" + i, "0");
+        }
+        simplifiedLambda.pushRealtimeEntry("realtime", "1");
+
+        simplifiedLambda.cleaner();
+        // bulk-only rows cost nothing beyond the scan
+        assertEquals(gets.get(), 0);
+        assertEquals(mutations.get(), 1);
+        assertEquals(simplifiedLambda.getItemForKey("realtime", SimplifiedLambda.BULK_COLUMN), "1");
+    }
+
+    @Test
+    public void testLookupAndPresenceFilter() throws Exception {
+        final AtomicInteger gets = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public Result get(Get get) throws IOException {
+                gets.incrementAndGet();
+                return super.get(get);
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.enablePresenceFilter(1000, 0.001);
+        simplifiedLambda.pushBulkEntry("bulk", "0");
+
+        // not built yet: misses still go to the table
+        assertFalse(simplifiedLambda.lookup("missing").isPresent());
+        assertTrue(gets.get() > 0);
+
+        simplifiedLambda.cleaner();
+        simplifiedLambda.pushRealtimeEntry("realtime", "1");
+
+        gets.set(0);
+        assertSame(simplifiedLambda.lookup("missing"), CombineResult.ABSENT);
+        try {
+            simplifiedLambda.combiner("missing");
+        } catch (IOException e) {
+            assertEquals(e.toString(), "java.io.IOException: Cannot retrieve string from hbase");
+        }
+        assertEquals(gets.get(), 0);
+
+        assertEquals(simplifiedLambda.lookup("bulk").getValue(), "0");
+        assertEquals(simplifiedLambda.lookup("realtime").getValue(), "1");
+    }
+
+    @Test
+    public void testPresenceFilterStalenessIsBounded() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+
+        SimplifiedLambda reader = new SimplifiedLambda(lambdaTable);
+        reader.enablePresenceFilter(1000, 0.001, 200, TimeUnit.MILLISECONDS);
+        reader.rebuildPresenceFilter();
+        long builtMillis = System.currentTimeMillis();
+        // another process creates a row the filter has not seen
+        SimplifiedLambda writer = new SimplifiedLambda(lambdaTable);
+        writer.pushRealtimeEntry("other", "1");
+
+        if (System.currentTimeMillis() - builtMillis < 150)
+            assertSame(reader.lookup("other"), CombineResult.ABSENT);
+        Thread.sleep(Math.max(0, builtMillis + 250 - System.currentTimeMillis()));
+        assertEquals(reader.lookup("other").getValue(), "1");
+
+        reader.rebuildPresenceFilter();
+        assertEquals(reader.lookup("other").getValue(), "1");
+        assertSame(reader.lookup("missing"), CombineResult.ABSENT);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS))
+                throw new AssertionError("timed out");
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Thread start(final Callable<?> action, final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    action.call();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testOverlappingPresenceRebuilds() throws Exception {
+        final CountDownLatch firstHalfScanned = new CountDownLatch(1);
+        final CountDownLatch secondStarted = new CountDownLatch(1);
+        final CountDownLatch firstFinished = new CountDownLatch(1);
+        final AtomicInteger scans = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public ResultScanner getScanner(Scan scan) throws IOException {
+                int scanNumber = scans.incrementAndGet();
+                if (scanNumber == 2) {
+                    // the second rebuild has begun, hold its scan until the first one is done
+                    secondStarted.countDown();
+                    await(firstFinished);
+                    return super.getScanner(scan);
+                }
+                final ResultScanner scanner = super.getScanner(scan);
+                if (scanNumber != 1)
+                    return scanner;
+                // the first rebuild pauses after its first row
+                return new ResultScanner() {
+                    private int rows = 0;
+
+                    @Override
+                    public Result next() throws IOException {
+                        if (++this.rows == 2) {
+                            firstHalfScanned.countDown();
+                            await(secondStarted);
+                        }
+                        return scanner.next();
+                    }
+
+                    @Override
+                    public Result[] next(int nbRows) throws IOException {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public void close() {
+                        scanner.close();
+                    }
+
+                    @Override
+                    public Iterator<Result> iterator() {
+                        final ResultScanner paused = this;
+                        return new ScannerIterator<Result>() {
+                            @Override
+                            Result fetch() throws IOException {
+                                return paused.next();
+                            }
+                        };
+                    }
+                };
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        final SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        List<String> keys = Arrays.asList("photo1", "photo2", "photo3", "photo4");
+        for (String key : keys) {
+            simplifiedLambda.pushBulkEntry(key, key);
+        }
+        simplifiedLambda.enablePresenceFilter(1000, 0.001);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread first = start(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                simplifiedLambda.rebuildPresenceFilter();
+                return null;
+            }
+        }, failure);
+        await(firstHalfScanned);
+        Thread second = start(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                simplifiedLambda.cleaner();
+                return null;
+            }
+        }, failure);
+        first.join();
+        // the first rebuild published its own complete filter, not the one the second rebuild is filling
+        for (String key : keys) {
+            assertEquals(simplifiedLambda.lookup(key).getValue(), key);
+        }
+        firstFinished.countDown();
+        second.join();
+        assertNull(failure.get());
+        for (String key : keys) {
+            assertEquals(simplifiedLambda.lookup(key).getValue(), key);
+        }
+        assertSame(simplifiedLambda.lookup("missing"), CombineResult.ABSENT);
+    }
+
+    @Test
+    public void testLookupResult() throws Exception {
+        MockHTable lambdaTable = createLambdaTable();
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushBulkEntry("bulk", "0");
+        simplifiedLambda.pushBulkEntry("fresh", "0");
+        simplifiedLambda.pushRealtimeEntry("fresh", "1");
+        simplifiedLambda.pushRealtimeEntry("stale", "1");
+        simplifiedLambda.pushBulkEntry("stale", "0");
+
+        CombineResult bulk = simplifiedLambda.lookup("bulk");
+        assertEquals(bulk.getSource(), CombineResult.Source.BULK);
+        assertEquals(bulk.getValue(), "0");
+        assertEquals(bulk.getTimestamp(), simplifiedLambda.getTimestampForKey("bulk", SimplifiedLambda.BULK_COLUMN));
+        assertEquals(bulk.getRealtimeTimestamp(), CombineResult.NO_TIMESTAMP);
+
+        CombineResult fresh = simplifiedLambda.lookup("fresh");
+        assertEquals(fresh.getSource(), CombineResult.Source.REALTIME);
+        assertEquals(fresh.getValue(), "1");
+        assertTrue(fresh.getRealtimeLead() > 0);
+
+        CombineResult stale = simplifiedLambda.lookup("stale");
+        assertEquals(stale.getSource(), CombineResult.Source.CONFLICT);
+        assertFalse(stale.isPresent());
+        assertEquals(stale.getValue(), "0");
+        assertTrue(stale.getRealtimeLead() < 0);
+
+        assertSame(simplifiedLambda.lookup("missing"), CombineResult.ABSENT);
+        assertNull(simplifiedLambda.findItemForKey("bulk", SimplifiedLambda.REALTIME_COLUMN));
+
+        CombineResult[] results = simplifiedLambda.lookup(Arrays.asList("stale", "missing", "bulk", "fresh"));
+        assertEquals(results[0].getSource(), CombineResult.Source.CONFLICT);
+        assertSame(results[1], CombineResult.ABSENT);
+        assertEquals(results[2].getValue(), "0");
+        assertEquals(results[3].getValue(), "1");
+    }
+
+    @Test
+    public void testLookupAsOf() throws Exception {
+        MockHTable lambdaTable = createLambdaTable();
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        long beforeAnything = System.currentTimeMillis() - 1;
+        simplifiedLambda.pushBulkEntry("common", "bulk1");
+        long afterFirstBulk = System.currentTimeMillis();
+        simplifiedLambda.pushRealtimeEntry("common", "rt");
+        long afterRealtime = System.currentTimeMillis();
+        simplifiedLambda.pushBulkEntry("common", "bulk2");
+        simplifiedLambda.cleaner();
+
+        assertSame(simplifiedLambda.lookupAsOf("common", beforeAnything), CombineResult.ABSENT);
+        assertEquals(simplifiedLambda.lookupAsOf("common", afterFirstBulk).getValue(), "bulk1");
+        // the cleaner deleted the realtime cell, so its history is gone
+        assertEquals(simplifiedLambda.lookupAsOf("common", afterRealtime).getValue(), "bulk1");
+        assertEquals(simplifiedLambda.lookupAsOf("common", System.currentTimeMillis()).getValue(), "bulk2");
+    }
+
+    @Test
+    public void testDiffAsOf() throws Exception {
+        MockHTable lambdaTable = createLambdaTable();
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushBulkEntry("rowA", "gen1");
+        simplifiedLambda.pushBulkEntry("rowB", "gen1");
+        simplifiedLambda.pushBulkEntry("rowC", "gen1");
+        long firstGeneration = System.currentTimeMillis();
+
+        simplifiedLambda.pushBulkEntry("rowA", "gen2");
+        simplifiedLambda.pushBulkEntry("rowB", "gen1");
+        simplifiedLambda.pushBulkEntry("rowD", "gen2");
+        long secondGeneration = System.currentTimeMillis();
+
+        List<CombineDiff> diffs = simplifiedLambda.diffAsOf(new byte[0], new byte[0], firstGeneration, secondGeneration);
+        assertEquals(diffs.size(), 2);
+        assertEquals(Bytes.toString(diffs.get(0).getRowKey()), "rowA");
+        assertEquals(diffs.get(0).getBefore().getValue(), "gen1");
+        assertEquals(diffs.get(0).getAfter().getValue(), "gen2");
+        assertEquals(Bytes.toString(diffs.get(1).getRowKey()), "rowD");
+        assertSame(diffs.get(1).getBefore(), CombineResult.ABSENT);
+
+        // restricted to a key range
+        diffs = simplifiedLambda.diffAsOf(Bytes.toBytes("rowB"), Bytes.toBytes("rowD"), firstGeneration, secondGeneration);
+        assertTrue(diffs.isEmpty());
+    }
+
+    @Test
+    public void testScanCombined() throws Exception {
+        final AtomicInteger gets = new AtomicInteger();
+        MockHTable lambdaTable = new MockHTable("lambdaTable") {
+            @Override
+            public Result get(Get get) throws IOException {
+                gets.incrementAndGet();
+                return super.get(get);
+            }
+        };
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushBulkEntry("user1/photo1", "bulk");
+        simplifiedLambda.pushBulkEntry("user1/photo2", "bulk");
+        simplifiedLambda.pushRealtimeEntry("user1/photo2", "rt");
+        simplifiedLambda.pushRealtimeEntry("user1/photo3", "rt");
+        simplifiedLambda.pushBulkEntry("user10/photo1", "other");
+        simplifiedLambda.pushBulkEntry("user2/photo1", "other");
+
+        List<String> combined = new ArrayList<>();
+        CombineScanner scanner = simplifiedLambda.scanCombined("user1/", 100);
+        try {
+            for (CombinedRow row : scanner) {
+                combined.add(row.getKey() + "=" + row.getResult().getValue());
+            }
+        } finally {
+            scanner.close();
+        }
+        assertEquals(combined, Arrays.asList("user1/photo1=bulk", "user1/photo2=rt", "user1/photo3=rt"));
+        assertEquals(gets.get(), 0);
+
+        assertEquals(SimplifiedLambda.prefixStopRow(new byte[]{1, (byte) 0xFF}), new byte[]{2});
+        assertEquals(SimplifiedLambda.prefixStopRow(new byte[]{(byte) 0xFF}), new byte[0]);
+    }
+
+    @Test
+    public void testLongKeys() throws Exception {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushBulkEntry(9L, "bulk9");
+        simplifiedLambda.pushBulkEntry(10L, "bulk10");
+        simplifiedLambda.pushRealtimeEntry(10L, "rt10");
+        simplifiedLambda.pushRealtimeEntry(256L, "rt256");
+
+        assertEquals(simplifiedLambda.combiner(10L), "rt10");
+        assertEquals(simplifiedLambda.lookup(9L).getSource(), CombineResult.Source.BULK);
+        assertEquals(simplifiedLambda.batchCombiner(new long[]{256L, 11L, 9L}), new String[]{"rt256", null, "bulk9"});
+
+        // numeric, not lexicographic, order
+        List<String> combined = new ArrayList<>();
+        CombineScanner scanner = simplifiedLambda.scanCombined(0L, 1000L, 100);
+        try {
+            for (CombinedRow row : scanner) {
+                combined.add(row.getLongKey() + "=" + row.getResult().getValue());
+            }
+        } finally {
+            scanner.close();
+        }
+        assertEquals(combined, Arrays.asList("9=bulk9", "10=rt10", "256=rt256"));
+
+        // numeric ids are dumped as numbers, next to string keys
+        simplifiedLambda.pushBulkEntry("photo1", "bulkp");
+        String dump = simplifiedLambda.dumpTable();
+        assertTrue(dump.contains("\n10\tbulk10\trt10\t\trt10\n"), dump);
+        assertTrue(dump.contains("\n256\tNone\trt256\t\trt256\n"), dump);
+        assertTrue(dump.contains("\nphoto1\tbulkp\tNone\t\tbulkp\n"), dump);
+    }
 }
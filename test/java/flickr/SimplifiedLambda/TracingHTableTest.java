@@ -0,0 +1,87 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TracingHTableTest {
+    private static MockHTable newTable() {
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        lambdaTable.setLatencyModel(LatencyModel.NONE);
+        return lambdaTable;
+    }
+
+    @Test
+    public void testTracesCombinerCalls() throws Exception {
+        TracingHTable tracingTable = new TracingHTable(newTable(), Long.MAX_VALUE, 16);
+        final List<TracedCall> calls = new ArrayList<>();
+        tracingTable.addListener(new TracingHTable.Listener() {
+            @Override
+            public void onCall(TracedCall call) {
+                calls.add(call);
+            }
+        });
+
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(tracingTable);
+        simplifiedLambda.pushBulkEntry("photo1", "bulk");
+        simplifiedLambda.pushRealtimeEntry("photo2", "rt");
+        simplifiedLambda.batchCombiner(Arrays.asList("photo1", "photo2", "photo3"));
+        simplifiedLambda.cleaner();
+
+        assertEquals(tracingTable.getHistogram(TracingHTable.Operation.PUT).getCount(), 2);
+        assertEquals(tracingTable.getHistogram(TracingHTable.Operation.MULTI_GET).getCount(), 1);
+        assertTrue(tracingTable.getHistogram(TracingHTable.Operation.SCAN_NEXT).getCount() > 0);
+        assertTrue(tracingTable.getSlowCalls().isEmpty());
+
+        TracedCall multiGet = null;
+        for (TracedCall call : calls) {
+            if (call.getOperation() == TracingHTable.Operation.MULTI_GET)
+                multiGet = call;
+        }
+        assertEquals(Bytes.toString(multiGet.getRowKey()), "photo1");
+        assertEquals(multiGet.getBatchSize(), 3);
+
+        tracingTable.setEnabled(false);
+        int traced = calls.size();
+        simplifiedLambda.combiner("photo1");
+        assertEquals(calls.size(), traced);
+    }
+
+    @Test
+    public void testSlowCallRingBuffer() throws Exception {
+        MockHTable lambdaTable = newTable();
+        TracingHTable tracingTable = new TracingHTable(lambdaTable, 2000, 3);
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(tracingTable);
+        for (int i = 0; i < 3; i++) {
+            simplifiedLambda.pushBulkEntry("fast" + i, "bulk");
+        }
+        lambdaTable.setLatencyModel(LatencyModel.fixed(5));
+        for (int i = 0; i < 5; i++) {
+            simplifiedLambda.pushBulkEntry("slow" + i, "bulk");
+        }
+
+        // only the newest slow calls are kept, oldest first
+        List<TracedCall> slowCalls = tracingTable.getSlowCalls();
+        assertEquals(slowCalls.size(), 3);
+        assertEquals(Bytes.toString(slowCalls.get(0).getRowKey()), "slow2");
+        assertEquals(Bytes.toString(slowCalls.get(2).getRowKey()), "slow4");
+        assertTrue(slowCalls.get(2).getDurationMicros() >= 5000);
+        assertTrue(tracingTable.dumpSlowCalls().contains("PUT row=slow4 batch=1"));
+        assertTrue(tracingTable.getPercentile(TracingHTable.Operation.PUT, 99) >= 4000);
+    }
+}
@@ -0,0 +1,90 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambda;
+
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ValueCodecTest {
+    private static final List<String> TAGS = Arrays.asList("sunset", "beach", "portrait", "cat", "nature");
+
+    @Test
+    public void testRoundTrip() {
+        ValueCodec codec = new ValueCodec(TAGS);
+        String[] values = {
+                "",
+                "x",
+                "sunset:97,beach:88,cat:-3",
+                "sunset:97,unknowntag:12",
+                "sunset:07",
+                "sunset:97,,beach:1",
+                "{\"tags\": [\"sunset\", \"beach\", \"sunset\", \"beach\", \"sunset\", \"beach\"]}",
+                "caf\u00e9:5,\u65e5\u672c:6",
+        };
+        for (String value : values) {
+            assertEquals(codec.decode(codec.encode(value)), value);
+        }
+        // plain values written before the codec was enabled
+        assertEquals(codec.decode(Bytes.toBytes("sunset:97")), "sunset:97");
+    }
+
+    @Test
+    public void testEncodingIsCompact() {
+        ValueCodec codec = new ValueCodec(TAGS);
+        byte[] tagScores = codec.encode("sunset:97,beach:88,portrait:12,cat:5,nature:64");
+        assertEquals(tagScores[0], ValueCodec.TAG_SCORES);
+        // tag byte, count, then one byte per tag index and one or two per score
+        assertEquals(tagScores.length, 15);
+
+        String repetitive = "sunset beach portrait sunset beach portrait sunset beach portrait sunset beach";
+        byte[] deflated = codec.encode(repetitive);
+        assertEquals(deflated[0], ValueCodec.DEFLATE);
+        assertTrue(deflated.length < repetitive.length() / 2);
+
+        // never larger than plain
+        assertEquals(codec.encode("short value").length, 11);
+    }
+
+    @Test
+    public void testLazyDecoding() throws Exception {
+        final AtomicInteger decodes = new AtomicInteger();
+        ValueCodec codec = new ValueCodec(TAGS) {
+            @Override
+            public String decode(byte[] bytes, int offset, int length) {
+                decodes.incrementAndGet();
+                return super.decode(bytes, offset, length);
+            }
+        };
+        MockHTable lambdaTable = new MockHTable("lambdaTable");
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        SimplifiedLambda simplifiedLambda = new SimplifiedLambda(lambdaTable);
+        simplifiedLambda.pushBulkEntry("legacy", "sunset:1");
+        simplifiedLambda.setValueCodec(codec);
+        simplifiedLambda.pushBulkEntry("photo", "sunset:97,beach:88");
+        simplifiedLambda.pushRealtimeEntry("photo", "sunset:99");
+
+        CombineResult result = simplifiedLambda.lookup("photo");
+        assertEquals(result.getSource(), CombineResult.Source.REALTIME);
+        assertEquals(decodes.get(), 0);
+        assertEquals(result.getValue(), "sunset:99");
+        assertEquals(result.getValue(), "sunset:99");
+        assertEquals(decodes.get(), 1);
+
+        simplifiedLambda.cleaner();
+        assertEquals(simplifiedLambda.combiner("photo"), "sunset:99");
+        assertEquals(simplifiedLambda.combiner("legacy"), "sunset:1");
+        assertTrue(simplifiedLambda.lookup("photo").getEncodedLength() <= "sunset:99".length());
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.CombineResult;
+import flickr.SimplifiedLambda.LatencyHistogram;
+
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LoadTestDriverTest {
+    @Test
+    public void testZipfianSkew() {
+        ZipfianGenerator zipfian = new ZipfianGenerator(10000, 0.99);
+        Random random = new Random(1);
+        int top = 0;
+        for (int i = 0; i < 100000; i++) {
+            long rank = zipfian.next(random);
+            assertTrue(rank >= 0 && rank < 10000);
+            if (rank < 10)
+                top++;
+        }
+        // the ten most popular keys out of 10k get roughly a quarter of the traffic
+        assertTrue(top > 15000 && top < 40000, "top: " + top);
+    }
+
+    @Test
+    public void testWriteKeyOverlap() {
+        WorkloadConfig config = WorkloadConfig.parse(new String[]{
+                "--keyCardinality=1000", "--bulkLoadSize=100", "--overlapFraction=0.25"});
+        WorkloadGenerator generator = new WorkloadGenerator(config);
+        Set<String> bulkKeys = new HashSet<>();
+        for (long rank = 0; rank < 100; rank++) {
+            bulkKeys.add(WorkloadGenerator.keyFor(rank));
+        }
+        Random random = new Random(1);
+        int overlapping = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (bulkKeys.contains(generator.nextWriteKey(random)))
+                overlapping++;
+        }
+        assertTrue(overlapping > 2000 && overlapping < 3000, "overlapping: " + overlapping);
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 10);
+        }
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMaxMicros(), 10000);
+        // buckets are accurate to about 6%
+        assertTrue(Math.abs(histogram.getPercentile(50) - 5000) < 350, "p50: " + histogram.getPercentile(50));
+        assertTrue(Math.abs(histogram.getPercentile(99) - 9900) < 650, "p99: " + histogram.getPercentile(99));
+        assertEquals(histogram.getPercentile(100), 10000);
+    }
+
+    @Test
+    public void testDriverRun() throws Exception {
+        WorkloadConfig config = WorkloadConfig.parse(new String[]{
+                "--keyCardinality=2000", "--bulkLoadSize=1000", "--threads=4", "--durationSeconds=1",
+                "--tableLatencyMicros=200", "--realtimeWriteRate=0", "--readFraction=0.8",
+                "--cleanerIntervalMillis=300"});
+        LoadTestDriver.Report report = new LoadTestDriver(config).run();
+
+        assertTrue(report.getReadLatency().getCount() > 0);
+        assertTrue(report.getWriteLatency().getCount() > 0);
+        assertTrue(report.getReadLatency().getPercentile(50) >= 200);
+        assertTrue(report.getReads(CombineResult.Source.BULK) > 0);
+        assertTrue(report.getReads(CombineResult.Source.REALTIME) > 0);
+    }
+}
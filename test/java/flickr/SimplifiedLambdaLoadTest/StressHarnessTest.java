@@ -0,0 +1,58 @@
+// Copyright 2015 Yahoo Inc.
+// Licensed under the terms of the Apache 2.0 License
+// See LICENSE.txt file in the project root folder for License terms.
+
+package flickr.SimplifiedLambdaLoadTest;
+
+import flickr.SimplifiedLambda.SimplifiedLambda;
+import utility.LatencyModel;
+import utility.MockHTable;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class StressHarnessTest {
+    private static StressHarness shortHarness(MockHTable lambdaTable) {
+        lambdaTable.addColumnFamily(new String(SimplifiedLambda.FAMILY));
+        StressHarness harness = new StressHarness(lambdaTable);
+        harness.setKeys(50);
+        harness.setRoles(3, 1, 3);
+        harness.setDuration(2, TimeUnit.SECONDS);
+        harness.setLatencyModel(new LatencyModel(100, 0));
+        return harness;
+    }
+
+    @Test
+    public void testConcurrentRolesKeepInvariants() throws Exception {
+        StressHarness.Report report = shortHarness(new MockHTable("lambdaTable")).run();
+        assertTrue(report.isClean(), report.toString());
+        for (StressHarness.Role role : StressHarness.Role.values()) {
+            assertTrue(report.getOperations(role) > 0, report.toString());
+        }
+    }
+
+    @Test
+    public void testLostWritesAreReported() throws Exception {
+        // silently drops the realtime writes of one key
+        MockHTable lossyTable = new MockHTable("lambdaTable") {
+            @Override
+            public void put(Put put) throws IOException {
+                if (Bytes.toString(put.getRow()).equals("stress7")
+                        && put.has(SimplifiedLambda.FAMILY, SimplifiedLambda.REALTIME_COLUMN))
+                    return;
+                super.put(put);
+            }
+        };
+        StressHarness.Report report = shortHarness(lossyTable).run();
+        assertFalse(report.isClean());
+        assertTrue(report.getViolations().get(0).startsWith("stress7"), report.toString());
+    }
+}
@@ -0,0 +1,138 @@
+package utility;
+
+/**
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class MockWriteAheadLogTest {
+    private static final byte[] FAMILY = Bytes.toBytes("cf");
+    private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+    private MockHTable createTable(File file, MockWriteAheadLog.SyncPolicy syncPolicy) throws Exception {
+        MockHTable table = new MockHTable("walTable");
+        table.addColumnFamily("cf");
+        table.setWriteAheadLog(new MockWriteAheadLog(file, syncPolicy));
+        return table;
+    }
+
+    private Put put(String row, String value) {
+        Put put = new Put(Bytes.toBytes(row));
+        put.add(FAMILY, QUALIFIER, Bytes.toBytes(value));
+        return put;
+    }
+
+    private String value(MockHTable table, String row) throws Exception {
+        return Bytes.toString(table.get(new Get(Bytes.toBytes(row))).getValue(FAMILY, QUALIFIER));
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws Exception {
+        File file = File.createTempFile("wal", ".log");
+        file.deleteOnExit();
+
+        MockHTable table = createTable(file, MockWriteAheadLog.SyncPolicy.PER_OPERATION);
+        table.put(put("rowA", "a"));
+        table.put(put("rowB", "b"));
+        table.delete(new Delete(Bytes.toBytes("rowB")));
+        Put skipped = put("rowC", "c");
+        skipped.setDurability(Durability.SKIP_WAL);
+        table.put(skipped);
+        table.incrementColumnValue(Bytes.toBytes("counter"), FAMILY, QUALIFIER, 5);
+        table.incrementColumnValue(Bytes.toBytes("counter"), FAMILY, QUALIFIER, 2);
+        table.getWriteAheadLog().close();
+
+        MockHTable restarted = createTable(file, MockWriteAheadLog.SyncPolicy.PER_OPERATION);
+        assertEquals(value(restarted, "rowA"), "a");
+        assertFalse(restarted.exists(new Get(Bytes.toBytes("rowB"))));
+        assertFalse(restarted.exists(new Get(Bytes.toBytes("rowC"))));
+        assertEquals(Bytes.toLong(restarted.get(new Get(Bytes.toBytes("counter"))).getValue(FAMILY, QUALIFIER)), 7L);
+        restarted.getWriteAheadLog().close();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        File file = File.createTempFile("wal", ".log");
+        file.deleteOnExit();
+        final MockHTable table = createTable(file, MockWriteAheadLog.SyncPolicy.PER_BATCH);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 10; i++) {
+                        table.put(put("row" + thread + "_" + i, "v"));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        MockWriteAheadLog wal = table.getWriteAheadLog();
+        assertEquals(wal.getAppendCount(), 80);
+        assertTrue(wal.getSyncCount() < wal.getAppendCount(), "syncs: " + wal.getSyncCount());
+        wal.close();
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws Exception {
+        File file = File.createTempFile("wal", ".log");
+        file.deleteOnExit();
+
+        MockHTable table = createTable(file, MockWriteAheadLog.SyncPolicy.PER_OPERATION);
+        table.put(put("rowA", "a"));
+        table.put(put("rowB", "b"));
+        table.getWriteAheadLog().close();
+
+        // cut the last record in half, as a crash mid-write would
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        MockHTable restarted = createTable(file, MockWriteAheadLog.SyncPolicy.PER_OPERATION);
+        assertEquals(value(restarted, "rowA"), "a");
+        assertFalse(restarted.exists(new Get(Bytes.toBytes("rowB"))));
+
+        // the log is writable again after the truncation
+        restarted.put(put("rowC", "c"));
+        restarted.getWriteAheadLog().close();
+        MockHTable again = createTable(file, MockWriteAheadLog.SyncPolicy.PER_OPERATION);
+        assertEquals(value(again, "rowC"), "c");
+        again.getWriteAheadLog().close();
+    }
+}